@@ -29,6 +29,13 @@ public class BytesInputStream extends InputStream {
         return Arrays.copyOf(buf, count);
     }
 
+    /**
+     * Another stream of the same bytes, from the start, not copied
+     */
+    public BytesInputStream duplicate() {
+        return new BytesInputStream(buf, count);
+    }
+
     public int read() throws IOException {
         return (pos < count) ? (buf[pos++] & 0xff) : -1;
     }
@@ -1,5 +1,6 @@
 package org.httpkit;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 
@@ -41,8 +42,21 @@ public class DynamicBytes {
     }
 
     public DynamicBytes append(byte[] d, int length) {
+        return append(d, 0, length);
+    }
+
+    public DynamicBytes append(byte[] d, int offset, int length) {
+        expandIfNeeded(length);
+        System.arraycopy(d, offset, data, idx, length);
+        idx += length;
+        return this;
+    }
+
+    // all remaining bytes of buffer
+    public DynamicBytes append(ByteBuffer buffer) {
+        int length = buffer.remaining();
         expandIfNeeded(length);
-        System.arraycopy(d, 0, data, idx, length);
+        buffer.get(data, idx, length);
         idx += length;
         return this;
     }
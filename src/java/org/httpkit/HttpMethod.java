@@ -15,6 +15,14 @@ public enum HttpMethod {
         this.KEY = key;
     }
 
+    /**
+     * Same effect if sent more than once, RFC 7231 4.2.2: can be retried, or
+     * pipelined
+     */
+    public boolean isIdempotent() {
+        return this != POST && this != PATCH && this != CONNECT;
+    }
+
     public static HttpMethod fromKeyword(Keyword k) {
         HttpMethod[] values = HttpMethod.values();
         for (HttpMethod m : values) {
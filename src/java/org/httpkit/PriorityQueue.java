@@ -7,12 +7,24 @@ import java.util.Queue;
  * Copy and modified from java.util.PriorityQueue. Remove unused method. Modify
  * {@code remove} to return the removed element
  * 
+ * Element implements {@link Indexed} remembers its index in the heap, remove
+ * is O(log n), instead of a linear scan
+ * 
  * used by timer and the client
  * @param <E>
  */
 @SuppressWarnings("unchecked")
 public class PriorityQueue<E> {
 
+    /**
+     * Element knows where it is in the heap. Only one queue at a time
+     */
+    public interface Indexed {
+        int getHeapIndex(); // -1: not in queue
+
+        void setHeapIndex(int index);
+    }
+
     private static final int DEFAULT_INITIAL_CAPACITY = 11;
 
     /**
@@ -92,7 +104,7 @@ public class PriorityQueue<E> {
             grow(i + 1);
         size = i + 1;
         if (i == 0)
-            queue[0] = e;
+            set(0, e);
         else
             siftUp(i, e);
         return true;
@@ -122,6 +134,15 @@ public class PriorityQueue<E> {
      * @return Element removed
      */
     public E remove(Object o) {
+        if (o instanceof Indexed) { // by identity
+            int i = ((Indexed) o).getHeapIndex();
+            if (i >= 0 && i < size && queue[i] == o) {
+                removeAt(i);
+                ((Indexed) o).setHeapIndex(-1);
+                return (E) o;
+            }
+            return null;
+        }
         for (int i = 0; i < size; i++) {
             if (queue[i].equals(o)) {
                 E e = (E) queue[i];
@@ -150,6 +171,8 @@ public class PriorityQueue<E> {
         queue[s] = null;
         if (s != 0)
             siftDown(0, x);
+        if (result instanceof Indexed)
+            ((Indexed) result).setHeapIndex(-1);
         return result;
     }
 
@@ -203,10 +226,10 @@ public class PriorityQueue<E> {
             Object e = queue[parent];
             if (key.compareTo((E) e) >= 0)
                 break;
-            queue[k] = e;
+            set(k, e);
             k = parent;
         }
-        queue[k] = key;
+        set(k, key);
     }
 
     /**
@@ -230,10 +253,16 @@ public class PriorityQueue<E> {
                 c = queue[child = right];
             if (key.compareTo((E) c) <= 0)
                 break;
-            queue[k] = c;
+            set(k, c);
             k = child;
         }
-        queue[k] = key;
+        set(k, key);
+    }
+
+    private void set(int k, Object e) {
+        queue[k] = e;
+        if (e instanceof Indexed)
+            ((Indexed) e).setHeapIndex(k);
     }
 
     @Override
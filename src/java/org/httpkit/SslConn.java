@@ -0,0 +1,271 @@
+package org.httpkit;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+
+/**
+ * TLS of a connection, non-blocking: SSLEngine, encrypted bytes in and out.
+ * Lives as long as the connection (the client passes it to the next request
+ * when reused). Used by one loop; network buffers are from a pool of the loop,
+ * held while there are bytes in them: an idle connection holds none.
+ */
+public class SslConn {
+    /** handshake: delegated tasks are running, the resume callback is called when done */
+    public static final int TASKS = -1;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    /** buffers kept by a pool, more are dropped: it does not stay at the peak */
+    static final int POOL_MAX = 64;
+
+    public final SSLEngine engine;
+    private final ArrayList<ByteBuffer> pool;
+    private final Executor executor; // for handshake tasks, null: by the loop
+    private final int size; // of a network buffer
+    private ByteBuffer netIn; // received, not unwrapped. write mode, null if idle
+    private ByteBuffer netOut; // wrapped, not sent. write mode, null if idle
+    public boolean handshaking = true;
+    private boolean closed = false; // close_notify received
+    private volatile boolean tasksRunning = false;
+
+    public SslConn(SSLEngine engine, ArrayList<ByteBuffer> pool, Executor executor) {
+        this.engine = engine;
+        this.pool = pool;
+        this.executor = executor;
+        this.size = engine.getSession().getPacketBufferSize();
+        netIn = acquire();
+        netOut = acquire();
+    }
+
+    private ByteBuffer acquire() {
+        for (int i = pool.size() - 1; i >= 0; i--) {
+            if (pool.get(i).capacity() >= size) {
+                ByteBuffer b = pool.remove(i);
+                b.clear();
+                return b;
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    private void recycle(ByteBuffer b) {
+        if (pool.size() < POOL_MAX) {
+            pool.add(b);
+        }
+    }
+
+    // connection closed, by the loop
+    public void release() {
+        if (netIn != null) {
+            recycle(netIn);
+            netIn = null;
+        }
+        if (netOut != null) {
+            recycle(netOut);
+            netOut = null;
+        }
+    }
+
+    // true if all sent
+    private boolean flush(SocketChannel ch) throws IOException {
+        if (netOut == null) {
+            return true;
+        }
+        if (netOut.position() > 0) {
+            netOut.flip();
+            ch.write(netOut);
+            netOut.compact();
+        }
+        if (netOut.position() == 0) {
+            if (!handshaking) { // empty, back to the pool till next write
+                recycle(netOut);
+                netOut = null;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run(); // a few per connection
+        }
+    }
+
+    // certificate, key exchange: slow, off the loop
+    private void runTasks(final Runnable resume) {
+        tasksRunning = true;
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    runTasks();
+                } finally {
+                    tasksRunning = false;
+                    resume.run();
+                }
+            }
+        });
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer b : buffers) {
+            if (b.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void wrap(ByteBuffer[] srcs) throws SSLException {
+        if (netOut == null) {
+            netOut = acquire();
+        }
+        SSLEngineResult r = engine.wrap(srcs, netOut);
+        if (r.getStatus() == Status.CLOSED) {
+            throw new SSLException("engine closed");
+        }
+        if (r.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+            runTasks();
+        }
+    }
+
+    /**
+     * Drive the handshake as far as it can go without blocking
+     *
+     * @param scratch
+     *            for unwrap, no application data is expected
+     * @param resume
+     *            called by another thread when delegated tasks are done, if
+     *            there is an executor
+     * @return the interest ops to wait for, 0 if done, or TASKS
+     */
+    public int handshake(SocketChannel ch, ByteBuffer scratch, Runnable resume)
+            throws IOException {
+        if (netIn == null) {
+            netIn = acquire();
+        }
+        while (true) {
+            if (tasksRunning) {
+                return TASKS;
+            }
+            HandshakeStatus status = engine.getHandshakeStatus();
+            // a flight is written at once, before waiting for the peer: small
+            // writes one by one would be delayed by Nagle
+            if (status != HandshakeStatus.NEED_WRAP && !flush(ch)) {
+                return SelectionKey.OP_WRITE;
+            }
+            switch (status) {
+            case NEED_WRAP:
+                SSLEngineResult w = engine.wrap(EMPTY, netOut);
+                if (w.getStatus() == Status.CLOSED) {
+                    throw new SSLException("engine closed");
+                }
+                if (w.getStatus() == Status.BUFFER_OVERFLOW && !flush(ch)) {
+                    return SelectionKey.OP_WRITE;
+                }
+                break;
+            case NEED_UNWRAP:
+                netIn.flip();
+                scratch.clear();
+                SSLEngineResult r;
+                try {
+                    r = engine.unwrap(netIn, scratch);
+                } finally {
+                    netIn.compact();
+                }
+                if (r.getStatus() == Status.CLOSED) {
+                    throw new SSLException("closed by peer while handshaking");
+                }
+                if (r.getStatus() == Status.BUFFER_UNDERFLOW) {
+                    int read = ch.read(netIn);
+                    if (read == -1) {
+                        throw new EOFException("closed by peer while handshaking");
+                    } else if (read == 0) {
+                        return SelectionKey.OP_READ;
+                    }
+                }
+                break;
+            case NEED_TASK:
+                if (executor == null) {
+                    runTasks();
+                } else {
+                    runTasks(resume);
+                    return TASKS;
+                }
+                break;
+            default: // FINISHED, NOT_HANDSHAKING
+                handshaking = false;
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Encrypt and send, as much as the socket takes
+     *
+     * @return true if all of srcs are sent
+     */
+    public boolean write(SocketChannel ch, ByteBuffer[] srcs) throws IOException {
+        while (flush(ch)) {
+            if (!hasRemaining(srcs)) {
+                return true;
+            }
+            wrap(srcs); // a record at most
+        }
+        return false;
+    }
+
+    /**
+     * Read and decrypt into dst, cleared by caller
+     *
+     * @return bytes decrypted, -1 if closed by the peer
+     */
+    public int read(SocketChannel ch, ByteBuffer dst) throws IOException {
+        if (netIn == null) {
+            netIn = acquire();
+        }
+        int read = ch.read(netIn);
+        int produced = 0;
+        netIn.flip();
+        try {
+            while (netIn.hasRemaining() && !closed) {
+                SSLEngineResult r = engine.unwrap(netIn, dst);
+                produced += r.bytesProduced();
+                if (r.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                }
+                if (r.getStatus() == Status.CLOSED) {
+                    closed = true;
+                } else if (r.getStatus() != Status.OK) {
+                    break; // more bytes needed, or dst is full: read again
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+        if (netIn.position() == 0) { // all unwrapped, back to the pool till next read
+            recycle(netIn);
+            netIn = null;
+        }
+        // post handshake message, like TLS 1.3 key update
+        if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+            wrap(new ByteBuffer[] { EMPTY });
+            flush(ch); // small, best effort
+        }
+        if (produced == 0 && (read == -1 || closed)) {
+            return -1;
+        }
+        return produced;
+    }
+}
@@ -0,0 +1,158 @@
+package org.httpkit.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * Response body being received: written by the client loop, read by the
+ * consumer, blocking like PipedInputStream. Bounded: the loop is asked to pause
+ * reading when more than limit bytes are buffered (one read may go over), and
+ * resumed when the consumer drains it to half.
+ */
+public class BodyStream extends InputStream {
+
+    private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+    private final int limit;
+    private int pos = 0; // of the first chunk
+    private int size = 0; // buffered bytes
+
+    private boolean finished = false;
+    private boolean closed = false;
+    private Throwable error;
+    private Runnable resume; // set when the loop is paused
+
+    public BodyStream(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * By the loop
+     *
+     * @throws AbortException
+     *             closed by the consumer, the connection should be closed
+     */
+    synchronized void write(ByteBuffer buffer) throws AbortException {
+        if (closed) {
+            throw new AbortException("body stream closed");
+        }
+        byte[] chunk = new byte[buffer.remaining()];
+        buffer.get(chunk);
+        chunks.add(chunk);
+        size += chunk.length;
+        notifyAll();
+    }
+
+    synchronized boolean pauseIfFull(Runnable resume) {
+        if (size <= limit || closed || finished) {
+            return false;
+        }
+        this.resume = resume;
+        return true;
+    }
+
+    synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    synchronized void fail(Throwable t) {
+        error = t;
+        finished = true;
+        notifyAll();
+    }
+
+    // wait for data, -1 if no more
+    private int await() throws IOException {
+        while (size == 0) {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (error != null) {
+                throw new IOException("read body: " + error.getMessage(), error);
+            }
+            if (finished) {
+                return -1;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+        }
+        return size;
+    }
+
+    // room for the loop, resume it. outside the lock
+    private Runnable drained() {
+        if (resume != null && size <= limit / 2) {
+            Runnable r = resume;
+            resume = null;
+            return r;
+        }
+        return null;
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        Runnable r;
+        int read = 0;
+        synchronized (this) {
+            if (await() == -1) {
+                return -1;
+            }
+            while (read < len && size > 0) {
+                byte[] chunk = chunks.getFirst();
+                int n = Math.min(len - read, chunk.length - pos);
+                System.arraycopy(chunk, pos, b, off + read, n);
+                read += n;
+                pos += n;
+                size -= n;
+                if (pos == chunk.length) {
+                    chunks.removeFirst();
+                    pos = 0;
+                }
+            }
+            r = drained();
+        }
+        if (r != null) {
+            r.run();
+        }
+        return read;
+    }
+
+    public synchronized int available() {
+        return size;
+    }
+
+    /**
+     * Close before all read: the connection is closed, not reused
+     */
+    public void close() {
+        Runnable r;
+        synchronized (this) {
+            closed = true;
+            chunks.clear();
+            size = 0;
+            r = resume; // to let the loop find it closed
+            resume = null;
+            notifyAll();
+        }
+        if (r != null) {
+            r.run();
+        }
+    }
+
+    public synchronized String toString() {
+        return "BodyStream[buffered=" + size + ", finished=" + finished + "]";
+    }
+}
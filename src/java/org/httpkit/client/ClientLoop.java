@@ -0,0 +1,729 @@
+package org.httpkit.client;
+
+import static java.lang.System.currentTimeMillis;
+import static java.nio.channels.SelectionKey.OP_CONNECT;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import static org.httpkit.HttpUtils.BUFFER_SIZE;
+import static org.httpkit.client.State.ALL_READ;
+import static org.httpkit.client.State.READ_INITIAL;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import org.httpkit.HTTPException;
+import org.httpkit.HttpUtils;
+import org.httpkit.PriorityQueue;
+import org.httpkit.SslConn;
+import org.httpkit.metrics.Counter;
+import org.httpkit.metrics.LoopWatch;
+import org.httpkit.metrics.Metrics;
+
+/**
+ * An event loop of HttpClient: a selector, a thread, its own buffer, timeout
+ * queues and connection pools. A host is owned by one loop at a time, all its
+ * requests go there, to reuse connections.
+ */
+class ClientLoop implements Runnable {
+
+    private final Queue<Request> pending = new ConcurrentLinkedQueue<Request>();
+    // paused requests, the consumer has room now
+    private final Queue<Request> resumes = new ConcurrentLinkedQueue<Request>();
+    // hedged requests lost the race
+    private final Queue<Request> cancels = new ConcurrentLinkedQueue<Request>();
+    // hedged requests, by the time to send the backup
+    private final PriorityQueue<Hedge> hedges = new PriorityQueue<Hedge>();
+    private final PriorityQueue<Request> requests = new PriorityQueue<Request>();
+    private final PriorityQueue<PersistentConn> keepalives = new PriorityQueue<PersistentConn>();
+    // per host connections, modified by the loop. concurrent for stats
+    final ConcurrentMap<InetSocketAddress, HostPool> pools =
+            new ConcurrentHashMap<InetSocketAddress, HostPool>();
+    // connection closed, for waiting requests
+    private final ArrayList<HostPool> freed = new ArrayList<HostPool>();
+    // host => the loop owns it, shared by loops of a client
+    private final ConcurrentMap<InetSocketAddress, ClientLoop> owners;
+
+    // requests waited for a connection, by the loop
+    volatile long waited = 0;
+    volatile long waitMs = 0;
+    volatile long maxWaitMs = 0;
+    // requests sent on a connection with others in flight
+    volatile long pipelined = 0;
+    // requests in flight or waiting, for new hosts to pick a loop
+    volatile int load = 0;
+
+    private volatile boolean running = true;
+
+    // of the client, shared by its loops
+    private final Counter poolHits; // an idle connection reused
+    private final Counter connects;
+    private final Counter connectTimeouts;
+    private final Counter readTimeouts;
+    private final Counter retries; // kept-alive connection closed by the server
+    final LoopWatch watch; // a callback run by the loop, blocking it
+
+    private final HttpClientConfig config;
+    // shared, single thread
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final Selector selector;
+    private final SSLContext sslContext; // null: default, created when needed
+    // TLS network buffers of closed connections
+    private final ArrayList<ByteBuffer> sslBuffers = new ArrayList<ByteBuffer>();
+
+    public ClientLoop(HttpClientConfig config, String name,
+            ConcurrentMap<InetSocketAddress, ClientLoop> owners, SSLContext sslContext,
+            Metrics metrics) throws IOException {
+        this.config = config;
+        this.owners = owners;
+        this.sslContext = sslContext;
+        this.poolHits = metrics.counter("pool-hits");
+        this.connects = metrics.counter("connects");
+        this.connectTimeouts = metrics.counter("connect-timeouts");
+        this.readTimeouts = metrics.counter("read-timeouts");
+        this.retries = metrics.counter("retries");
+        this.watch = new LoopWatch(metrics, 200);
+        selector = Selector.open();
+        Thread t = new Thread(this, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    void queue(Request req) {
+        pending.offer(req);
+        selector.wakeup();
+    }
+
+    void cancel(Request req) {
+        cancels.offer(req);
+        selector.wakeup();
+    }
+
+    private void cancel(long now) {
+        Request req;
+        while ((req = cancels.poll()) != null) {
+            if (req.isDone() || req.loop != this) {
+                continue;
+            }
+            req.finish(new AbortException("hedged request, the other won"));
+            SelectionKey key = req.key;
+            if (key == null) {
+                HostPool pool = pools.get(req.addr);
+                if (pool != null) {
+                    pool.unqueue(req); // waiting for a connection
+                }
+            } else if (key.attachment() == req) {
+                if (req.isConnected && (req.ssl == null || !req.ssl.handshaking)
+                        && req.request[0].position() == 0 && req.next == null) {
+                    key.interestOps(OP_READ); // nothing sent, clean
+                    release(key, req, now);
+                } else {
+                    closeQuietly(key);
+                }
+            } // pipelined behind another: the response is read and dropped
+        }
+    }
+
+    // the primary got no response in time
+    private void sendHedges(long now) {
+        Hedge h;
+        while ((h = hedges.peek()) != null && h.sendAt <= now) {
+            hedges.poll();
+            h.sendBackup(); // queued to a loop, may be this one
+        }
+    }
+
+    private long selectTimeout() {
+        Hedge h = hedges.peek();
+        if (h == null) {
+            return 2000;
+        }
+        return Math.max(1, Math.min(2000, h.sendAt - currentTimeMillis()));
+    }
+
+    private void clearTimeout(long now) {
+        Request r;
+        while ((r = requests.peek()) != null) {
+            if (r.paused) {
+                r.onProgress(now); // waiting for the consumer, not the server
+            }
+            if (r.isTimeout(now)) {
+                String msg = "connect timeout: ";
+                // pipelined behind another: sent, waiting for the response
+                if (r.isConnected || (r.key != null && r.key.attachment() != r)) {
+                    msg = "read timeout: ";
+                    readTimeouts.inc();
+                } else {
+                    connectTimeouts.inc(); // or waiting for a connection
+                }
+                // will remove it from queue
+                r.finish(new TimeoutException(msg + r.timeOutMs + "ms"));
+                if (r.key != null && r.key.attachment() != r) {
+                    // pipelined, not the head: the response is read and dropped
+                } else if (r.key != null) {
+                    closeQuietly(r.key);
+                } else {
+                    HostPool pool = pools.get(r.addr);
+                    if (pool != null) {
+                        pool.unqueue(r); // the oldest, near the head
+                    }
+                }
+            } else if (!r.refreshTimeout(now)) { // extended by read, re-queued
+                break;
+            }
+        }
+
+        PersistentConn pc;
+        while ((pc = keepalives.peek()) != null) {
+            if (pc.isTimeout(now)) {
+                keepalives.poll();
+                HostPool pool = pools.get(pc.addr);
+                if (pool != null) {
+                    pool.remove(pc.key);
+                }
+                closeQuietly(pc.key);
+            } else {
+                break;
+            }
+        }
+    }
+
+    /**
+     * tricky part
+     * 
+     * http-kit think all connections are keep-alived (since some say it is, but
+     * actually is not). but, some are not, http-kit pick them out **after the
+     * fact** 1. the connection is resued 2. no data received
+     * 
+     */
+    private boolean cleanAndRetryIfBroken(SelectionKey key, Request req) {
+        closeQuietly(key);
+        // keep-alived connection, remote server close it without sending byte
+        if (req.isReuseConn && req.decoder.state == READ_INITIAL
+                && (req.body == null || req.body.rewind())) {
+            for (ByteBuffer b : req.request) {
+                b.position(0); // reset for retry
+            }
+            req.isReuseConn = req.isConnected = false;
+            retries.inc();
+            requests.remove(req); // remove from timeout queue
+            pending.offer(req); // queue for retry
+            selector.wakeup();
+            // retry (re-open a connection to server, sent the request again)
+            return true;
+        }
+        return false;
+    }
+
+    private void doRead(SelectionKey key, long now) {
+        Request req = (Request) key.attachment();
+        SocketChannel ch = (SocketChannel) key.channel();
+        buffer.clear();
+        int read = 0;
+        try {
+            read = req.ssl == null ? ch.read(buffer) : req.ssl.read(ch, buffer);
+        } catch (IOException e) { // The remote forcibly closed the connection
+            if (!cleanAndRetryIfBroken(key, req)) {
+                // os X get Connection reset by peer error,
+                req.finish(e);
+            }
+        }
+
+        if (read == -1) { // read all, remote closed it cleanly
+            if (!cleanAndRetryIfBroken(key, req)) {
+                req.finish();
+            }
+        } else if (read > 0) {
+            for (Request r = req; r != null; r = r.next) {
+                r.onProgress(now); // pipelined: waiting for the one before it
+            }
+            buffer.flip();
+            try {
+                while (req.decoder.decode(buffer) == ALL_READ) {
+                    Request next = req.next;
+                    req.next = null;
+                    req.finish();
+                    if (next == null) {
+                        // TODO keepalive configurable per request: disable by <=0
+                        release(key, req, now);
+                        return;
+                    }
+                    // pipelined, the next response, maybe in the buffer already
+                    next.isConnected = true;
+                    key.attach(next);
+                    req = next;
+                    fill(key, req, pools.get(req.addr), now);
+                }
+                if (req.decoder.listener instanceof IRespStreamListener) {
+                    pauseIfFull(key, req);
+                }
+            } catch (HTTPException e) {
+                closeQuietly(key);
+                req.finish(e);
+            } catch (Exception e) {
+                closeQuietly(key);
+                req.finish(e);
+                HttpUtils.printError("Should not happen!!", e); // decoding
+            }
+        }
+    }
+
+    private void pauseIfFull(SelectionKey key, final Request req) {
+        IRespStreamListener l = (IRespStreamListener) req.decoder.listener;
+        boolean full = l.pauseIfFull(new Runnable() {
+            public void run() { // by the consumer
+                resumes.offer(req);
+                selector.wakeup();
+            }
+        });
+        if (full) {
+            req.paused = true;
+            key.interestOps(0);
+        }
+    }
+
+    private void resume(long now) {
+        Request req;
+        while ((req = resumes.poll()) != null) {
+            req.paused = false;
+            req.onProgress(now);
+            if (!req.isDone() && req.key.isValid() && req.key.attachment() == req) {
+                req.key.interestOps(OP_READ);
+            }
+        }
+    }
+
+    private void closeQuietly(SelectionKey key) {
+        if (!key.channel().isOpen()) {
+            return; // closed, counted
+        }
+        try {
+            key.channel().close();
+        } catch (Exception ignore) {
+        }
+        Request req = (Request) key.attachment();
+        if (req.ssl != null) {
+            req.ssl.release();
+        }
+        HostPool pool = pools.get(req.addr);
+        if (pool != null) {
+            pool.open--;
+            PersistentConn idle = pool.remove(key);
+            if (idle != null) {
+                keepalives.remove(idle);
+            }
+            if (config.pipelining > 1) {
+                pool.busy.remove(key);
+            }
+            if (!pool.waiting.isEmpty() || pool.open == 0) {
+                freed.add(pool); // dispatch waiting, or remove the pool
+            }
+        }
+        // the head is left to the caller
+        Request r = req.next;
+        req.next = null;
+        while (r != null) {
+            Request next = r.next;
+            r.next = null;
+            retryOrFail(r);
+            r = next;
+        }
+    }
+
+    // pipelined on a broken connection: never answered, idempotent, sent again once
+    private void retryOrFail(Request req) {
+        if (req.isDone()) {
+            return; // timeout, cancelled
+        }
+        if (req.retried) {
+            req.finish(new IOException("connection closed, pipelined request not answered"));
+            return;
+        }
+        for (ByteBuffer b : req.request) {
+            b.position(0);
+        }
+        req.retried = true; // not pipelined again
+        req.isReuseConn = req.isConnected = false;
+        req.key = null;
+        req.ssl = null;
+        requests.remove(req);
+        pending.offer(req);
+        selector.wakeup(); // may be after processPending, not to wait for select
+    }
+
+    /**
+     * Send job on the connection after the requests in flight, if both are
+     * idempotent and the depth is not reached. Its response is after theirs
+     */
+    private boolean pipeline(SelectionKey key, Request head, Request job) {
+        if (!job.canPipeline() || !head.canPipeline()) {
+            return false;
+        }
+        int inflight = 1;
+        Request tail = head;
+        while (tail.next != null) {
+            tail = tail.next;
+            inflight++;
+        }
+        if (inflight >= config.pipelining) {
+            return false;
+        }
+        tail.next = job;
+        job.key = key;
+        job.ssl = head.ssl;
+        job.isReuseConn = true; // retried if closed before any byte of it
+        pipelined++;
+        if (head.isConnected && (head.ssl == null || !head.ssl.handshaking)) {
+            key.interestOps(OP_READ | OP_WRITE); // else when connected
+        }
+        return true;
+    }
+
+    // pipeline waiting requests on the connection, up to the depth
+    private void fill(SelectionKey key, Request head, HostPool pool, long now) {
+        if (config.pipelining < 2) {
+            return;
+        }
+        Request job;
+        while ((job = pool.waiting.peek()) != null) {
+            if (job.isDone()) {
+                pool.dequeue(); // timeout
+            } else if (pipeline(key, head, job)) {
+                nextWaiting(pool, now);
+            } else {
+                break;
+            }
+        }
+    }
+
+    // the request is done, the connection is for the next waiting, or idle
+    private void release(SelectionKey key, Request req, long now) {
+        HostPool pool = pools.get(req.addr);
+        Request next = nextWaiting(pool, now);
+        if (next != null) {
+            reuse(key, next);
+            fill(key, next, pool, now);
+        } else {
+            if (config.pipelining > 1) {
+                pool.busy.remove(key);
+            }
+            PersistentConn con = new PersistentConn(now + config.keepalive, req.addr, key);
+            pool.push(con);
+            keepalives.offer(con);
+        }
+    }
+
+    private Request nextWaiting(HostPool pool, long now) {
+        Request req;
+        while ((req = pool.dequeue()) != null) {
+            if (!req.isDone()) { // not timeout
+                long wait = now - req.queuedAt;
+                waited++;
+                waitMs += wait;
+                if (wait > maxWaitMs) {
+                    maxWaitMs = wait;
+                }
+                return req;
+            }
+        }
+        return null;
+    }
+
+    // the requests in flight on the connection, not sent yet
+    private static ByteBuffer[] unsent(Request head) {
+        ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>(4);
+        for (Request r = head; r != null; r = r.next) {
+            for (ByteBuffer b : r.request) {
+                if (b.hasRemaining()) {
+                    buffers.add(b);
+                }
+            }
+        }
+        if (buffers.isEmpty()) {
+            return head.request; // sent, not read yet
+        }
+        return buffers.toArray(new ByteBuffer[buffers.size()]);
+    }
+
+    private void doWrite(SelectionKey key) {
+        Request req = (Request) key.attachment();
+        SocketChannel ch = (SocketChannel) key.channel();
+        try {
+            ByteBuffer[] request = req.next == null ? req.request : unsent(req);
+            boolean sent;
+            if (req.ssl == null) {
+                ch.write(request);
+                sent = !request[request.length - 1].hasRemaining();
+            } else {
+                sent = req.ssl.write(ch, request);
+            }
+            if (sent && req.body != null) {
+                sent = req.body.write(ch, req.ssl); // file, stream: not pipelined
+            }
+            if (sent) {
+                key.interestOps(OP_READ);
+            }
+        } catch (IOException e) {
+            if (!cleanAndRetryIfBroken(key, req)) {
+                req.finish(e);
+            }
+        }
+    }
+
+    private void finishConnect(SelectionKey key, long now) {
+        SocketChannel ch = (SocketChannel) key.channel();
+        Request req = (Request) key.attachment();
+        try {
+            if (ch.finishConnect()) {
+                req.isConnected = true;
+                req.onProgress(now);
+                if (req.ssl == null) {
+                    key.interestOps(OP_WRITE);
+                } else {
+                    req.ssl.engine.beginHandshake();
+                    handshake(key, now);
+                }
+            }
+        } catch (IOException e) {
+            closeQuietly(key); // not added to kee-alive yet;
+            req.finish(e);
+        }
+    }
+
+    private void handshake(SelectionKey key, long now) {
+        Request req = (Request) key.attachment();
+        try {
+            int ops = req.ssl.handshake((SocketChannel) key.channel(), buffer, null);
+            req.onProgress(now);
+            key.interestOps(ops == 0 ? OP_WRITE : ops); // done: send the request
+        } catch (IOException e) { // SSLException included
+            closeQuietly(key);
+            req.finish(e);
+        }
+    }
+
+    // per host:port, JSSE resumes the cached session
+    private SslConn newSsl(Request job) throws IOException {
+        SSLContext ctx = sslContext;
+        if (ctx == null) {
+            try {
+                ctx = SSLContext.getDefault();
+            } catch (Exception e) {
+                throw new IOException("no default SSLContext: " + e.getMessage());
+            }
+        }
+        SSLEngine engine = ctx.createSSLEngine(job.sslHost, job.addr.getPort());
+        engine.setUseClientMode(true);
+        SSLParameters params = engine.getSSLParameters();
+        params.setEndpointIdentificationAlgorithm("HTTPS"); // check host name
+        engine.setSSLParameters(params);
+        return new SslConn(engine, sslBuffers, null); // tasks by the loop
+    }
+
+    private void reuse(SelectionKey key, Request job) {
+        job.ssl = ((Request) key.attachment()).ssl; // of the connection
+        job.isReuseConn = true;
+        job.isConnected = true;
+        job.key = key; // for timeout
+        key.attach(job);
+        key.interestOps(OP_WRITE);
+    }
+
+    // reuse the most recent idle connection, or open one, false if can not
+    private boolean dispatch(HostPool pool, Request job) {
+        PersistentConn con;
+        while ((con = pool.pop()) != null) { // keep alive
+            keepalives.remove(con);
+            if (con.key.isValid()) {
+                poolHits.inc();
+                reuse(con.key, job);
+                if (config.pipelining > 1) {
+                    pool.busy.add(con.key);
+                }
+                return true;
+            }
+            // this should not happen often
+            closeQuietly(con.key);
+        }
+        // fewer sockets: on a busy connection, the least loaded, if there is room
+        if (config.pipelining > 1 && job.canPipeline()) {
+            SelectionKey best = null;
+            int min = config.pipelining;
+            for (SelectionKey k : pool.busy) {
+                Request head = (Request) k.attachment();
+                if (!head.canPipeline()) {
+                    continue;
+                }
+                int inflight = 0;
+                for (Request r = head; r != null; r = r.next) {
+                    inflight++;
+                }
+                if (inflight < min) {
+                    min = inflight;
+                    best = k;
+                }
+            }
+            if (best != null && pipeline(best, (Request) best.attachment(), job)) {
+                return true;
+            }
+        }
+        if (config.maxConnectionsPerHost > 0 && pool.open >= config.maxConnectionsPerHost) {
+            return false;
+        }
+        SocketChannel ch = null;
+        try {
+            job.ssl = job.sslHost == null ? null : newSsl(job);
+            ch = SocketChannel.open();
+            ch.configureBlocking(false);
+            if (job.ssl != null) {
+                ch.socket().setTcpNoDelay(true); // Finished, then the request
+            }
+            // saved for timeout
+            job.key = ch.register(selector, OP_CONNECT, job);
+            ch.connect(job.addr);
+            connects.inc();
+            pool.open++;
+            if (config.pipelining > 1) {
+                pool.busy.add(job.key);
+            }
+        } catch (IOException e) {
+            if (ch != null) {
+                try {
+                    ch.close();
+                } catch (IOException ignore) {
+                }
+            }
+            if (job.ssl != null) {
+                job.ssl.release();
+            }
+            job.finish(e);
+            HttpUtils.printError("Try to connect " + job.addr, e);
+        }
+        return true;
+    }
+
+    private void processPending(long now) {
+        // waiting requests first, FIFO
+        for (int i = 0; i < freed.size(); i++) {
+            HostPool pool = freed.get(i);
+            Request job;
+            while ((job = pool.waiting.peek()) != null) {
+                if (job.isDone()) {
+                    pool.dequeue(); // timeout
+                } else if (dispatch(pool, job)) {
+                    nextWaiting(pool, now);
+                } else {
+                    break;
+                }
+            }
+            if (pool.open == 0 && pool.waiting.isEmpty() && pools.remove(pool.addr, pool)) {
+                owners.remove(pool.addr, this); // may go to another loop
+            }
+        }
+        freed.clear();
+
+        Request job = null;
+        while ((job = pending.poll()) != null) {
+            HostPool pool = pools.get(job.addr);
+            if (pool == null) {
+                ClientLoop owner = owners.putIfAbsent(job.addr, this);
+                if (owner != null && owner != this) {
+                    owner.queue(job); // taken by another loop just now
+                    continue;
+                }
+                pool = new HostPool(job.addr);
+                pools.put(job.addr, pool);
+            }
+            job.loop = this;
+            if (job.isCancelled()) {
+                continue; // lost the hedged race
+            }
+            if (job.hedge != null) {
+                Hedge h = job.hedge;
+                job.hedge = null; // once, not again if retried
+                if (!h.isDecided()) {
+                    h.sendAt = now + h.hedgeAfterMs;
+                    hedges.offer(h);
+                }
+            }
+            job.clients = requests;
+            requests.offer(job); // timeout, even waiting for a connection
+            if (!pool.waiting.isEmpty() || !dispatch(pool, job)) {
+                job.queuedAt = now;
+                pool.enqueue(job);
+            }
+        }
+    }
+
+    public void run() {
+        watch.start();
+        while (running) {
+            try {
+                int select = selector.select(selectTimeout());
+                watch.begin();
+                long now = currentTimeMillis();
+                if (select > 0) {
+                    Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                    Iterator<SelectionKey> ite = selectedKeys.iterator();
+                    while (ite.hasNext()) {
+                        SelectionKey key = ite.next();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        Request req = (Request) key.attachment();
+                        watch.on(key);
+                        if (key.isConnectable()) {
+                            finishConnect(key, now);
+                        } else if (req.ssl != null && req.ssl.handshaking) {
+                            handshake(key, now);
+                        } else {
+                            if (key.isReadable()) {
+                                doRead(key, now);
+                            }
+                            // pipelined requests are sent while reading
+                            if (key.isValid() && key.isWritable()
+                                    && (key.interestOps() & OP_WRITE) != 0) {
+                                doWrite(key);
+                            }
+                        }
+                        ite.remove();
+                    }
+                }
+                resume(now);
+                clearTimeout(now);
+                processPending(now);
+                cancel(now);
+                sendHedges(now);
+                load = requests.size();
+                watch.end();
+            } catch (IOException e) {
+                watch.end();
+                HttpUtils.printError("select exception", e);
+            }
+        }
+        watch.stop();
+        try { // by the loop, keys are not touched by others while selecting
+            selector.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,242 @@
+package org.httpkit.client;
+
+import static org.httpkit.HttpUtils.BUFFER_SIZE;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.httpkit.DynamicBytes;
+
+/**
+ * Decompress gzip or deflate body as it is received, read by read: raw
+ * Inflater, with the gzip header and trailer parsed here. Inflaters and
+ * buffers are per thread, that is per client loop, reused by responses.
+ */
+class ContentDecoder {
+
+    private static final int HEADER = 0, BODY = 1, TRAILER = 2;
+    private static final int POOL_SIZE = 16;
+
+    // gzip header flags, RFC 1952
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+    static class Scratch {
+        final byte[] in = new byte[BUFFER_SIZE]; // direct ByteBuffer to array
+        final byte[] out = new byte[8192];
+        final ArrayList<Inflater> inflaters = new ArrayList<Inflater>(POOL_SIZE);
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private final boolean gzip;
+    private final IFilter filter; // checked as inflated, zip bomb
+    private final Scratch scratch;
+    private final Thread owner; // of the scratch, the loop
+    private final CRC32 crc;
+    private Inflater inflater;
+    private int state = HEADER;
+    private DynamicBytes pending; // header or trailer, can be split by reads
+
+    private ContentDecoder(boolean gzip, IFilter filter) {
+        this.gzip = gzip;
+        this.filter = filter;
+        this.scratch = SCRATCH.get();
+        this.owner = Thread.currentThread();
+        this.crc = gzip ? new CRC32() : null;
+        ArrayList<Inflater> pool = scratch.inflaters;
+        this.inflater = pool.isEmpty() ? new Inflater(true) : pool.remove(pool.size() - 1);
+    }
+
+    /**
+     * @return null if not compressed, or unknown encoding
+     */
+    static ContentDecoder create(String encoding, IFilter filter) {
+        if (encoding == null) {
+            return null;
+        }
+        encoding = encoding.toLowerCase();
+        if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+            return new ContentDecoder(true, filter);
+        } else if ("deflate".equals(encoding) || "x-deflate".equals(encoding)) {
+            return new ContentDecoder(false, filter);
+        }
+        return null;
+    }
+
+    void decode(ByteBuffer buffer, DynamicBytes out) throws IOException, AbortException {
+        if (buffer.hasArray()) {
+            decode(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(),
+                    out);
+            buffer.position(buffer.limit());
+        } else {
+            while (buffer.hasRemaining()) {
+                int n = Math.min(buffer.remaining(), scratch.in.length);
+                buffer.get(scratch.in, 0, n);
+                decode(scratch.in, 0, n, out);
+            }
+        }
+    }
+
+    void decode(byte[] data, int off, int length, DynamicBytes out) throws IOException,
+            AbortException {
+        if (state == HEADER) {
+            if (pending == null) {
+                pending = new DynamicBytes(Math.max(16, length));
+            }
+            pending.append(data, off, length);
+            int header = gzip ? gzipHeader(pending.get(), pending.length())
+                    : zlibHeader(pending.get(), pending.length());
+            if (header == -1) {
+                return; // wait for more
+            }
+            state = BODY;
+            data = pending.get();
+            off = header;
+            length = pending.length() - header;
+            pending = null;
+        }
+        if (state == BODY) {
+            inflate(data, off, length, out);
+        } else {
+            pending.append(data, off, length); // trailer, or garbage after it
+        }
+    }
+
+    private void inflate(byte[] data, int off, int length, DynamicBytes out)
+            throws IOException, AbortException {
+        inflater.setInput(data, off, length);
+        byte[] buffer = scratch.out;
+        try {
+            int n;
+            while ((n = inflater.inflate(buffer)) > 0) {
+                out.append(buffer, n);
+                if (crc != null) {
+                    crc.update(buffer, 0, n);
+                }
+                if (filter != null && !filter.accept(out)) {
+                    throw new AbortException("Rejected when inflating body, length: "
+                            + out.length());
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+        if (inflater.needsDictionary()) {
+            throw new ZipException("preset dictionary is not supported");
+        }
+        if (inflater.finished()) {
+            state = TRAILER;
+            int remaining = inflater.getRemaining();
+            pending = new DynamicBytes(Math.max(8, remaining));
+            pending.append(data, off + length - remaining, remaining);
+        }
+    }
+
+    /**
+     * All received, check it is complete. The inflater is released
+     */
+    void finish() throws IOException {
+        try {
+            if (state == HEADER && pending == null) {
+                return; // empty body: HEAD, 304
+            }
+            if (state != TRAILER) {
+                throw new EOFException("Unexpected end of compressed body");
+            }
+            if (gzip) {
+                byte[] t = pending.get();
+                if (pending.length() < 8) {
+                    throw new EOFException("Unexpected end of gzip trailer");
+                }
+                if (int32(t, 0) != crc.getValue()
+                        || int32(t, 4) != (inflater.getBytesWritten() & 0xffffffffL)) {
+                    throw new ZipException("Corrupt GZIP trailer");
+                }
+            }
+        } finally {
+            release();
+        }
+    }
+
+    void release() {
+        if (inflater == null) {
+            return;
+        }
+        ArrayList<Inflater> pool = scratch.inflaters;
+        // by the same thread (the loop) as created, no scratch for another one
+        if (pool.size() < POOL_SIZE && Thread.currentThread() == owner) {
+            inflater.reset();
+            pool.add(inflater);
+        } else {
+            inflater.end();
+        }
+        inflater = null;
+    }
+
+    // little endian, unsigned
+    private static long int32(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16
+                | (long) (b[off + 3] & 0xff) << 24;
+    }
+
+    /**
+     * @return the header length, -1 if more bytes needed
+     */
+    static int gzipHeader(byte[] b, int length) throws ZipException {
+        if (length < 10) {
+            return -1;
+        }
+        if ((b[0] & 0xff) != 0x1f || (b[1] & 0xff) != 0x8b) {
+            throw new ZipException("Not in GZIP format");
+        }
+        if (b[2] != 8) {
+            throw new ZipException("Unsupported compression method");
+        }
+        int flag = b[3];
+        int p = 10; // MTIME, XFL, OS skipped
+        if ((flag & FEXTRA) != 0) {
+            if (p + 2 > length) {
+                return -1;
+            }
+            p += 2 + ((b[p] & 0xff) | (b[p + 1] & 0xff) << 8);
+        }
+        if ((flag & FNAME) != 0) {
+            do {
+                if (p >= length) {
+                    return -1;
+                }
+            } while (b[p++] != 0);
+        }
+        if ((flag & FCOMMENT) != 0) {
+            do {
+                if (p >= length) {
+                    return -1;
+                }
+            } while (b[p++] != 0);
+        }
+        if ((flag & FHCRC) != 0) {
+            p += 2;
+        }
+        return p <= length ? p : -1;
+    }
+
+    // deflate should be zlib wrapped, some servers send it raw
+    static int zlibHeader(byte[] b, int length) {
+        if (length < 2) {
+            return -1;
+        }
+        int cmf = b[0] & 0xff;
+        boolean zlib = (cmf & 0x0f) == 8 && ((cmf << 8) | (b[1] & 0xff)) % 31 == 0;
+        return zlib ? 2 : 0; // adler32 in the trailer is not checked
+    }
+}
@@ -18,20 +18,81 @@ enum State {
 public class Decoder {
     public static final int MAX_LINE = 4096;
 
+    // the response of a done request: read and dropped
+    private static final IRespBufferListener DISCARD = new IRespBufferListener() {
+        public void onBodyReceived(ByteBuffer buf) {
+            buf.position(buf.limit());
+        }
+
+        public void onBodyReceived(byte[] buf, int length) {
+        }
+
+        public void onCompleted() {
+        }
+
+        public void onHeadersReceived(Map<String, String> headers) {
+        }
+
+        public void onInitialLineReceived(HttpVersion version, HttpStatus status) {
+        }
+
+        public void onThrowable(Throwable t) {
+        }
+    };
+
     private final Map<String, String> headers = new TreeMap<String, String>();
     // package visible
-    final IRespListener listener;
+    IRespListener listener;
+    private IRespBufferListener bufferListener; // null if not
+    private byte[] bodyBuffer; // copy body for byte[] listener, lazily
     final byte[] lineBuffer = new byte[MAX_LINE];
     int lineBufferCnt = 0;
     int readRemaining = 0;
     State state = READ_INITIAL;
     private final HttpMethod method;
+    private boolean noBody = false; // 204, 304: no body, whatever the headers say
 
     public Decoder(IRespListener listener, HttpMethod method) {
         this.listener = listener;
+        if (listener instanceof IRespBufferListener) {
+            this.bufferListener = (IRespBufferListener) listener;
+        } else {
+            this.bufferListener = null;
+        }
         this.method = method;
     }
 
+    /**
+     * The request is done (timeout, cancelled) before its response: pipelined,
+     * the response is still read, for the next one behind it
+     */
+    void discard() {
+        listener = bufferListener = DISCARD;
+    }
+
+    // pass length bytes of buffer to listener, buffer's position is advanced
+    private void onBody(ByteBuffer buffer, int length) throws AbortException {
+        if (bufferListener != null) {
+            int limit = buffer.limit();
+            int end = buffer.position() + length;
+            buffer.limit(end);
+            try {
+                bufferListener.onBodyReceived(buffer);
+            } finally {
+                buffer.limit(limit);
+                buffer.position(end);
+            }
+        } else {
+            if (bodyBuffer == null || bodyBuffer.length < length) {
+                // once or twice per response, not per read
+                int size = bodyBuffer == null ? 1024 : bodyBuffer.length * 2;
+                bodyBuffer = new byte[Math.max(length, Math.min(size, BUFFER_SIZE))];
+            }
+            buffer.get(bodyBuffer, 0, length);
+            listener.onBodyReceived(bodyBuffer, length);
+        }
+    }
+
     private void parseInitialLine(String sb) throws ProtocolException, AbortException {
         int aStart;
         int aEnd;
@@ -59,6 +120,7 @@ public class Decoder {
                     version = HTTP_1_0;
                 }
 
+                noBody = status == 204 || status == 304;
                 listener.onInitialLineReceived(version, s);
                 state = READ_HEADER;
             } catch (NumberFormatException e) {
@@ -73,8 +135,6 @@ public class Decoder {
             AbortException {
         String line;
         int toRead;
-        // fine, JVM is very fast for short lived var
-        byte[] bodyBuffer = new byte[BUFFER_SIZE];
         while (buffer.hasRemaining() && state != State.ALL_READ) {
             switch (state) {
             case READ_INITIAL:
@@ -100,8 +160,7 @@ public class Decoder {
                 break;
             case READ_FIXED_LENGTH_CONTENT:
                 toRead = Math.min(buffer.remaining(), readRemaining);
-                buffer.get(bodyBuffer, 0, toRead);
-                listener.onBodyReceived(bodyBuffer, toRead);
+                onBody(buffer, toRead);
                 readRemaining -= toRead;
                 if (readRemaining == 0) {
                     state = ALL_READ;
@@ -109,8 +168,7 @@ public class Decoder {
                 break;
             case READ_CHUNKED_CONTENT:
                 toRead = Math.min(buffer.remaining(), readRemaining);
-                buffer.get(bodyBuffer, 0, toRead);
-                listener.onBodyReceived(bodyBuffer, toRead);
+                onBody(buffer, toRead);
                 readRemaining -= toRead;
                 if (readRemaining == 0) {
                     state = READ_CHUNK_DELIMITER;
@@ -125,9 +183,7 @@ public class Decoder {
                 state = READ_CHUNK_SIZE;
                 break;
             case READ_VARIABLE_LENGTH_CONTENT:
-                toRead = buffer.remaining();
-                buffer.get(bodyBuffer, 0, toRead);
-                listener.onBodyReceived(bodyBuffer, toRead);
+                onBody(buffer, buffer.remaining());
                 break;
             }
         }
@@ -150,7 +206,7 @@ public class Decoder {
         if (line == null)
             return; // data is not received enough. for next run
         listener.onHeadersReceived(headers);
-        if (method == HttpMethod.HEAD) {
+        if (method == HttpMethod.HEAD || noBody) {
             state = ALL_READ;
             return;
         }
@@ -0,0 +1,211 @@
+package org.httpkit.client;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.httpkit.HttpUtils;
+import org.httpkit.PrefixThreadFactory;
+
+/**
+ * Resolve host names asynchronously: looked up by a small thread pool, never by
+ * the caller; cached with a TTL, failures too (shorter), LRU bounded.
+ * Concurrent lookups of a host are coalesced into one.
+ *
+ * InetAddress does not expose the TTL of DNS records, it is configured.
+ */
+public class DnsCache {
+
+    public interface Callback {
+        void onResolved(InetAddress addr);
+
+        void onFailed(UnknownHostException e);
+    }
+
+    static class Resolved {
+        final InetAddress addr; // null if failed
+        final UnknownHostException error;
+        final long expires;
+
+        Resolved(InetAddress addr, UnknownHostException error, long expires) {
+            this.addr = addr;
+            this.error = error;
+            this.expires = expires;
+        }
+    }
+
+    private final IResolver resolver;
+    private final int ttl, negativeTtl; // ms
+    private final ExecutorService pool;
+
+    // guarded by itself, inflight too
+    private final LinkedHashMap<String, Resolved> cache;
+    private final Map<String, List<Callback>> inflight = new HashMap<String, List<Callback>>();
+
+    // stats
+    private volatile long hits = 0, misses = 0;
+
+    /**
+     * @param ttl
+     *            cache a resolved address for, ms. <= 0 no cache
+     * @param negativeTtl
+     *            cache a failure for, ms
+     * @param maxEntries
+     *            the least recently used host is evicted
+     * @param threads
+     *            max concurrent lookups
+     */
+    public DnsCache(IResolver resolver, int ttl, int negativeTtl, final int maxEntries,
+            int threads) {
+        this.resolver = resolver;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.cache = new LinkedHashMap<String, Resolved>(64, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Resolved> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new PrefixThreadFactory(
+                        "client-dns-"));
+        pool.allowCoreThreadTimeOut(true);
+        this.pool = pool;
+    }
+
+    public DnsCache(IResolver resolver) {
+        this(resolver, 60000, 10000, 4096, 4);
+    }
+
+    // IPv4 or IPv6 literal, InetAddress parses it, no lookup
+    private static boolean isLiteral(String host) {
+        if (host.indexOf(':') != -1) {
+            return true;
+        }
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c != '.' && (c < '0' || c > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The callback is called by the caller thread if cached, or by a lookup
+     * thread
+     */
+    public void resolve(final String host, Callback cb) {
+        if (isLiteral(host)) {
+            try {
+                cb.onResolved(InetAddress.getByName(host));
+            } catch (UnknownHostException e) {
+                cb.onFailed(e);
+            }
+            return;
+        }
+        final String key = host.toLowerCase();
+        Resolved e;
+        synchronized (cache) {
+            e = cache.get(key);
+            if (e != null && e.expires < System.currentTimeMillis()) {
+                cache.remove(key);
+                e = null;
+            }
+            if (e == null) {
+                misses++;
+                List<Callback> waiting = inflight.get(key);
+                if (waiting != null) {
+                    waiting.add(cb); // looking up
+                    return;
+                }
+                waiting = new ArrayList<Callback>(2);
+                waiting.add(cb);
+                inflight.put(key, waiting);
+            } else {
+                hits++;
+            }
+        }
+        if (e != null) {
+            callback(cb, e);
+            return;
+        }
+        pool.submit(new Runnable() {
+            public void run() {
+                lookup(host, key);
+            }
+        });
+    }
+
+    private void lookup(String host, String key) {
+        Resolved e;
+        long now = System.currentTimeMillis();
+        try {
+            e = new Resolved(resolver.resolve(host), null, now + ttl);
+        } catch (UnknownHostException ex) {
+            e = new Resolved(null, ex, now + negativeTtl);
+        } catch (Exception ex) { // a bad resolver
+            UnknownHostException uhe = new UnknownHostException(host + ": " + ex.getMessage());
+            uhe.initCause(ex);
+            e = new Resolved(null, uhe, now + negativeTtl);
+        }
+        List<Callback> waiting;
+        synchronized (cache) {
+            waiting = inflight.remove(key);
+            if ((e.addr != null ? ttl : negativeTtl) > 0) {
+                cache.put(key, e);
+            }
+        }
+        for (Callback cb : waiting) {
+            callback(cb, e);
+        }
+    }
+
+    private static void callback(Callback cb, Resolved e) {
+        try {
+            if (e.addr != null) {
+                cb.onResolved(e.addr);
+            } else {
+                cb.onFailed(e.error);
+            }
+        } catch (Exception ex) {
+            HttpUtils.printError("dns callback", ex);
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public void stop() {
+        pool.shutdownNow();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new TreeMap<String, Object>();
+        synchronized (cache) {
+            stats.put("entries", cache.size());
+            stats.put("inflight", inflight.size());
+        }
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        return stats;
+    }
+
+    public String toString() {
+        return "DnsCache{resolver=" + resolver + ", ttl=" + ttl + "ms, negativeTtl="
+                + negativeTtl + "ms}";
+    }
+}
@@ -0,0 +1,52 @@
+package org.httpkit.client;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.httpkit.BytesInputStream;
+
+/**
+ * Run the response handler with the result, on the worker pool
+ */
+class Handler implements Runnable {
+
+    private final int status;
+    private final Map<String, String> headers;
+    private final Object body;
+    private final Throwable e;
+    private final IResponseHandler handler;
+
+    public Handler(IResponseHandler handler, int status, Map<String, String> headers,
+            Object body, Throwable e) {
+        this.status = status;
+        this.headers = headers;
+        this.body = body;
+        this.e = e;
+        this.handler = handler;
+    }
+
+    public Handler(IResponseHandler handler, Throwable e) {
+        this(handler, 0, null, null, e);
+    }
+
+    public Handler(IResponseHandler handler, int status, Map<String, String> headers,
+            Object body) {
+        this(handler, status, headers, body, null);
+    }
+
+    // the same response for another handler: headers copied, a stream of the same bytes
+    Handler to(IResponseHandler other) {
+        Object b = body instanceof BytesInputStream ? ((BytesInputStream) body).duplicate()
+                : body;
+        Map<String, String> h = headers == null ? null : new TreeMap<String, String>(headers);
+        return new Handler(other, status, h, b, e);
+    }
+
+    public void run() {
+        if (e != null) {
+            handler.onThrowable(e);
+        } else {
+            handler.onSuccess(status, headers, body);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.httpkit.client;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.httpkit.HttpStatus;
+import org.httpkit.HttpVersion;
+import org.httpkit.PriorityQueue;
+
+/**
+ * A hedged request: sent again if no response in hedgeAfterMs, to the same or
+ * an alternate URL. The first completed wins, the other is cancelled: closed,
+ * or back to the pool if nothing is sent yet. If the primary fails before
+ * that, the backup is sent at once; the error is reported if both fail.
+ *
+ * Each attempt has its own listener, the response is buffered there, only the
+ * winner's completion is passed on. For idempotent requests
+ */
+abstract class Hedge implements Comparable<Hedge>, PriorityQueue.Indexed {
+
+    final class Attempt implements IRespBufferListener {
+        final IRespListener listener;
+        private volatile Request req; // set when queued
+
+        Attempt(IRespListener listener) {
+            this.listener = listener;
+        }
+
+        // by HttpClient, before queued to the loop
+        void queued(Request r) {
+            if (this == primary) {
+                r.hedge = Hedge.this; // the loop sends the backup when due
+            }
+            req = r;
+            Attempt w = winner.get();
+            if (w != null && w != this) {
+                r.cancel(); // lost when resolving
+            }
+        }
+
+        private void checkLost() throws AbortException {
+            Attempt w = winner.get();
+            if (w != null && w != this) {
+                throw new AbortException("hedged request, the other won");
+            }
+        }
+
+        public void onInitialLineReceived(HttpVersion version, HttpStatus status)
+                throws AbortException {
+            checkLost();
+            listener.onInitialLineReceived(version, status);
+        }
+
+        public void onHeadersReceived(Map<String, String> headers) throws AbortException {
+            checkLost();
+            listener.onHeadersReceived(headers);
+        }
+
+        public void onBodyReceived(byte[] buf, int length) throws AbortException {
+            checkLost();
+            listener.onBodyReceived(buf, length);
+        }
+
+        public void onBodyReceived(ByteBuffer buf) throws AbortException {
+            checkLost();
+            if (listener instanceof IRespBufferListener) {
+                ((IRespBufferListener) listener).onBodyReceived(buf);
+            } else {
+                byte[] bytes = new byte[buf.remaining()];
+                buf.get(bytes);
+                listener.onBodyReceived(bytes, bytes.length);
+            }
+        }
+
+        public void onCompleted() {
+            if (winner.compareAndSet(null, this)) {
+                Attempt other = this == primary ? backup : primary;
+                Request r = other.req;
+                if (r != null) {
+                    r.cancel();
+                }
+                won(this == backup);
+                listener.onCompleted();
+            }
+        }
+
+        public void onThrowable(Throwable t) {
+            if (winner.get() != null) {
+                return; // cancelled, or aborted after lost
+            }
+            int n = failed.incrementAndGet();
+            if (this == primary && sendBackup()) {
+                return; // not waiting for the timer
+            }
+            if (n == 2 && winner.compareAndSet(null, this)) {
+                listener.onThrowable(t);
+            }
+        }
+    }
+
+    final int hedgeAfterMs;
+    final Attempt primary, backup;
+    private final AtomicReference<Attempt> winner = new AtomicReference<Attempt>();
+    private final AtomicBoolean backupSent = new AtomicBoolean(false);
+    private final AtomicInteger failed = new AtomicInteger(0);
+
+    long sendAt; // by the loop of the primary
+    private int heapIndex = -1;
+
+    Hedge(int hedgeAfterMs, IRespListener primary, IRespListener backup) {
+        this.hedgeAfterMs = hedgeAfterMs;
+        this.primary = new Attempt(primary);
+        this.backup = new Attempt(backup);
+    }
+
+    /**
+     * Send the backup, if not sent and not decided yet
+     *
+     * @return true if sent by this call
+     */
+    boolean sendBackup() {
+        if (winner.get() == null && backupSent.compareAndSet(false, true)) {
+            send(backup);
+            return true;
+        }
+        return false;
+    }
+
+    boolean isDecided() {
+        return winner.get() != null;
+    }
+
+    /** queue the backup request, by HttpClient */
+    abstract void send(Attempt backup);
+
+    /** the first completed, for stats */
+    abstract void won(boolean backup);
+
+    public int compareTo(Hedge o) {
+        return (int) (sendAt - o.sendAt);
+    }
+
+    public int getHeapIndex() {
+        return heapIndex;
+    }
+
+    public void setHeapIndex(int index) {
+        heapIndex = index;
+    }
+}
@@ -0,0 +1,106 @@
+package org.httpkit.client;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Connections to a host. Modified by the client loop only, counters are
+ * volatile for stats.
+ *
+ * Idle connections are a LIFO stack: the most recently used is reused first,
+ * the others can time out and be closed. Requests wait FIFO when max
+ * connections are open.
+ *
+ * With pipelining, busy connections are kept too, a request may be sent on
+ * one of them.
+ *
+ * Both are removed in O(1) when a connection is closed: the idle stack is
+ * linked through PersistentConn, found by its key.
+ */
+class HostPool {
+    final InetSocketAddress addr;
+    private final HashMap<SelectionKey, PersistentConn> idle =
+            new HashMap<SelectionKey, PersistentConn>();
+    private PersistentConn top; // the most recently idle
+    final LinkedList<Request> waiting = new LinkedList<Request>();
+    // open, not idle. only if pipelining
+    final LinkedHashSet<SelectionKey> busy = new LinkedHashSet<SelectionKey>();
+
+    volatile int open = 0; // connecting, busy or idle
+    volatile int idleCount = 0;
+    volatile int waitingCount = 0;
+
+    public HostPool(InetSocketAddress addr) {
+        this.addr = addr;
+    }
+
+    void push(PersistentConn conn) {
+        conn.older = top;
+        if (top != null) {
+            top.newer = conn;
+        }
+        top = conn;
+        idle.put(conn.key, conn);
+        idleCount = idle.size();
+    }
+
+    PersistentConn pop() {
+        PersistentConn conn = top;
+        if (conn != null) {
+            unlink(conn);
+        }
+        return conn;
+    }
+
+    // the idle connection of the key, removed
+    PersistentConn remove(SelectionKey key) {
+        PersistentConn conn = idle.get(key);
+        if (conn != null) {
+            unlink(conn);
+        }
+        return conn;
+    }
+
+    private void unlink(PersistentConn conn) {
+        if (conn.newer != null) {
+            conn.newer.older = conn.older;
+        } else {
+            top = conn.older;
+        }
+        if (conn.older != null) {
+            conn.older.newer = conn.newer;
+        }
+        conn.newer = conn.older = null;
+        idle.remove(conn.key);
+        idleCount = idle.size();
+    }
+
+    void enqueue(Request req) {
+        waiting.add(req);
+        waitingCount = waiting.size();
+    }
+
+    Request dequeue() {
+        Request req = waiting.poll();
+        waitingCount = waiting.size();
+        return req;
+    }
+
+    void unqueue(Request req) {
+        waiting.remove(req);
+        waitingCount = waiting.size();
+    }
+
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new TreeMap<String, Object>();
+        stats.put("open", open);
+        stats.put("idle", idleCount);
+        stats.put("waiting", waitingCount);
+        return stats;
+    }
+}
@@ -1,194 +1,241 @@
 package org.httpkit.client;
 
-import static java.lang.System.currentTimeMillis;
-import static java.nio.channels.SelectionKey.OP_CONNECT;
-import static java.nio.channels.SelectionKey.OP_READ;
-import static java.nio.channels.SelectionKey.OP_WRITE;
-import static org.httpkit.HttpUtils.BUFFER_SIZE;
 import static org.httpkit.HttpUtils.SP;
-import static org.httpkit.HttpUtils.getServerAddr;
-import static org.httpkit.client.State.ALL_READ;
-import static org.httpkit.client.State.READ_INITIAL;
+import static org.httpkit.HttpUtils.getPort;
 
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
-import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
 
 import org.httpkit.*;
-import org.httpkit.PriorityQueue;
 import org.httpkit.ProtocolException;
+import org.httpkit.metrics.Gauge;
+import org.httpkit.metrics.Metrics;
 
-public final class HttpClient implements Runnable {
+public final class HttpClient {
     private static final AtomicInteger ID = new AtomicInteger(0);
-
-    private final Queue<Request> pending = new ConcurrentLinkedQueue<Request>();
-    private final PriorityQueue<Request> requests = new PriorityQueue<Request>();
-    private final PriorityQueue<PersistentConn> keepalives = new PriorityQueue<PersistentConn>();
-
-    private volatile boolean running = true;
+    // a new host goes to the least loaded loop, if the hashed one is busier
+    private static final int STEAL_THRESHOLD = 64;
 
     private final HttpClientConfig config;
-    // shared, single thread
-    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
-    private final Selector selector;
+    private final DnsCache dns;
+    private final ResponseCache cache; // null: off
+    private final SingleFlight singleFlight; // null: off
+    private final ClientLoop[] loops;
+    private final ConcurrentMap<InetSocketAddress, ClientLoop> owners =
+            new ConcurrentHashMap<InetSocketAddress, ClientLoop>();
+    // hedged requests, duplicates sent, won by the duplicate
+    private final AtomicLong hedgeRequests = new AtomicLong(0);
+    private final AtomicLong hedged = new AtomicLong(0);
+    private final AtomicLong hedgeWins = new AtomicLong(0);
+    private final Metrics metrics = new Metrics();
 
     public HttpClient(HttpClientConfig config) throws IOException {
+        this(config, new DnsCache(IResolver.SYSTEM));
+    }
+
+    public HttpClient(HttpClientConfig config, DnsCache dns) throws IOException {
+        this(config, dns, null);
+    }
+
+    /**
+     * @param sslContext
+     *            for https, null for SSLContext.getDefault()
+     */
+    public HttpClient(HttpClientConfig config, DnsCache dns, SSLContext sslContext)
+            throws IOException {
+        this(config, dns, sslContext, null);
+    }
+
+    /**
+     * @param cache
+     *            for GET responses, null for none
+     */
+    public HttpClient(HttpClientConfig config, DnsCache dns, SSLContext sslContext,
+            ResponseCache cache) throws IOException {
+        this(config, dns, sslContext, cache, null);
+    }
+
+    /**
+     * @param singleFlight
+     *            identical GET, HEAD in flight are sent once, null for off
+     */
+    public HttpClient(HttpClientConfig config, DnsCache dns, SSLContext sslContext,
+            ResponseCache cache, SingleFlight singleFlight) throws IOException {
         this.config = config;
+        this.dns = dns;
+        this.cache = cache;
+        this.singleFlight = singleFlight;
         int id = ID.incrementAndGet();
         String name = "client-loop";
         if (id > 1) {
             name = name + "#" + id;
         }
-        selector = Selector.open();
-        Thread t = new Thread(this, name);
-        t.setDaemon(true);
-        t.start();
+        loops = new ClientLoop[config.ioThreads];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new ClientLoop(config, loops.length == 1 ? name : name + "-" + i,
+                    owners, sslContext, metrics);
+        }
+        metrics.gauge("in-flight", new Gauge() {
+            public long get() {
+                long n = 0;
+                for (ClientLoop loop : loops) {
+                    n += loop.load; // or waiting for a connection
+                }
+                return n;
+            }
+        });
     }
 
-    private void clearTimeout(long now) {
-        Request r;
-        while ((r = requests.peek()) != null) {
-            if (r.isTimeout(now)) {
-                String msg = "connect timeout: ";
-                if (r.isConnected) {
-                    msg = "read timeout: ";
-                }
-                // will remove it from queue
-                r.finish(new TimeoutException(msg + r.timeOutMs + "ms"));
-                if (r.key != null) {
-                    closeQuietly(r.key);
-                }
-            } else {
-                break;
+    // the loop owns the host, or one for a new host
+    private ClientLoop loopFor(InetSocketAddress addr) {
+        if (loops.length == 1) {
+            return loops[0];
+        }
+        ClientLoop owner = owners.get(addr);
+        if (owner != null) {
+            return owner; // connections are there
+        }
+        ClientLoop home = loops[(addr.hashCode() & 0x7fffffff) % loops.length];
+        ClientLoop least = home;
+        for (ClientLoop loop : loops) {
+            if (loop.load < least.load) {
+                least = loop;
             }
         }
+        return home.load - least.load > STEAL_THRESHOLD ? least : home;
+    }
 
-        PersistentConn pc;
-        while ((pc = keepalives.peek()) != null) {
-            if (pc.isTimeout(now)) {
-                closeQuietly(pc.key);
-                keepalives.poll();
-            } else {
-                break;
+    public void exec(String url, HttpMethod method, Map<String, Object> headers, Object body,
+            int timeoutMs, IRespListener cb) {
+        if (cache != null && method == HttpMethod.GET && body == null
+                && !(cb instanceof IRespStreamListener)) {
+            cache.get(this, url, headers, timeoutMs, cb);
+            return;
+        }
+        if (singleFlight != null && (method == HttpMethod.GET || method == HttpMethod.HEAD)
+                && body == null && cb instanceof RespListener
+                && singleFlight.join(method, url, headers, (RespListener) cb)) {
+            return; // the response of the one in flight
+        }
+        URI uri = parse(url, cb);
+        if (uri == null) {
+            return;
+        }
+        ByteBuffer bodyBuffer = null;
+        RequestBody streamed;
+        try {
+            streamed = RequestBody.of(body); // not copied to the heap
+            if (streamed == null) {
+                bodyBuffer = bodyBuffer(body);
             }
+        } catch (IOException e) {
+            cb.onThrowable(e);
+            return;
         }
+        send(uri, method, headers, bodyBuffer, streamed, timeoutMs, cb, null);
     }
 
-    /**
-     * tricky part
-     * 
-     * http-kit think all connections are keep-alived (since some say it is, but
-     * actually is not). but, some are not, http-kit pick them out **after the
-     * fact** 1. the connection is resued 2. no data received
-     * 
-     */
-    private boolean cleanAndRetryIfBroken(SelectionKey key, Request req) {
-        closeQuietly(key);
-        keepalives.remove(key);
-        // keep-alived connection, remote server close it without sending byte
-        if (req.isReuseConn && req.decoder.state == READ_INITIAL) {
-            for (ByteBuffer b : req.request) {
-                b.position(0); // reset for retry
-            }
-            req.isReuseConn = false;
-            requests.remove(req); // remove from timeout queue
-            pending.offer(req); // queue for retry
-            selector.wakeup();
-            // retry (re-open a connection to server, sent the request again)
-            return true;
+    // GET, not by the cache: a miss or revalidation of it
+    void fetch(String url, Map<String, Object> headers, int timeoutMs, IRespListener cb) {
+        URI uri = parse(url, cb);
+        if (uri != null) {
+            send(uri, HttpMethod.GET, headers, null, null, timeoutMs, cb, null);
         }
-        return false;
     }
 
-    private void doRead(SelectionKey key, long now) {
-        Request req = (Request) key.attachment();
-        SocketChannel ch = (SocketChannel) key.channel();
-        buffer.clear();
-        int read = 0;
+    /**
+     * Hedged request, to cut tail latency: if no response in hedgeAfterMs, a
+     * duplicate is sent to alternateUrl (the same URL if null). The first
+     * completed wins, the other is cancelled. For idempotent requests only.
+     *
+     * @throws IllegalArgumentException
+     *             if the method is not idempotent, like POST
+     *
+     * @param cb
+     *            for the first request
+     * @param backupCb
+     *            for the duplicate, only one of them is completed
+     */
+    public void execHedged(String url, String alternateUrl, final HttpMethod method,
+            final Map<String, Object> headers, Object body, final int timeoutMs,
+            int hedgeAfterMs, IRespListener cb, IRespListener backupCb) {
+        if (!method.isIdempotent()) { // would be done twice
+            throw new IllegalArgumentException("not to hedge " + method + ", not idempotent");
+        }
+        URI uri = parse(url, cb);
+        if (uri == null) {
+            return;
+        }
+        final URI backupUri = alternateUrl == null ? uri : parse(alternateUrl, cb);
+        if (backupUri == null) {
+            return;
+        }
+        final ByteBuffer bodyBuffer; // sent twice, each a duplicate. in memory
         try {
-            read = ch.read(buffer);
-        } catch (IOException e) { // The remote forcibly closed the connection
-            if (!cleanAndRetryIfBroken(key, req)) {
-                // os X get Connection reset by peer error,
-                req.finish(e);
-            }
+            bodyBuffer = bodyBuffer(body);
+        } catch (IOException e) {
+            cb.onThrowable(e);
+            return;
         }
-
-        if (read == -1) { // read all, remote closed it cleanly
-            if (!cleanAndRetryIfBroken(key, req)) {
-                req.finish();
+        hedgeRequests.incrementAndGet();
+        Hedge hedge = new Hedge(hedgeAfterMs, cb, backupCb) {
+            void send(Attempt backup) {
+                hedged.incrementAndGet();
+                HttpClient.this.send(backupUri, method, headers, duplicate(bodyBuffer), null,
+                        timeoutMs, backup, backup);
             }
-        } else if (read > 0) {
-            req.onProgress(now);
-            buffer.flip();
-            try {
-                if (req.decoder.decode(buffer) == ALL_READ) {
-                    req.finish();
-                    // TODO keepalive configurable per request: disable by <=0
-                    keepalives.offer(new PersistentConn(now + config.keepalive, req.addr, key));
+
+            void won(boolean backup) {
+                if (backup) {
+                    hedgeWins.incrementAndGet();
                 }
-            } catch (HTTPException e) {
-                closeQuietly(key);
-                req.finish(e);
-            } catch (Exception e) {
-                closeQuietly(key);
-                req.finish(e);
-                HttpUtils.printError("Should not happen!!", e); // decoding
             }
-        }
+        };
+        send(uri, method, headers, duplicate(bodyBuffer), null, timeoutMs, hedge.primary,
+                hedge.primary);
     }
 
-    private void closeQuietly(SelectionKey key) {
-        try {
-            key.channel().close();
-        } catch (Exception ignore) {
+    // a ByteBuffer as is, direct or not: a view, from its position
+    private static ByteBuffer bodyBuffer(Object body) throws IOException {
+        if (body instanceof ByteBuffer) {
+            return ((ByteBuffer) body).slice();
         }
+        return HttpUtils.bodyBuffer(body);
     }
 
-    private void doWrite(SelectionKey key) {
-        Request req = (Request) key.attachment();
-        SocketChannel ch = (SocketChannel) key.channel();
-        try {
-            ByteBuffer[] request = req.request;
-            ch.write(request);
-            if (!request[request.length - 1].hasRemaining()) {
-                key.interestOps(OP_READ);
-            }
-        } catch (IOException e) {
-            if (!cleanAndRetryIfBroken(key, req)) {
-                req.finish(e);
-            }
-        }
+    private static ByteBuffer duplicate(ByteBuffer b) {
+        return b == null ? null : b.duplicate();
     }
 
-    public void exec(String url, HttpMethod method, Map<String, Object> headers, Object body,
-            int timeoutMs, IRespListener cb) {
+    // null if not http or https, cb is called
+    private static URI parse(String url, IRespListener cb) {
         URI uri;
         try {
             uri = new URI(url);
         } catch (URISyntaxException e) {
             cb.onThrowable(e);
-            return;
+            return null;
         }
-        if (!"http".equals(uri.getScheme())) {
+        String scheme = uri.getScheme();
+        if (!"http".equals(scheme) && !"https".equals(scheme)) {
             cb.onThrowable(new ProtocolException(uri.getScheme() + " is not supported"));
-            return;
-        }
-
-        InetSocketAddress addr;
-        try {
-            addr = getServerAddr(uri);
-        } catch (UnknownHostException e) {
-            cb.onThrowable(e);
-            return;
+            return null;
         }
+        return uri;
+    }
 
+    private void send(URI uri, final HttpMethod method, Map<String, Object> headers,
+            ByteBuffer body, final RequestBody streamed, int timeoutMs, final IRespListener cb,
+            final Hedge.Attempt attempt) {
         // copy to modify, normalize header
         headers = HttpUtils.camelCase(headers);
         headers.put("Host", HttpUtils.getHost(uri));
@@ -199,26 +246,36 @@ public final class HttpClient implements Runnable {
         if (!headers.containsKey("Accept-Encoding"))
             headers.put("Accept-Encoding", "gzip, deflate");
 
-        ByteBuffer request[];
-        try {
-            request = encode(method, headers, body, uri);
-        } catch (IOException e) {
-            cb.onThrowable(e);
-            return;
-        }
-        if (timeoutMs == -1) {
-            timeoutMs = config.timeOutMs;
-        }
+        final ByteBuffer request[] = encode(method, headers, body, streamed, uri);
+        final int timeout = timeoutMs == -1 ? config.timeOutMs : timeoutMs;
+        final int port = getPort(uri);
+        final String sslHost = "https".equals(uri.getScheme()) ? uri.getHost() : null;
+        // never block the caller, queued when resolved
+        dns.resolve(uri.getHost(), new DnsCache.Callback() {
+            public void onResolved(InetAddress host) {
+                InetSocketAddress addr = new InetSocketAddress(host, port);
+                Request req = new Request(addr, sslHost, request, cb, timeout, method);
+                req.body = streamed;
+                if (attempt != null) {
+                    attempt.queued(req);
+                }
+                loopFor(addr).queue(req);
+            }
 
-        pending.offer(new Request(addr, request, cb, requests, timeoutMs, method));
-        selector.wakeup();
+            public void onFailed(UnknownHostException e) {
+                if (streamed != null) {
+                    streamed.close();
+                }
+                cb.onThrowable(e);
+            }
+        });
     }
 
-    private ByteBuffer[] encode(HttpMethod method, Map<String, Object> headers, Object body,
-            URI uri) throws IOException {
-        ByteBuffer bodyBuffer = HttpUtils.bodyBuffer(body);
-
-        if (body != null) {
+    private ByteBuffer[] encode(HttpMethod method, Map<String, Object> headers,
+            ByteBuffer bodyBuffer, RequestBody streamed, URI uri) {
+        if (streamed != null) {
+            headers.put("Content-Length", Long.toString(streamed.length()));
+        } else if (bodyBuffer != null) {
             headers.put("Content-Length", Integer.toString(bodyBuffer.remaining()));
         } else {
             headers.put("Content-Length", "0");
@@ -236,88 +293,72 @@ public final class HttpClient implements Runnable {
         }
     }
 
-    private void finishConnect(SelectionKey key, long now) {
-        SocketChannel ch = (SocketChannel) key.channel();
-        Request req = (Request) key.attachment();
-        try {
-            if (ch.finishConnect()) {
-                req.isConnected = true;
-                req.onProgress(now);
-                key.interestOps(OP_WRITE);
-            }
-        } catch (IOException e) {
-            closeQuietly(key); // not added to kee-alive yet;
-            req.finish(e);
+    public void stop() throws IOException {
+        for (ClientLoop loop : loops) {
+            loop.stop();
         }
+        dns.stop();
+        metrics.unregister();
     }
 
-    private void processPending() {
-        Request job = null;
-        while ((job = pending.poll()) != null) {
-            PersistentConn con = keepalives.remove(job.addr);
-            if (con != null) { // keep alive
-                SelectionKey key = con.key;
-                if (key.isValid()) {
-                    job.isReuseConn = true;
-                    key.attach(job);
-                    key.interestOps(OP_WRITE);
-                    requests.offer(job);
-                    continue;
-                } else {
-                    // this should not happen often
-                    closeQuietly(key);
-                }
-            }
-            try {
-                SocketChannel ch = SocketChannel.open();
-                ch.configureBlocking(false);
-                // saved for timeout
-                job.key = ch.register(selector, OP_CONNECT, job);
-                ch.connect(job.addr);
-                requests.offer(job);
-            } catch (IOException e) {
-                job.finish(e);
-                HttpUtils.printError("Try to connect " + job.addr, e);
-            }
+    /**
+     * An iteration of a loop longer than it is a stall: counted, reported with
+     * the loop's stack. 0 to disable, default 200
+     */
+    public void setStallThreshold(long ms) {
+        for (ClientLoop loop : loops) {
+            loop.watch.setThreshold(ms);
         }
     }
 
-    public void run() {
-        while (running) {
-            try {
-                long now = currentTimeMillis();
-                int select = selector.select(2000);
-                if (select > 0) {
-                    Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                    Iterator<SelectionKey> ite = selectedKeys.iterator();
-                    while (ite.hasNext()) {
-                        SelectionKey key = ite.next();
-                        if (!key.isValid()) {
-                            continue;
-                        }
-                        if (key.isConnectable()) {
-                            finishConnect(key, now);
-                        } else if (key.isReadable()) {
-                            doRead(key, now);
-                        } else if (key.isWritable()) {
-                            doWrite(key);
-                        }
-                        ite.remove();
-                    }
-                }
-                clearTimeout(now);
-                processPending();
-            } catch (IOException e) {
-                HttpUtils.printError("select exception", e);
-            }
-        }
+    /**
+     * in-flight, pool-hits, connects, connect-timeouts, read-timeouts, retries,
+     * loop-time, stalls
+     */
+    public Metrics getMetrics() {
+        return metrics;
     }
 
-    public void stop() throws IOException {
-        running = false;
-        if (selector != null) {
-            selector.close();
+    /**
+     * Connections and waiting requests, total and per host
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new TreeMap<String, Object>();
+        Map<String, Object> hosts = new TreeMap<String, Object>();
+        int open = 0, idle = 0, waiting = 0;
+        long waited = 0, waitMs = 0, maxWaitMs = 0, pipelined = 0;
+        for (ClientLoop loop : loops) {
+            for (HostPool pool : loop.pools.values()) {
+                open += pool.open;
+                idle += pool.idleCount;
+                waiting += pool.waitingCount;
+                hosts.put(pool.addr.toString(), pool.getStats());
+            }
+            waited += loop.waited;
+            waitMs += loop.waitMs;
+            maxWaitMs = Math.max(maxWaitMs, loop.maxWaitMs);
+            pipelined += loop.pipelined;
+        }
+        stats.put("io-threads", loops.length);
+        stats.put("open", open);
+        stats.put("idle", idle);
+        stats.put("waiting", waiting);
+        stats.put("waited", waited);
+        stats.put("wait-avg-ms", waited == 0 ? 0 : waitMs / waited);
+        stats.put("wait-max-ms", maxWaitMs);
+        stats.put("pipelined", pipelined);
+        stats.put("hedge-requests", hedgeRequests.get());
+        stats.put("hedged", hedged.get());
+        stats.put("hedge-wins", hedgeWins.get());
+        stats.put("hosts", hosts);
+        stats.put("dns", dns.getStats());
+        if (cache != null) {
+            stats.put("cache", cache.getStats());
+        }
+        if (singleFlight != null) {
+            stats.put("single-flight", singleFlight.getStats());
         }
+        return stats;
     }
 
     @Override
@@ -4,6 +4,9 @@ public class HttpClientConfig {
     final int timeOutMs;
     final String userAgent;
     final int keepalive;
+    final int maxConnectionsPerHost;
+    final int ioThreads;
+    final int pipelining;
 
     /**
      * 
@@ -13,16 +16,49 @@ public class HttpClientConfig {
      *            default user agent
      * @param keepalive
      *            keep-alive time, milliseconds
+     * @param maxConnectionsPerHost
+     *            more requests wait for a connection, FIFO. <= 0: no limit
+     * @param ioThreads
+     *            event loops, a host is served by one of them
+     * @param pipelining
+     *            idempotent requests in flight on a connection, HTTP/1.1
+     *            pipelining. 1: no pipelining
      */
-    public HttpClientConfig(int timeOutMs, String userAgent, int keepalive) {
+    public HttpClientConfig(int timeOutMs, String userAgent, int keepalive,
+            int maxConnectionsPerHost, int ioThreads, int pipelining) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("ioThreads should be positive: " + ioThreads);
+        }
+        if (pipelining < 1) {
+            throw new IllegalArgumentException("pipelining should be positive: " + pipelining);
+        }
         this.timeOutMs = timeOutMs;
         this.userAgent = userAgent;
         this.keepalive = keepalive;
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.ioThreads = ioThreads;
+        this.pipelining = pipelining;
+    }
+
+    public HttpClientConfig(int timeOutMs, String userAgent, int keepalive,
+            int maxConnectionsPerHost, int ioThreads) {
+        this(timeOutMs, userAgent, keepalive, maxConnectionsPerHost, ioThreads, 1);
+    }
+
+    public HttpClientConfig(int timeOutMs, String userAgent, int keepalive,
+            int maxConnectionsPerHost) {
+        this(timeOutMs, userAgent, keepalive, maxConnectionsPerHost, 1);
+    }
+
+    public HttpClientConfig(int timeOutMs, String userAgent, int keepalive) {
+        this(timeOutMs, userAgent, keepalive, 0);
     }
 
     @Override
     public String toString() {
         return "default config: {timeout=" + timeOutMs + "ms, useragent=" + userAgent
-                + ", keepalive=" + keepalive + "ms}";
+                + ", keepalive=" + keepalive + "ms, maxConnectionsPerHost="
+                + maxConnectionsPerHost + ", ioThreads=" + ioThreads + ", pipelining="
+                + pipelining + "}";
     }
 }
@@ -0,0 +1,22 @@
+package org.httpkit.client;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Look up a host name, blocking. Called by DnsCache off the caller's thread,
+ * the result is cached
+ */
+public interface IResolver {
+    public final static IResolver SYSTEM = new IResolver() {
+        public InetAddress resolve(String host) throws UnknownHostException {
+            return InetAddress.getByName(host);
+        }
+
+        public String toString() {
+            return "system resolver";
+        }
+    };
+
+    public InetAddress resolve(String host) throws UnknownHostException;
+}
@@ -0,0 +1,13 @@
+package org.httpkit.client;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receive body as a ByteBuffer, not copied by the decoder: a view of the read
+ * buffer of the client loop. Only valid in the call, consume or copy it.
+ * {@link #onBodyReceived(byte[], int)} is not called
+ */
+public interface IRespBufferListener extends IRespListener {
+
+    public void onBodyReceived(ByteBuffer buf) throws AbortException;
+}
@@ -0,0 +1,17 @@
+package org.httpkit.client;
+
+/**
+ * A listener consuming the body slower than the network: the client loop stops
+ * reading from the connection while it is full
+ */
+public interface IRespStreamListener extends IRespBufferListener {
+
+    /**
+     * Called by the client loop after each read
+     *
+     * @param resume
+     *            run once, by any thread, when there is room again
+     * @return true if full, reading is paused until resume is run
+     */
+    public boolean pauseIfFull(Runnable resume);
+}
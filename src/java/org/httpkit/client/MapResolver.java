@@ -0,0 +1,59 @@
+package org.httpkit.client;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In memory, for test: host => address, unknown host otherwise. Lookups are
+ * counted, and can be slow
+ */
+public class MapResolver implements IResolver {
+
+    private final ConcurrentMap<String, InetAddress> hosts =
+            new ConcurrentHashMap<String, InetAddress>();
+    private final AtomicInteger lookups = new AtomicInteger(0);
+    private volatile int delayMs = 0;
+
+    public MapResolver put(String host, String ip) throws UnknownHostException {
+        // a literal IP, no lookup
+        hosts.put(host.toLowerCase(), InetAddress.getByAddress(host,
+                InetAddress.getByName(ip).getAddress()));
+        return this;
+    }
+
+    public MapResolver remove(String host) {
+        hosts.remove(host.toLowerCase());
+        return this;
+    }
+
+    public void setDelay(int ms) {
+        this.delayMs = ms;
+    }
+
+    public int getLookups() {
+        return lookups.get();
+    }
+
+    public InetAddress resolve(String host) throws UnknownHostException {
+        lookups.incrementAndGet();
+        if (delayMs > 0) {
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        InetAddress addr = hosts.get(host.toLowerCase());
+        if (addr == null) {
+            throw new UnknownHostException(host);
+        }
+        return addr;
+    }
+
+    public String toString() {
+        return "MapResolver" + hosts.keySet();
+    }
+}
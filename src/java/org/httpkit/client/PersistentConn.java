@@ -3,10 +3,14 @@ package org.httpkit.client;
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
 
-public class PersistentConn implements Comparable<PersistentConn> {
+import org.httpkit.PriorityQueue;
+
+public class PersistentConn implements Comparable<PersistentConn>, PriorityQueue.Indexed {
     private final long timeoutTs;
     public final InetSocketAddress addr;
     public final SelectionKey key;
+    private int heapIndex = -1;
+    PersistentConn newer, older; // idle stack of the HostPool
 
     public PersistentConn(long timeoutTs, InetSocketAddress addr, SelectionKey key) {
         this.timeoutTs = timeoutTs;
@@ -22,6 +26,14 @@ public class PersistentConn implements Comparable<PersistentConn> {
         return (int) (timeoutTs - o.timeoutTs);
     }
 
+    public int getHeapIndex() {
+        return heapIndex;
+    }
+
+    public void setHeapIndex(int index) {
+        heapIndex = index;
+    }
+
     public boolean isTimeout(long now) {
         return timeoutTs < now;
     }
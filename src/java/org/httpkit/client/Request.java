@@ -6,40 +6,78 @@ import java.nio.channels.SelectionKey;
 
 import org.httpkit.HttpMethod;
 import org.httpkit.PriorityQueue;
+import org.httpkit.SslConn;
 
-public class Request implements Comparable<Request> {
+public class Request implements Comparable<Request>, PriorityQueue.Indexed {
 
     final InetSocketAddress addr;
+    final String sslHost; // https, the host name for SNI and verification. null for http
     final Decoder decoder;
+    final HttpMethod method;
     final ByteBuffer[] request; // HTTP request
+    RequestBody body; // sent after request, null if in it
     final int timeOutMs; // ms
-    private final PriorityQueue<Request> clients; // update timeout
+    PriorityQueue<Request> clients; // timeout queue of the loop, set when queued
 
     // is modify from the loop thread. ensure only called once
     private boolean isDone = false;
 
     public boolean isReuseConn = false; // a reused socket sent the request
     public boolean isConnected = false;
+    boolean paused = false; // not reading, the consumer is slow
 
     SelectionKey key; // for timeout, close connection
+    SslConn ssl; // of the connection, if https
+    long queuedAt; // waiting for a connection since, ms
+    // pipelined on the same connection, after this one. its response is next
+    Request next;
+    boolean retried = false; // pipelined, not answered, sent again alone
+    Hedge hedge; // the primary of a hedged request, until scheduled by the loop
+    // lost a hedged race, dropped by the loop
+    private volatile boolean cancelled = false;
+    volatile ClientLoop loop; // took the request, set by it
 
     private long timeoutTs; // future time this request timeout, ms
+    // timeoutTs when queued, not updated by reads: the heap is not touched
+    private long queuedTs;
+    private int heapIndex = -1;
 
     public Request(InetSocketAddress addr, ByteBuffer[] request, IRespListener handler,
-            PriorityQueue<Request> clients, int timeOutMs, HttpMethod method) {
+            int timeOutMs, HttpMethod method) {
+        this(addr, null, request, handler, timeOutMs, method);
+    }
+
+    public Request(InetSocketAddress addr, String sslHost, ByteBuffer[] request,
+            IRespListener handler, int timeOutMs, HttpMethod method) {
+        this.sslHost = sslHost;
         this.decoder = new Decoder(handler, method);
+        this.method = method;
         this.timeOutMs = timeOutMs;
         this.request = request;
-        this.clients = clients;
         this.addr = addr;
         this.timeoutTs = this.timeOutMs + System.currentTimeMillis();
+        this.queuedTs = timeoutTs;
     }
 
     public void onProgress(long now) {
-        // update time
-        clients.remove(this);
+        // update time, O(1). the heap is refreshed lazily
         timeoutTs = this.timeOutMs + now;
+    }
+
+    /**
+     * The heap is ordered by queuedTs, may be earlier than timeoutTs if read
+     * since queued. Re-queue if it is due, but not timeout yet
+     *
+     * @return true if re-queued
+     */
+    boolean refreshTimeout(long now) {
+        if (queuedTs >= now || queuedTs == timeoutTs) {
+            return false;
+        }
+        clients.remove(this);
+        queuedTs = timeoutTs;
         clients.offer(this);
+        return true;
     }
 
     public void finish() {
@@ -47,7 +85,30 @@ public class Request implements Comparable<Request> {
         if (isDone)
             return;
         isDone = true;
+        closeBody();
         decoder.listener.onCompleted();
+        decoder.discard();
+    }
+
+    /**
+     * By any thread: the loop which took it closes the connection, or pools it
+     * if nothing is sent; dropped when taken if not yet. The listener gets an
+     * AbortException if it is in flight
+     */
+    void cancel() {
+        cancelled = true;
+        ClientLoop l = loop;
+        if (l != null) {
+            l.cancel(this);
+        }
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    boolean isDone() {
+        return isDone;
     }
 
     public boolean isTimeout(long now) {
@@ -59,10 +120,32 @@ public class Request implements Comparable<Request> {
         if (isDone)
             return;
         isDone = true;
+        closeBody();
         decoder.listener.onThrowable(t);
+        decoder.discard(); // pipelined, the response may come later
+    }
+
+    private void closeBody() {
+        if (body != null) {
+            body.close();
+        }
+    }
+
+    // may be sent on a connection with others in flight
+    boolean canPipeline() {
+        return method.isIdempotent() && !retried && body == null
+                && !(decoder.listener instanceof IRespStreamListener);
     }
 
     public int compareTo(Request o) {
-        return (int) (timeoutTs - o.timeoutTs);
+        return (int) (queuedTs - o.queuedTs);
+    }
+
+    public int getHeapIndex() {
+        return heapIndex;
+    }
+
+    public void setHeapIndex(int index) {
+        heapIndex = index;
     }
 }
@@ -0,0 +1,222 @@
+package org.httpkit.client;
+
+import static org.httpkit.HttpUtils.BUFFER_SIZE;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+import org.httpkit.BytesInputStream;
+import org.httpkit.SslConn;
+
+/**
+ * A request body not copied to the heap, sent by the loop after the head, as
+ * much as the socket takes: a file by transferTo (read in chunks for https),
+ * an in-memory stream a chunk at a time. All with Content-Length. Other
+ * InputStreams may block, they are read into memory by the caller's thread,
+ * not by the loop.
+ */
+abstract class RequestBody {
+
+    /**
+     * File, FileChannel, FileInputStream, ByteArrayInputStream,
+     * BytesInputStream; null if the body is to be read into memory
+     */
+    static RequestBody of(Object body) throws IOException {
+        if (body instanceof File) {
+            FileChannel ch = new FileInputStream((File) body).getChannel();
+            return new FileBody(ch, 0, ch.size(), true);
+        } else if (body instanceof FileChannel) {
+            // from its position, not moved, not closed: the caller's
+            FileChannel ch = (FileChannel) body;
+            return new FileBody(ch, ch.position(), ch.size() - ch.position(), false);
+        } else if (body instanceof FileInputStream) {
+            // from its position, closed when done
+            FileChannel ch = ((FileInputStream) body).getChannel();
+            return new FileBody(ch, ch.position(), ch.size() - ch.position(), true);
+        } else if (body instanceof ByteArrayInputStream || body instanceof BytesInputStream) {
+            return new StreamBody((InputStream) body); // never blocks
+        }
+        return null;
+    }
+
+    /**
+     * @return Content-Length
+     */
+    abstract long length();
+
+    /**
+     * Send some, by the loop
+     *
+     * @return true if all sent
+     */
+    abstract boolean write(SocketChannel ch, SslConn ssl) throws IOException;
+
+    /**
+     * To send again on a new connection
+     *
+     * @return false if it can not, part of the stream is consumed
+     */
+    abstract boolean rewind();
+
+    abstract void close();
+
+    static boolean send(SocketChannel ch, SslConn ssl, ByteBuffer b) throws IOException {
+        if (ssl == null) {
+            ch.write(b);
+            return !b.hasRemaining();
+        }
+        return ssl.write(ch, new ByteBuffer[] { b });
+    }
+
+    static class FileBody extends RequestBody {
+        private final FileChannel file;
+        private final long start;
+        private final long count;
+        private final boolean owned; // opened by us, closed when done
+        private long sent = 0;
+        private ByteBuffer chunk; // https: encrypted in user space, no transferTo
+
+        FileBody(FileChannel file, long start, long count, boolean owned) {
+            this.file = file;
+            this.start = start;
+            this.count = count;
+            this.owned = owned;
+        }
+
+        long length() {
+            return count;
+        }
+
+        boolean write(SocketChannel ch, SslConn ssl) throws IOException {
+            if (ssl != null) {
+                return writeSsl(ch, ssl);
+            }
+            while (sent < count) {
+                long n = file.transferTo(start + sent, count - sent, ch);
+                if (n == 0) {
+                    if (file.size() < start + count) {
+                        throw truncated();
+                    }
+                    return false; // socket is full
+                }
+                sent += n;
+            }
+            return true;
+        }
+
+        private boolean writeSsl(SocketChannel ch, SslConn ssl) throws IOException {
+            if (chunk == null) {
+                chunk = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(count, 1)));
+                chunk.flip(); // empty
+            }
+            while (true) {
+                if (chunk.hasRemaining() && !send(ch, ssl, chunk)) {
+                    return false;
+                }
+                if (sent == count) {
+                    return true;
+                }
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(), count - sent));
+                int n = file.read(chunk, start + sent);
+                if (n <= 0) {
+                    throw truncated();
+                }
+                sent += n;
+                chunk.flip();
+            }
+        }
+
+        private IOException truncated() {
+            return new IOException("file truncated while sending, " + (start + sent) + " of "
+                    + (start + count));
+        }
+
+        boolean rewind() {
+            sent = 0;
+            chunk = null;
+            return true;
+        }
+
+        void close() {
+            if (owned) {
+                try {
+                    file.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    // an in-memory stream: its length is known, reading it does not block
+    static class StreamBody extends RequestBody {
+        private final InputStream in;
+        private final long count;
+        private final ByteBuffer chunk; // heap, read by the stream
+        private long sent = 0; // read into chunk
+
+        StreamBody(InputStream in) {
+            this.in = in;
+            this.count = available(in);
+            in.mark(Integer.MAX_VALUE); // to rewind
+            chunk = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(count, 1)));
+            chunk.flip(); // empty
+        }
+
+        private static long available(InputStream in) {
+            try {
+                return in.available(); // all of it, of these streams
+            } catch (IOException e) {
+                return 0; // never
+            }
+        }
+
+        long length() {
+            return count;
+        }
+
+        boolean write(SocketChannel ch, SslConn ssl) throws IOException {
+            while (true) {
+                if (chunk.hasRemaining() && !send(ch, ssl, chunk)) {
+                    return false;
+                }
+                if (sent == count) {
+                    return true;
+                }
+                chunk.clear();
+                int n = in.read(chunk.array(), 0, (int) Math.min(chunk.capacity(), count
+                        - sent));
+                if (n <= 0) {
+                    throw new IOException("stream ended while sending, " + sent + " of "
+                            + count);
+                }
+                sent += n;
+                chunk.limit(n);
+            }
+        }
+
+        boolean rewind() {
+            try {
+                in.reset();
+            } catch (IOException e) {
+                return false;
+            }
+            sent = 0;
+            chunk.clear().flip();
+            return true;
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
@@ -3,56 +3,18 @@ package org.httpkit.client;
 import static org.httpkit.HttpUtils.CONTENT_ENCODING;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
 import org.httpkit.*;
 
-class Handler implements Runnable {
-
-    private final int status;
-    private final Map<String, String> headers;
-    private final Object body;
-    private final Throwable e;
-    private final IResponseHandler handler;
-
-    public Handler(IResponseHandler handler, int status, Map<String, String> headers,
-            Object body, Throwable e) {
-        this.status = status;
-        this.headers = headers;
-        this.body = body;
-        this.e = e;
-        this.handler = handler;
-    }
-
-    public Handler(IResponseHandler handler, Throwable e) {
-        this(handler, 0, null, null, e);
-    }
-
-    public Handler(IResponseHandler handler, int status, Map<String, String> headers,
-            Object body) {
-        this(handler, status, headers, body, null);
-    }
-
-    public void run() {
-        if (e != null) {
-            handler.onThrowable(e);
-        } else {
-            handler.onSuccess(status, headers, body);
-        }
-    }
-}
-
 /**
  * Accumulate all the response, call upper logic at once, for easy use
  */
-public class RespListener implements IRespListener {
+public class RespListener implements IRespBufferListener {
 
     private boolean isText() {
         if (status == HttpStatus.OK) {
@@ -69,43 +31,16 @@ public class RespListener implements IRespListener {
         }
     }
 
-    private DynamicBytes unzipBody() throws IOException {
-        String encoding = headers.get(CONTENT_ENCODING);
-        if (encoding == null || body.length() == 0) {
-            return body;
-        }
-
-        encoding = encoding.toLowerCase();
-        BytesInputStream bis = new BytesInputStream(body.get(), body.length());
-        InputStream is;
-
-        if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
-            is = new GZIPInputStream(bis);
-        } else if ("deflate".equals(encoding) || "x-deflate".equals(encoding)) {
-            // http://stackoverflow.com/questions/3932117/handling-http-contentencoding-deflate
-            is = new InflaterInputStream(bis, new Inflater(true));
-        } else {
-            return body; // not compressed
-        }
-
-        DynamicBytes unzipped = new DynamicBytes(body.length() * 5);
-        byte[] buffer = new byte[4096];
-        int read;
-        while ((read = is.read(buffer)) != -1) {
-            unzipped.append(buffer, read);
-        }
-        is.close();
-        return unzipped;
-    }
-
-    private final DynamicBytes body;
+    private final DynamicBytes body; // decompressed
+    private ContentDecoder content; // null if not compressed
 
     // can be empty
     private Map<String, String> headers = new TreeMap<String, String>();
     private HttpStatus status;
-    private final IResponseHandler handler;
+    final IResponseHandler handler; // package visible
     private final IFilter filter;
-    private final ExecutorService pool;
+    final ExecutorService pool;
+    SingleFlight.Flight flight; // others wait for this response, null if none
 
     public RespListener(IResponseHandler handler, IFilter filter, ExecutorService pool) {
         body = new DynamicBytes(1024 * 16);
@@ -115,7 +50,33 @@ public class RespListener implements IRespListener {
     }
 
     public void onBodyReceived(byte[] buf, int length) throws AbortException {
-        body.append(buf, length);
+        if (content == null) {
+            body.append(buf, length);
+        } else {
+            try {
+                content.decode(buf, 0, length, body);
+            } catch (IOException e) {
+                throw new AbortException("Bad compressed body: " + e.getMessage());
+            }
+        }
+        checkBody();
+    }
+
+    public void onBodyReceived(ByteBuffer buf) throws AbortException {
+        if (content == null) {
+            body.append(buf); // from the read buffer directly
+        } else {
+            try {
+                content.decode(buf, body);
+            } catch (IOException e) {
+                throw new AbortException("Bad compressed body: " + e.getMessage());
+            }
+        }
+        checkBody();
+    }
+
+    // decompressed size is checked: zip bomb
+    private void checkBody() throws AbortException {
         if (filter != null && !filter.accept(body)) {
             throw new AbortException("Rejected when reading body, length: " + body.length());
         }
@@ -123,26 +84,38 @@ public class RespListener implements IRespListener {
 
     public void onCompleted() {
         if (status == null) {
-            pool.submit(new Handler(handler, new ProtocolException("No status")));
+            submit(new Handler(handler, new ProtocolException("No status")));
             return;
         }
         try {
-            DynamicBytes bytes = unzipBody();
+            if (content != null) {
+                content.finish();
+            }
             if (isText()) {
-                Charset charset = HttpUtils.detectCharset(headers, bytes);
-                String html = new String(bytes.get(), 0, bytes.length(), charset);
-                pool.submit(new Handler(handler, status.getCode(), headers, html));
+                Charset charset = HttpUtils.detectCharset(headers, body);
+                String html = new String(body.get(), 0, body.length(), charset);
+                submit(new Handler(handler, status.getCode(), headers, html));
             } else {
-                BytesInputStream is = new BytesInputStream(bytes.get(), bytes.length());
-                pool.submit(new Handler(handler, status.getCode(), headers, is));
+                BytesInputStream is = new BytesInputStream(body.get(), body.length());
+                submit(new Handler(handler, status.getCode(), headers, is));
             }
         } catch (IOException e) {
-            handler.onThrowable(e);
+            submit(new Handler(handler, e));
         }
     }
 
     public void onThrowable(Throwable t) {
-        pool.submit(new Handler(handler, t));
+        if (content != null) {
+            content.release();
+        }
+        submit(new Handler(handler, t));
+    }
+
+    private void submit(Handler h) {
+        if (flight != null) {
+            flight.done(h); // decoded once
+        }
+        pool.submit(h);
     }
 
     public void onHeadersReceived(Map<String, String> headers) throws AbortException {
@@ -150,6 +123,7 @@ public class RespListener implements IRespListener {
         if (filter != null && !filter.accept(headers)) {
             throw new AbortException("Rejected when header received");
         }
+        content = ContentDecoder.create(headers.get(CONTENT_ENCODING), filter);
     }
 
     public void onInitialLineReceived(HttpVersion version, HttpStatus status)
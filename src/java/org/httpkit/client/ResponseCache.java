@@ -0,0 +1,500 @@
+package org.httpkit.client;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import org.httpkit.DynamicBytes;
+import org.httpkit.HttpStatus;
+import org.httpkit.HttpVersion;
+import org.httpkit.ProtocolException;
+
+/**
+ * In-memory cache of GET responses for HttpClient, opt-in: for endpoints polled
+ * often. Fresh by Cache-Control max-age or Expires; a stale one with an ETag or
+ * Last-Modified is revalidated, its body reused on 304. LRU, bounded by bytes.
+ * Concurrent misses of a key are coalesced into one request, like DnsCache.
+ *
+ * The key is the URL and the request headers: a private cache, Vary is met.
+ * Requests with their own Cache-Control, Pragma, conditional or Range headers
+ * bypass it.
+ */
+public class ResponseCache {
+
+    static class Entry {
+        final HttpVersion version;
+        final HttpStatus status;
+        final Map<String, String> headers;
+        final byte[] body; // as received, compressed if it was. not copied
+        final int length; // of body
+        final long expires; // fresh until, ms
+        final String etag, lastModified; // validators, may be null
+
+        Entry(HttpVersion version, HttpStatus status, Map<String, String> headers,
+                byte[] body, int length, long expires) {
+            this.version = version;
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+            this.length = length;
+            this.expires = expires;
+            this.etag = headers.get("etag");
+            this.lastModified = headers.get("last-modified");
+        }
+
+        boolean canRevalidate() {
+            return etag != null || lastModified != null;
+        }
+
+        int size() {
+            return body.length + 256; // headers, roughly
+        }
+    }
+
+    // a request for a key, the callers waiting for it. A response that can't
+    // be cached, by its status, headers or size, is passed to them as
+    // received, not buffered
+    private class Fetch implements IRespBufferListener {
+        final String key;
+        final Entry stale; // revalidating, null if a miss
+        final List<IRespListener> waiting = new ArrayList<IRespListener>(2);
+        DynamicBytes body; // sized by Content-Length, null until the headers
+        List<IRespListener> passing; // not null: not cached, passed through
+        byte[] scratch; // for listeners of byte[], only valid in the call
+        HttpVersion version;
+        HttpStatus status;
+        Map<String, String> headers = new TreeMap<String, String>();
+        long expires;
+
+        Fetch(String key, Entry stale) {
+            this.key = key;
+            this.stale = stale;
+        }
+
+        public void onInitialLineReceived(HttpVersion version, HttpStatus status) {
+            this.version = version;
+            this.status = status;
+        }
+
+        public void onHeadersReceived(Map<String, String> headers) throws AbortException {
+            this.headers = headers;
+            if (status == null) {
+                return; // reported on completed
+            }
+            if (status.getCode() == 304 && stale != null) {
+                body = new DynamicBytes(0); // the stored body is reused
+                return;
+            }
+            long now = System.currentTimeMillis();
+            expires = freshUntil(headers, now);
+            long length = contentLength(headers);
+            if (!isCacheable(status, headers, expires, now) || length > maxBody()) {
+                pass();
+            } else {
+                body = new DynamicBytes(length >= 0 ? (int) length : 1024);
+            }
+        }
+
+        public void onBodyReceived(ByteBuffer buf) throws AbortException {
+            if (passing == null && body.length() + buf.remaining() > maxBody()) {
+                pass(); // chunked, too large
+            }
+            if (passing == null) {
+                body.append(buf);
+                return;
+            }
+            for (Iterator<IRespListener> it = passing.iterator(); it.hasNext();) {
+                IRespListener cb = it.next();
+                try {
+                    if (cb instanceof IRespBufferListener) {
+                        ((IRespBufferListener) cb).onBodyReceived(buf.duplicate());
+                    } else {
+                        int n = buf.remaining();
+                        if (scratch == null || scratch.length < n) {
+                            scratch = new byte[n];
+                        }
+                        buf.duplicate().get(scratch, 0, n);
+                        cb.onBodyReceived(scratch, n);
+                    }
+                } catch (AbortException e) { // by its filter
+                    drop(it, cb, e);
+                }
+            }
+        }
+
+        public void onBodyReceived(byte[] buf, int length) throws AbortException {
+            onBodyReceived(ByteBuffer.wrap(buf, 0, length));
+        }
+
+        // not to be cached: the listeners get it from now on
+        private void pass() throws AbortException {
+            synchronized (store) {
+                inflight.remove(key); // no more to wait for it
+                passing = waiting;
+                if (stale != null) {
+                    remove(key);
+                }
+            }
+            for (Iterator<IRespListener> it = passing.iterator(); it.hasNext();) {
+                IRespListener cb = it.next();
+                try {
+                    cb.onInitialLineReceived(version, status);
+                    cb.onHeadersReceived(passing.size() == 1 ? headers
+                            : new TreeMap<String, String>(headers));
+                } catch (AbortException e) {
+                    drop(it, cb, e);
+                }
+            }
+            DynamicBytes received = body; // before it was too large
+            body = null;
+            if (received != null && received.length() > 0) {
+                onBodyReceived(ByteBuffer.wrap(received.get(), 0, received.length()));
+            }
+        }
+
+        // a listener aborted: the others still get the response, the
+        // connection is aborted if none left
+        private void drop(Iterator<IRespListener> it, IRespListener cb, AbortException e)
+                throws AbortException {
+            it.remove();
+            cb.onThrowable(e);
+            if (passing.isEmpty()) {
+                throw e;
+            }
+        }
+
+        public void onCompleted() {
+            if (status == null) {
+                onThrowable(new ProtocolException("No status"));
+                return;
+            }
+            if (passing != null) {
+                for (IRespListener cb : passing) {
+                    cb.onCompleted();
+                }
+                return;
+            }
+            long now = System.currentTimeMillis();
+            Entry e;
+            boolean notModified = status.getCode() == 304 && stale != null;
+            if (notModified) {
+                // the stored body, with the new headers
+                Map<String, String> merged = new TreeMap<String, String>(stale.headers);
+                for (Map.Entry<String, String> h : headers.entrySet()) {
+                    if (!h.getKey().startsWith("content-")
+                            && !h.getKey().equals("transfer-encoding")) {
+                        merged.put(h.getKey(), h.getValue()); // not of the body
+                    }
+                }
+                e = new Entry(stale.version, stale.status, merged, stale.body, stale.length,
+                        freshUntil(merged, now));
+            } else {
+                e = new Entry(version, status, headers, body.get(), body.length(), expires);
+            }
+            List<IRespListener> cbs;
+            synchronized (store) {
+                inflight.remove(key);
+                cbs = waiting;
+                if (notModified) {
+                    ResponseCache.this.notModified++;
+                }
+                if (isCacheable(e, now)) {
+                    put(key, e);
+                } else if (stale != null) {
+                    remove(key);
+                }
+            }
+            for (IRespListener cb : cbs) {
+                replay(e, cb);
+            }
+        }
+
+        public void onThrowable(Throwable t) {
+            List<IRespListener> cbs = passing;
+            if (cbs == null) {
+                synchronized (store) {
+                    inflight.remove(key);
+                    cbs = waiting;
+                }
+            }
+            for (IRespListener cb : cbs) {
+                cb.onThrowable(t);
+            }
+        }
+    }
+
+    // SimpleDateFormat is not thread safe
+    private static final ThreadLocal<SimpleDateFormat> DATE =
+            new ThreadLocal<SimpleDateFormat>() {
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat f = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz",
+                    Locale.US);
+            f.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return f;
+        }
+    };
+
+    // the caller's own caching or partial request
+    private static final String[] BYPASS = { "cache-control", "pragma", "if-none-match",
+            "if-modified-since", "if-match", "if-unmodified-since", "if-range", "range" };
+
+    private final long maxBytes;
+    // guarded by itself, inflight and bytes too
+    private final LinkedHashMap<String, Entry> store =
+            new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private final Map<String, Fetch> inflight = new HashMap<String, Fetch>();
+    private long bytes = 0;
+
+    // stats
+    private volatile long hits = 0, misses = 0, revalidations = 0, notModified = 0,
+            coalesced = 0, evictions = 0;
+
+    /**
+     * @param maxBytes
+     *            of bodies, the least recently used is evicted. A response
+     *            larger than a quarter of it is not cached
+     */
+    public ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // null: bypass
+    static String key(String url, Map<String, Object> headers) {
+        if (headers == null || headers.isEmpty()) {
+            return url;
+        }
+        TreeMap<String, Object> sorted = new TreeMap<String, Object>();
+        for (Map.Entry<String, Object> h : headers.entrySet()) {
+            String name = h.getKey().toLowerCase();
+            for (String b : BYPASS) {
+                if (b.equals(name)) {
+                    return null;
+                }
+            }
+            sorted.put(name, h.getValue());
+        }
+        return url + " " + sorted;
+    }
+
+    /**
+     * ms since epoch the response is fresh until, now if stale at once, -1
+     * if it should not be stored
+     */
+    static long freshUntil(Map<String, String> headers, long now) {
+        String cc = headers.get("cache-control");
+        if (cc != null) {
+            cc = cc.toLowerCase();
+            if (cc.contains("no-store")) {
+                return -1;
+            }
+            if (cc.contains("no-cache")) {
+                return now; // revalidate every time
+            }
+            int i = cc.indexOf("max-age=");
+            if (i != -1) {
+                int end = i + 8;
+                while (end < cc.length() && Character.isDigit(cc.charAt(end))) {
+                    end++;
+                }
+                try {
+                    long maxAge = Long.parseLong(cc.substring(i + 8, end));
+                    return now + Math.max(0, maxAge - age(headers)) * 1000;
+                } catch (NumberFormatException ignore) { // stale
+                    return now;
+                }
+            }
+        }
+        String expires = headers.get("expires");
+        if (expires != null) {
+            long at = parseDate(expires);
+            if (at == -1) {
+                return now; // "0", or invalid: already expired
+            }
+            long date = parseDate(headers.get("date"));
+            // relative to the server's clock
+            return now + Math.max(0, at - (date == -1 ? now : date));
+        }
+        return now; // cached only if it can be revalidated
+    }
+
+    private static long age(Map<String, String> headers) {
+        String age = headers.get("age");
+        if (age != null) {
+            try {
+                return Long.parseLong(age.trim());
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        return 0;
+    }
+
+    private static long parseDate(String date) {
+        if (date == null) {
+            return -1;
+        }
+        try {
+            return DATE.get().parse(date.trim()).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    // of a body to be cached
+    private long maxBody() {
+        return maxBytes / 4 - 256;
+    }
+
+    private static long contentLength(Map<String, String> headers) {
+        String cl = headers.get("content-length");
+        if (cl != null) {
+            try {
+                return Long.parseLong(cl.trim());
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        return -1;
+    }
+
+    // by what is known once headers are received
+    private static boolean isCacheable(HttpStatus status, Map<String, String> headers,
+            long expires, long now) {
+        if (status.getCode() != 200 || expires == -1 || "*".equals(headers.get("vary"))) {
+            return false;
+        }
+        return expires > now || headers.get("etag") != null
+                || headers.get("last-modified") != null;
+    }
+
+    private boolean isCacheable(Entry e, long now) {
+        return e.size() <= maxBytes / 4 && isCacheable(e.status, e.headers, e.expires, now);
+    }
+
+    // guarded
+    private void put(String key, Entry e) {
+        remove(key);
+        store.put(key, e);
+        bytes += e.size();
+        Iterator<Entry> it = store.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().size(); // the least recently used
+            it.remove();
+            evictions++;
+        }
+    }
+
+    // guarded
+    private void remove(String key) {
+        Entry old = store.remove(key);
+        if (old != null) {
+            bytes -= old.size();
+        }
+    }
+
+    /**
+     * GET url by the client, or from the cache: cb is called by the caller
+     * thread if fresh, or by the loop when the response is received
+     */
+    void get(HttpClient client, String url, Map<String, Object> headers, int timeoutMs,
+            IRespListener cb) {
+        String key = key(url, headers);
+        if (key == null) {
+            client.fetch(url, headers, timeoutMs, cb);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Entry e;
+        Fetch f;
+        synchronized (store) {
+            e = store.get(key);
+            if (e != null && e.expires > now) {
+                hits++;
+                f = null;
+            } else {
+                f = inflight.get(key);
+                if (f != null) {
+                    coalesced++;
+                    f.waiting.add(cb);
+                    return;
+                }
+                if (e != null && !e.canRevalidate()) {
+                    remove(key);
+                    e = null;
+                }
+                if (e != null) {
+                    revalidations++;
+                } else {
+                    misses++;
+                }
+                f = new Fetch(key, e);
+                f.waiting.add(cb);
+                inflight.put(key, f);
+            }
+        }
+        if (f == null) {
+            replay(e, cb);
+            return;
+        }
+        if (e != null) {
+            Map<String, Object> conditional = new TreeMap<String, Object>(headers);
+            if (e.etag != null) {
+                conditional.put("If-None-Match", e.etag);
+            }
+            if (e.lastModified != null) {
+                conditional.put("If-Modified-Since", e.lastModified);
+            }
+            headers = conditional;
+        }
+        client.fetch(url, headers, timeoutMs, f);
+    }
+
+    // as if received from the server
+    private static void replay(Entry e, IRespListener cb) {
+        try {
+            cb.onInitialLineReceived(e.version, e.status);
+            cb.onHeadersReceived(new TreeMap<String, String>(e.headers)); // may be kept
+            if (e.length > 0) {
+                if (cb instanceof IRespBufferListener) {
+                    ((IRespBufferListener) cb).onBodyReceived(ByteBuffer.wrap(e.body, 0,
+                            e.length).asReadOnlyBuffer());
+                } else {
+                    cb.onBodyReceived(Arrays.copyOf(e.body, e.length), e.length);
+                }
+            }
+        } catch (AbortException ex) { // by the filter
+            cb.onThrowable(ex);
+            return;
+        }
+        cb.onCompleted();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new TreeMap<String, Object>();
+        synchronized (store) {
+            stats.put("entries", store.size());
+            stats.put("bytes", bytes);
+            stats.put("inflight", inflight.size());
+        }
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("revalidations", revalidations);
+        stats.put("not-modified", notModified);
+        stats.put("coalesced", coalesced);
+        stats.put("evictions", evictions);
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return "ResponseCache" + getStats();
+    }
+}
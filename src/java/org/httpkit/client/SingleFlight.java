@@ -0,0 +1,111 @@
+package org.httpkit.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.httpkit.HttpMethod;
+
+/**
+ * Single-flight for HttpClient, opt-in: concurrent identical GET or HEAD
+ * requests are sent once, the others wait for it, no socket of their own. The
+ * response is decoded once, handed to each handler by its worker pool.
+ *
+ * Identical: method, URL and the named headers, Authorization and Cookie
+ * always. Other headers are not compared, the first request's options
+ * (timeout, filter) apply to all.
+ */
+public class SingleFlight {
+
+    // a request in flight, the ones waiting for it
+    class Flight {
+        final String key;
+        final List<RespListener> waiting = new ArrayList<RespListener>(4);
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        // the leader's response, by its listener
+        void done(Handler h) {
+            List<RespListener> others;
+            synchronized (inflight) {
+                inflight.remove(key);
+                others = waiting;
+            }
+            for (RespListener l : others) {
+                l.pool.submit(h.to(l.handler));
+            }
+        }
+    }
+
+    private final String[] headers; // in the key, lower case
+    // guarded by itself
+    private final Map<String, Flight> inflight = new HashMap<String, Flight>();
+    private volatile long coalesced = 0;
+
+    /**
+     * @param headers
+     *            the request headers which change the response, in the key
+     */
+    public SingleFlight(String... headers) {
+        this.headers = new String[headers.length + 2];
+        for (int i = 0; i < headers.length; i++) {
+            this.headers[i] = headers[i].toLowerCase();
+        }
+        this.headers[headers.length] = "authorization";
+        this.headers[headers.length + 1] = "cookie";
+    }
+
+    String key(HttpMethod method, String url, Map<String, Object> headers) {
+        StringBuilder sb = new StringBuilder(url.length() + 16);
+        sb.append(method).append(' ').append(url);
+        if (headers != null && !headers.isEmpty()) {
+            TreeMap<String, Object> named = new TreeMap<String, Object>();
+            for (Map.Entry<String, Object> h : headers.entrySet()) {
+                String name = h.getKey().toLowerCase();
+                for (String n : this.headers) {
+                    if (n.equals(name)) {
+                        named.put(name, h.getValue());
+                    }
+                }
+            }
+            if (!named.isEmpty()) {
+                sb.append(' ').append(named);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return true if it waits for an identical request in flight, else it is
+     *         sent, the ones after it wait for it
+     */
+    boolean join(HttpMethod method, String url, Map<String, Object> headers,
+            RespListener cb) {
+        String key = key(method, url, headers);
+        synchronized (inflight) {
+            Flight f = inflight.get(key);
+            if (f != null) {
+                f.waiting.add(cb);
+                coalesced++;
+                return true;
+            }
+            f = new Flight(key);
+            inflight.put(key, f);
+            cb.flight = f;
+            return false;
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new TreeMap<String, Object>();
+        synchronized (inflight) {
+            stats.put("inflight", inflight.size());
+        }
+        stats.put("coalesced", coalesced);
+        return stats;
+    }
+}
@@ -0,0 +1,163 @@
+package org.httpkit.client;
+
+import static org.httpkit.HttpUtils.CONTENT_ENCODING;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.httpkit.HttpStatus;
+import org.httpkit.HttpVersion;
+import org.httpkit.ProtocolException;
+
+/**
+ * Call upper logic as soon as headers are received, the body is an InputStream
+ * fed by the client loop as it arrives. Compressed body is decoded on the fly,
+ * by the consumer. For large download: memory is bounded by the buffer.
+ */
+public class StreamListener implements IRespStreamListener {
+
+    private final IResponseHandler handler;
+    private final IFilter filter;
+    private final ExecutorService pool;
+    private final BodyStream body;
+
+    private HttpStatus status;
+    private boolean delivered = false; // the handler is called
+
+    public StreamListener(IResponseHandler handler, IFilter filter, ExecutorService pool,
+            int bufferSize) {
+        this.handler = handler;
+        this.filter = filter;
+        this.pool = pool;
+        this.body = new BodyStream(bufferSize);
+    }
+
+    private InputStream decoded(Map<String, String> headers) {
+        String encoding = headers.get(CONTENT_ENCODING);
+        if (encoding == null) {
+            return body;
+        }
+        encoding = encoding.toLowerCase();
+        if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+            return new DecodedStream(body, true);
+        } else if ("deflate".equals(encoding) || "x-deflate".equals(encoding)) {
+            return new DecodedStream(body, false);
+        }
+        return body;
+    }
+
+    public void onInitialLineReceived(HttpVersion version, HttpStatus status)
+            throws AbortException {
+        this.status = status;
+    }
+
+    public void onHeadersReceived(Map<String, String> headers) throws AbortException {
+        if (filter != null && !filter.accept(headers)) {
+            throw new AbortException("Rejected when header received");
+        }
+        delivered = true;
+        pool.submit(new Handler(handler, status.getCode(), headers, decoded(headers)));
+    }
+
+    public void onBodyReceived(byte[] buf, int length) throws AbortException {
+        onBodyReceived(ByteBuffer.wrap(buf, 0, length));
+    }
+
+    public void onBodyReceived(ByteBuffer buf) throws AbortException {
+        body.write(buf);
+    }
+
+    public boolean pauseIfFull(Runnable resume) {
+        return body.pauseIfFull(resume);
+    }
+
+    public void onCompleted() {
+        if (!delivered) {
+            pool.submit(new Handler(handler, new ProtocolException("No status")));
+        } else {
+            body.finish();
+        }
+    }
+
+    public void onThrowable(Throwable t) {
+        if (delivered) {
+            body.fail(t); // the consumer get it when reading
+        } else {
+            pool.submit(new Handler(handler, t));
+        }
+    }
+
+    // GZIPInputStream reads the header in constructor, deflate is told zlib
+    // or raw by its first bytes: would block the loop. created lazily, by the
+    // consumer. The inflater is ended on close, not left to finalization
+    static class DecodedStream extends InputStream {
+        private final BodyStream body;
+        private final boolean gzip;
+        private InputStream is;
+        private Inflater inflater; // of deflate
+
+        DecodedStream(BodyStream body, boolean gzip) {
+            this.body = body;
+            this.gzip = gzip;
+        }
+
+        private InputStream stream() throws IOException {
+            if (is == null) {
+                if (gzip) {
+                    is = new GZIPInputStream(body, 8192);
+                } else {
+                    // zlib wrapped as it should be, or raw by some servers
+                    PushbackInputStream in = new PushbackInputStream(body, 2);
+                    byte[] head = new byte[2];
+                    int n = 0, r;
+                    while (n < 2 && (r = in.read(head, n, 2 - n)) != -1) {
+                        n += r;
+                    }
+                    int skip = ContentDecoder.zlibHeader(head, n);
+                    if (skip != 2 && n > 0) {
+                        in.unread(head, 0, n);
+                    }
+                    inflater = new Inflater(true); // adler32 is not checked
+                    is = new InflaterInputStream(in, inflater, 8192);
+                }
+            }
+            return is;
+        }
+
+        public int read() throws IOException {
+            return stream().read();
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            return stream().read(b, off, len);
+        }
+
+        public int available() throws IOException {
+            return is == null ? 0 : is.available();
+        }
+
+        public void close() throws IOException {
+            try {
+                if (is != null) {
+                    is.close(); // GZIPInputStream ends its own inflater
+                }
+            } finally {
+                body.close();
+                if (inflater != null) {
+                    inflater.end();
+                }
+            }
+        }
+
+        public String toString() {
+            return (gzip ? "gzip " : "deflate ") + body;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.httpkit.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A striped counter, like JDK 8's LongAdder: a thread adds to its own cell, a
+ * cache line apart from the others, no contention among threads. Reading sums
+ * the cells, not a point in time.
+ */
+public class Counter {
+
+    static final int STRIPES;
+    static {
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors() * 2 && n < 64) {
+            n <<= 1;
+        }
+        STRIPES = n;
+    }
+    private static final int PAD = 8; // 64 bytes a cell
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+    // a thread, a stripe. the loop is a thread: always the same one
+    static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 58) & (STRIPES - 1);
+    }
+
+    public void inc() {
+        cells.getAndIncrement(stripe() * PAD);
+    }
+
+    public void dec() {
+        cells.getAndDecrement(stripe() * PAD);
+    }
+
+    public void add(long n) {
+        cells.getAndAdd(stripe() * PAD, n);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PAD);
+        }
+        return sum;
+    }
+
+    public String toString() {
+        return Long.toString(get());
+    }
+}
@@ -0,0 +1,8 @@
+package org.httpkit.metrics;
+
+/**
+ * A value read when a snapshot is taken: queue depth, requests in flight
+ */
+public interface Gauge {
+    long get();
+}
@@ -0,0 +1,100 @@
+package org.httpkit.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed buckets of latency, in ns: 4 a power of 2, within 25%, up to 2^41ns
+ * (36 minutes). Record is an add to the thread's stripe, no lock, no
+ * allocation. Percentiles are the upper bound of the bucket.
+ */
+public class Histogram {
+
+    static final int BUCKETS = 160;
+    private static final int SUM = BUCKETS; // after the buckets of a stripe
+    private static final int MAX = BUCKETS + 1;
+    private static final int ROW = BUCKETS + 2;
+    private static final long LIMIT = (1L << 41) - 1;
+
+    private final AtomicLongArray cells = new AtomicLongArray(Counter.STRIPES * ROW);
+
+    // 0-7: exact. then 4 a power of 2
+    static int bucket(long ns) {
+        if (ns < 8) {
+            return ns < 0 ? 0 : (int) ns;
+        }
+        if (ns > LIMIT) {
+            ns = LIMIT;
+        }
+        int e = 63 - Long.numberOfLeadingZeros(ns); // 3 - 40
+        int sub = (int) (ns >>> (e - 2)) & 3;
+        return 8 + (e - 3) * 4 + sub;
+    }
+
+    // the largest value of the bucket
+    static long upper(int bucket) {
+        if (bucket < 8) {
+            return bucket;
+        }
+        int e = (bucket - 8) / 4 + 3, sub = (bucket - 8) % 4;
+        return ((5L + sub) << (e - 2)) - 1;
+    }
+
+    public void record(long ns) {
+        int row = Counter.stripe() * ROW;
+        cells.getAndIncrement(row + bucket(ns));
+        cells.getAndAdd(row + SUM, ns);
+        long max;
+        while (ns > (max = cells.get(row + MAX)) && !cells.compareAndSet(row + MAX, max, ns)) {
+        }
+    }
+
+    /**
+     * Record the time since start, a System.nanoTime()
+     */
+    public void since(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    /**
+     * count; mean, p50, p90, p99, max in us
+     */
+    public Map<String, Object> snapshot() {
+        long[] buckets = new long[BUCKETS];
+        long count = 0, sum = 0, max = 0;
+        for (int s = 0; s < Counter.STRIPES; s++) {
+            int row = s * ROW;
+            for (int i = 0; i < BUCKETS; i++) {
+                long n = cells.get(row + i);
+                buckets[i] += n;
+                count += n;
+            }
+            sum += cells.get(row + SUM);
+            max = Math.max(max, cells.get(row + MAX));
+        }
+        Map<String, Object> m = new TreeMap<String, Object>();
+        m.put("count", count);
+        m.put("mean", count == 0 ? 0.0 : sum / 1000.0 / count);
+        m.put("p50", percentile(buckets, count, 0.5) / 1000.0);
+        m.put("p90", percentile(buckets, count, 0.9) / 1000.0);
+        m.put("p99", percentile(buckets, count, 0.99) / 1000.0);
+        m.put("max", max / 1000.0);
+        return m;
+    }
+
+    private static long percentile(long[] buckets, long count, double p) {
+        long rank = (long) Math.ceil(count * p), seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return upper(i);
+            }
+        }
+        return 0;
+    }
+
+    public String toString() {
+        return snapshot().toString();
+    }
+}
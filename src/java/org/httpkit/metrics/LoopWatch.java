@@ -0,0 +1,139 @@
+package org.httpkit.metrics;
+
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.httpkit.HttpUtils;
+
+/**
+ * Stall detector of an event loop. The loop stamps the start of an iteration,
+ * and the key it is on; a watchdog thread, shared by all loops, reports an
+ * iteration longer than the threshold, once, with the loop thread's stack: a
+ * handler blocking the loop, a slow callback.
+ */
+public class LoopWatch {
+
+    private static final CopyOnWriteArrayList<LoopWatch> WATCHED = new CopyOnWriteArrayList<LoopWatch>();
+    private static Thread watchdog; // guarded by WATCHED
+
+    private final Counter stalls;
+    private final Histogram loopTime;
+    private volatile long threshold; // ns, 0: not checked
+    private volatile Thread thread;
+    private volatile long start = 0; // nanoTime of the iteration, 0: waiting in select
+    private volatile SelectionKey current; // processing
+    private long reported = 0; // the iteration reported, by the watchdog
+    private volatile String lastStall;
+
+    /**
+     * @param threshold
+     *            ms, an iteration longer than it is a stall, 0 to disable
+     */
+    public LoopWatch(Metrics metrics, long threshold) {
+        this.stalls = metrics.counter("stalls");
+        this.loopTime = metrics.histogram("loop-time");
+        setThreshold(threshold);
+    }
+
+    public void setThreshold(long ms) {
+        if (ms < 0) {
+            throw new IllegalArgumentException("stall threshold should not be negative: " + ms);
+        }
+        this.threshold = TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+
+    /**
+     * By the loop thread, when it starts: watched until {@link #stop()}
+     */
+    public void start() {
+        thread = Thread.currentThread();
+        synchronized (WATCHED) {
+            WATCHED.add(this);
+            if (watchdog == null) {
+                watchdog = new Thread(new Runnable() {
+                    public void run() {
+                        watch();
+                    }
+                }, "loop-watchdog");
+                watchdog.setDaemon(true);
+                watchdog.start();
+            }
+        }
+    }
+
+    public void stop() {
+        WATCHED.remove(this);
+    }
+
+    // the iteration, by the loop
+    public void begin() {
+        start = System.nanoTime() | 1; // not 0
+    }
+
+    public void on(SelectionKey key) {
+        current = key;
+    }
+
+    public void end() {
+        long s = start;
+        if (s != 0) {
+            start = 0;
+            current = null;
+            loopTime.since(s);
+        }
+    }
+
+    /**
+     * The last stall: the loop, how long, the connection. null if none
+     */
+    public String getLastStall() {
+        return lastStall;
+    }
+
+    private void check(long now) {
+        long s = start, t = threshold;
+        if (s == 0 || t == 0 || s == reported || now - s < t) {
+            return;
+        }
+        reported = s;
+        Thread th = thread;
+        Exception trace = new Exception("stack of " + th.getName());
+        trace.setStackTrace(th.getStackTrace());
+        if (start != s) {
+            return; // done just now, not the stack of the stall
+        }
+        stalls.inc();
+        SelectionKey key = current;
+        String msg = th.getName() + " stalled " + (now - s) / 1000000 + "ms, on "
+                + (key == null ? null : key.channel());
+        lastStall = msg;
+        HttpUtils.printError(msg, trace);
+    }
+
+    private static void watch() {
+        while (true) {
+            long period = Long.MAX_VALUE;
+            long now = System.nanoTime();
+            for (LoopWatch w : WATCHED) {
+                w.check(now);
+                if (w.threshold > 0) {
+                    period = Math.min(period, w.threshold / 2);
+                }
+            }
+            if (period == Long.MAX_VALUE) { // none checked
+                synchronized (WATCHED) {
+                    if (WATCHED.isEmpty()) {
+                        watchdog = null; // restarted by the next loop
+                        return;
+                    }
+                }
+                period = TimeUnit.SECONDS.toNanos(1);
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.max(period, TimeUnit.MILLISECONDS.toNanos(5)));
+            } catch (InterruptedException ignore) {
+            }
+        }
+    }
+}
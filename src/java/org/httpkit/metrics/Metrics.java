@@ -0,0 +1,150 @@
+package org.httpkit.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.*;
+
+/**
+ * Named counters, histograms and gauges of a server, handler or client. Cheap
+ * to update, sub-microsecond, by any thread. Read as a snapshot map, or by JMX
+ * once registered: a histogram is flattened, like handler-time.p99.
+ */
+public class Metrics implements DynamicMBean {
+
+    private final ConcurrentMap<String, Object> metrics = new ConcurrentSkipListMap<String, Object>();
+    private volatile ObjectName registered;
+
+    public Counter counter(String name) {
+        Object m = metrics.get(name);
+        if (m == null) {
+            Object old = metrics.putIfAbsent(name, m = new Counter());
+            if (old != null) {
+                m = old;
+            }
+        }
+        return (Counter) m;
+    }
+
+    public Histogram histogram(String name) {
+        Object m = metrics.get(name);
+        if (m == null) {
+            Object old = metrics.putIfAbsent(name, m = new Histogram());
+            if (old != null) {
+                m = old;
+            }
+        }
+        return (Histogram) m;
+    }
+
+    public void gauge(String name, Gauge gauge) {
+        metrics.put(name, gauge);
+    }
+
+    /**
+     * name => long, a histogram: name => {count, mean, p50, p90, p99, max}, in
+     * us
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new TreeMap<String, Object>();
+        for (Map.Entry<String, Object> e : metrics.entrySet()) {
+            snapshot.put(e.getKey(), value(e.getValue()));
+        }
+        return snapshot;
+    }
+
+    private static Object value(Object m) {
+        if (m instanceof Counter) {
+            return ((Counter) m).get();
+        } else if (m instanceof Histogram) {
+            return ((Histogram) m).snapshot();
+        }
+        return ((Gauge) m).get();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> flatten() {
+        Map<String, Object> flat = new TreeMap<String, Object>();
+        for (Map.Entry<String, Object> e : snapshot().entrySet()) {
+            if (e.getValue() instanceof Map) {
+                for (Map.Entry<String, Object> h : ((Map<String, Object>) e.getValue())
+                        .entrySet()) {
+                    flat.put(e.getKey() + "." + h.getKey(), h.getValue());
+                }
+            } else {
+                flat.put(e.getKey(), e.getValue());
+            }
+        }
+        return flat;
+    }
+
+    /**
+     * As an MBean of the platform server, e.g. org.httpkit:type=HttpServer,port=8080
+     */
+    public void register(String name) throws JMException {
+        ObjectName on = new ObjectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        registered = on;
+    }
+
+    public void unregister() {
+        ObjectName on = registered;
+        if (on != null) {
+            registered = null;
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+            } catch (JMException ignore) { // unregistered by others
+            }
+        }
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object v = flatten().get(attribute);
+        if (v == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return v;
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Object> flat = flatten();
+        AttributeList list = new AttributeList();
+        for (String a : attributes) {
+            if (flat.containsKey(a)) {
+                list.add(new Attribute(a, flat.get(a)));
+            }
+        }
+        return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("read only: " + attribute.getName());
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList(); // read only
+    }
+
+    public Object invoke(String action, Object[] params, String[] signature)
+            throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Object> flat = flatten();
+        MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[flat.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> e : flat.entrySet()) {
+            attrs[i++] = new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(),
+                    e.getKey(), true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "http-kit metrics", attrs, null, null, null);
+    }
+
+    public String toString() {
+        return "Metrics" + snapshot();
+    }
+}
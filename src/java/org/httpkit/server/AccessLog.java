@@ -0,0 +1,241 @@
+package org.httpkit.server;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.httpkit.HttpMethod;
+import org.httpkit.HttpUtils;
+import org.httpkit.HttpVersion;
+import org.httpkit.metrics.Counter;
+
+/**
+ * Access log, off the hot path. A response is recorded into a preallocated
+ * ring of fixed width slots: a few longs, and references to the uri, query
+ * string and address; no format, no lock, no allocation. A background thread
+ * formats them in batches, appends to the file by a FileChannel. When the ring
+ * is full, the event is dropped and counted: never waits for the disk.
+ *
+ * A line: remote - - [time] "method uri version" status bytes ms
+ */
+public class AccessLog {
+
+    static final int WIDTH = 4; // time, duration, bytes, status|version|method
+    static final int REFS = 3; // uri, query string, remote address
+    static final int BATCH = 512; // events of a write
+    static final long IDLE = TimeUnit.MILLISECONDS.toNanos(20);
+    // added to the tail on close: a claim after it sees the ring full
+    static final long SEALED = Long.MAX_VALUE / 2;
+
+    private static final HttpMethod[] METHODS = HttpMethod.values();
+    private static final HttpVersion[] VERSIONS = HttpVersion.values();
+
+    private final int mask;
+    private final long[] slots;
+    private final Object[] refs;
+    // seq + 1 of the event in the slot, set once written
+    private final AtomicLongArray published;
+    private final AtomicLong tail = new AtomicLong(0); // next to claim
+    private volatile long head = 0; // next to write, by the writer
+    private volatile long end = -1; // the tail when closed, all claimed before it
+
+    private final Counter logged = new Counter();
+    private final Counter dropped = new Counter();
+
+    private final String path;
+    private final FileChannel channel;
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    // by the writer
+    private final StringBuilder sb = new StringBuilder(BATCH * 128);
+    private final SimpleDateFormat format = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z",
+            Locale.US);
+    private long second = -1;
+    private String date;
+
+    /**
+     * @param capacity
+     *            events buffered, rounded up to a power of 2
+     */
+    public AccessLog(String path, int capacity) throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity should be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.slots = new long[size * WIDTH];
+        this.refs = new Object[size * REFS];
+        this.published = new AtomicLongArray(size);
+        this.path = path;
+        this.channel = new FileOutputStream(path, true).getChannel();
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Record a response, by any thread
+     *
+     * @param start
+     *            System.nanoTime() the request is received
+     * @return false if dropped: the ring is full, or closed
+     */
+    public boolean log(HttpRequest req, int status, long bytes, long start) {
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head > mask || closed) {
+                dropped.inc();
+                return false;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+        int i = (int) seq & mask;
+        int s = i * WIDTH, r = i * REFS;
+        slots[s] = System.currentTimeMillis();
+        slots[s + 1] = System.nanoTime() - start;
+        slots[s + 2] = bytes;
+        slots[s + 3] = (long) status << 16 | req.version.ordinal() << 8 | req.method.ordinal();
+        refs[r] = req.uri;
+        refs[r + 1] = req.queryString;
+        refs[r + 2] = req.remoteAddr;
+        published.lazySet(i, seq + 1);
+        return true;
+    }
+
+    /**
+     * Record an encoded response: the status from the initial line, the bytes
+     * of the buffers
+     */
+    public boolean log(HttpRequest req, ByteBuffer[] buffers, long start) {
+        ByteBuffer line = buffers[0];
+        int p = line.position() + 9; // HTTP/1.1 200
+        int status = (line.get(p) - '0') * 100 + (line.get(p + 1) - '0') * 10
+                + (line.get(p + 2) - '0');
+        long bytes = 0;
+        for (ByteBuffer b : buffers) {
+            if (b != null) {
+                bytes += b.remaining();
+            }
+        }
+        return log(req, status, bytes, start);
+    }
+
+    private void write() {
+        while (true) {
+            boolean last = closed; // read before the drain: nothing after it
+            int n = drain();
+            if (n > 0) {
+                flush();
+            } else if (last && head == end) { // claimed ones may not be published yet
+                break;
+            } else {
+                LockSupport.parkNanos(IDLE);
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    // format up to BATCH events into sb
+    private int drain() {
+        long seq = head;
+        int n = 0;
+        while (n < BATCH) {
+            int i = (int) seq & mask;
+            if (published.get(i) != seq + 1) {
+                break;
+            }
+            int s = i * WIDTH, r = i * REFS;
+            format(slots[s], slots[s + 1], slots[s + 2], slots[s + 3], (String) refs[r],
+                    (String) refs[r + 1], (InetSocketAddress) refs[r + 2]);
+            refs[r] = refs[r + 1] = refs[r + 2] = null; // not to hold them
+            head = ++seq; // the slot can be reused
+            n++;
+        }
+        logged.add(n);
+        return n;
+    }
+
+    private void format(long time, long duration, long bytes, long packed, String uri,
+            String query, InetSocketAddress remote) {
+        if (time / 1000 != second) {
+            second = time / 1000;
+            date = format.format(new Date(time));
+        }
+        sb.append(remote == null ? "-" : remote.getAddress().getHostAddress());
+        sb.append(" - - [").append(date).append("] \"");
+        sb.append(METHODS[(int) packed & 0xff]).append(' ').append(uri);
+        if (query != null) {
+            sb.append('?').append(query);
+        }
+        sb.append(VERSIONS[(int) (packed >>> 8) & 0xff] == HttpVersion.HTTP_1_0 ? " HTTP/1.0\" "
+                : " HTTP/1.1\" ");
+        sb.append(packed >>> 16).append(' ').append(bytes).append(' ');
+        long us = duration / 1000;
+        sb.append(us / 1000).append('.');
+        us %= 1000;
+        if (us < 100) {
+            sb.append(us < 10 ? "00" : "0");
+        }
+        sb.append(us).append('\n');
+    }
+
+    private void flush() {
+        ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(HttpUtils.UTF_8));
+        sb.setLength(0);
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            HttpUtils.printError("write access log " + path, e);
+        }
+    }
+
+    public long getLogged() {
+        return logged.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Write what's buffered, then close the file. Events after it are dropped
+     */
+    public synchronized void close() {
+        if (!closed) {
+            end = tail.getAndAdd(SEALED);
+            closed = true;
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ignore) {
+        }
+    }
+
+    public String toString() {
+        return "AccessLog{" + path + ", logged=" + logged.get() + ", dropped=" + dropped.get()
+                + "}";
+    }
+}
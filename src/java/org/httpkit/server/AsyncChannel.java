@@ -12,9 +12,11 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.httpkit.DynamicBytes;
+import org.httpkit.ws.PerMessageDeflate;
 import org.httpkit.ws.WSEncoder;
 import org.httpkit.ws.WsServerAtta;
 
@@ -28,9 +30,16 @@ public class AsyncChannel {
 
     final public AtomicReference<Boolean> closedRan = new AtomicReference<Boolean>(false);
     final AtomicReference<IFn> closeHandler = new AtomicReference<IFn>(null);
+    // internal listeners, like TopicHub's auto unsubscribe. run once, on close
+    final ConcurrentLinkedQueue<Runnable> closeHooks = new ConcurrentLinkedQueue<Runnable>();
+    // scheduled by the loop, cancelled on close
+    private final ConcurrentLinkedQueue<LoopTimer> timers = new ConcurrentLinkedQueue<LoopTimer>();
+    HttpRequest request; // being responded, for the access log
 
     // websocket
     final AtomicReference<IFn> receiveHandler = new AtomicReference<IFn>(null);
+    // binary message is passed to receiveHandler as it arrives
+    private volatile boolean receiveFragments = false;
 
     // streaming
     private volatile boolean isHeaderSent = false;
@@ -44,9 +53,12 @@ public class AsyncChannel {
     }
 
     public void reset() {
+        cancelTimers(); // of the last request
         closedRan.lazySet(false);
         closeHandler.lazySet(null);
         receiveHandler.lazySet(null);
+        receiveFragments = false;
+        closeHooks.clear();
         isHeaderSent = false;
         serialTask = null;
     }
@@ -90,6 +102,7 @@ public class AsyncChannel {
         if (close) {
             onClose(0);
         }
+        server.log(request, buffers); // the first chunk if streaming
         write(buffers);
     }
 
@@ -112,9 +125,23 @@ public class AsyncChannel {
     }
 
     public void setReceiveHandler(IFn fn) {
+        setReceiveHandler(fn, false);
+    }
+
+    /**
+     * @param fragments
+     *            binary message is not reassembled, fn get {:data byte[]
+     *            :last? boolean} for every chunk, no max message size
+     */
+    public void setReceiveHandler(IFn fn, boolean fragments) {
         if (!receiveHandler.compareAndSet(null, fn)) {
             throw new IllegalStateException("receive handler exist: " + receiveHandler.get());
         }
+        receiveFragments = fragments;
+    }
+
+    public boolean isReceiveFragments() {
+        return receiveFragments;
     }
 
     public void messageReceived(final Object mesg) {
@@ -125,6 +152,25 @@ public class AsyncChannel {
     }
 
     public void sendHandshake(Map<String, Object> headers) {
+        sendHandshake(headers, null);
+    }
+
+    /**
+     * @param extensions
+     *            Sec-WebSocket-Extensions sent by client, permessage-deflate
+     *            is negotiated if enabled
+     */
+    public void sendHandshake(Map<String, Object> headers, String extensions) {
+        PerMessageDeflate deflate = server.getWsDeflate();
+        if (deflate != null && extensions != null) {
+            String accepted = deflate.negotiate(extensions);
+            if (accepted != null) {
+                // before 101 is sent, client's compressed frame can be decoded
+                ((WsServerAtta) key.attachment()).enableDeflate(deflate);
+                headers = new TreeMap<String, Object>(headers);
+                headers.put("Sec-WebSocket-Extensions", accepted);
+            }
+        }
         write(encode(101, headers, null));
     }
 
@@ -139,6 +185,7 @@ public class AsyncChannel {
 
     public void onClose(int status) {
         if (closedRan.compareAndSet(false, true)) {
+            runCloseHooks();
             IFn f = closeHandler.get();
             if (f != null) {
                 f.invoke(readable(status));
@@ -146,6 +193,69 @@ public class AsyncChannel {
         }
     }
 
+    /**
+     * Run hook once when the channel is closed, by server or client. Run
+     * immediately if already closed
+     */
+    public void addCloseHook(Runnable hook) {
+        closeHooks.add(hook);
+        if (closedRan.get()) {
+            runCloseHooks();
+        }
+    }
+
+    /**
+     * Remove a hook added, or one equal to it
+     *
+     * @return false if not there, or already run
+     */
+    public boolean removeCloseHook(Runnable hook) {
+        return closeHooks.remove(hook);
+    }
+
+    /**
+     * Run fn by the server loop in delay ms, no thread handoff: a timeout of
+     * long-polling, a heartbeat of streaming. Cancelled if the channel is closed
+     * first. fn should be quick, like a send
+     */
+    public LoopTimer schedule(long delay, IFn fn) {
+        // fired ones are dropped, not to grow with a heartbeat
+        for (LoopTimer t : timers) {
+            if (t.isDone()) {
+                timers.remove(t);
+            }
+        }
+        LoopTimer timer = server.schedule(delay, fn, this);
+        timers.add(timer);
+        if (closedRan.get()) {
+            cancelTimers();
+        }
+        return timer;
+    }
+
+    void cancelTimers() {
+        LoopTimer t;
+        while ((t = timers.poll()) != null) {
+            t.cancel();
+        }
+    }
+
+    public boolean hasCloseListener() {
+        return closeHandler.get() != null || !closeHooks.isEmpty();
+    }
+
+    private void runCloseHooks() {
+        cancelTimers();
+        Runnable hook;
+        while ((hook = closeHooks.poll()) != null) { // poll: each run only once
+            try {
+                hook.run();
+            } catch (Exception e) {
+                printError("close hook " + hook, e);
+            }
+        }
+    }
+
     // also sent CloseFrame a final Chunk
     public boolean serverClose(int status) {
         if (!closedRan.compareAndSet(false, true)) {
@@ -157,6 +267,7 @@ public class AsyncChannel {
         } else {
             write(ByteBuffer.wrap(finalChunkBytes));
         }
+        runCloseHooks();
         IFn f = closeHandler.get();
         if (f != null) {
             f.invoke(readable(0)); // server close is 0
@@ -170,23 +281,9 @@ public class AsyncChannel {
         }
 
         if (isWebSocket()) {
-            if (data instanceof Map) { // only get the :body if map
-                Object tmp = ((Map<Keyword, Object>) data).get(BODY);
-                if (tmp != null) { // save contains(BODY) && get(BODY)
-                    data = tmp;
-                }
-            }
-
-            if (data instanceof String) { // null is not allowed
-                write(WSEncoder.encode(OPCODE_TEXT, ((String) data).getBytes(UTF_8)));
-            } else if (data instanceof byte[]) {
-                write(WSEncoder.encode(OPCODE_BINARY, (byte[]) data));
-            } else if (data instanceof InputStream) {
-                DynamicBytes bytes = readAll((InputStream) data);
-                write(WSEncoder.encode(OPCODE_BINARY, bytes.get(), bytes.length()));
-            } else if (data != null) { // ignore null
-                throw new IllegalArgumentException(
-                        "only accept string, byte[], InputStream, get" + data);
+            ByteBuffer frame = encodeFrame(data, getDeflate());
+            if (frame != null) { // ignore null
+                write(frame);
             }
 
             if (close) {
@@ -203,6 +300,77 @@ public class AsyncChannel {
         return true;
     }
 
+    // String => text, byte[] => binary. InputStream is read into DynamicBytes,
+    // binary of its length, not copied
+    public static Object frameData(Object data) throws IOException {
+        if (data instanceof Map) { // only get the :body if map
+            Object tmp = ((Map<Keyword, Object>) data).get(BODY);
+            if (tmp != null) { // save contains(BODY) && get(BODY)
+                data = tmp;
+            }
+        }
+        if (data instanceof InputStream) {
+            return readAll((InputStream) data);
+        } else if (data == null || data instanceof String || data instanceof byte[]
+                || data instanceof DynamicBytes) {
+            return data;
+        }
+        throw new IllegalArgumentException("only accept string, byte[], InputStream, get"
+                + data);
+    }
+
+    /**
+     * Websocket frame for data, encoded once, can be shared by many channels
+     * negotiated the same deflate (or null)
+     */
+    public static ByteBuffer encodeFrame(Object data, PerMessageDeflate deflate)
+            throws IOException {
+        data = frameData(data);
+        byte opcode;
+        byte[] bytes;
+        int length;
+        if (data instanceof String) {
+            opcode = OPCODE_TEXT;
+            bytes = ((String) data).getBytes(UTF_8);
+            length = bytes.length;
+        } else if (data instanceof DynamicBytes) {
+            opcode = OPCODE_BINARY;
+            bytes = ((DynamicBytes) data).get();
+            length = ((DynamicBytes) data).length();
+        } else if (data != null) {
+            opcode = OPCODE_BINARY;
+            bytes = (byte[]) data;
+            length = bytes.length;
+        } else {
+            return null; // null is ignored
+        }
+        if (deflate != null) {
+            return deflate.encode(opcode, bytes, length);
+        }
+        return WSEncoder.encode(opcode, bytes, length);
+    }
+
+    // negotiated permessage-deflate, null if not, or not websocket
+    public PerMessageDeflate getDeflate() {
+        Object atta = key.attachment();
+        if (atta instanceof WsServerAtta) {
+            return ((WsServerAtta) atta).getDeflate();
+        }
+        return null;
+    }
+
+    /**
+     * Send a frame returned by {@link #encodeFrame(Object, PerMessageDeflate)}. The frame is not
+     * modified, a duplicate is queued for write
+     */
+    public boolean sendFrame(ByteBuffer frame) {
+        if (closedRan.get()) {
+            return false;
+        }
+        write(frame.duplicate());
+        return true;
+    }
+
     public String toString() {
         Socket s = ((SocketChannel) key.channel()).socket();
         return s.getLocalSocketAddress() + "<->" + s.getRemoteSocketAddress();
@@ -10,6 +10,7 @@ import java.util.*;
 
 import org.httpkit.DynamicBytes;
 import org.httpkit.HttpStatus;
+import org.httpkit.ws.FragmentFrame;
 
 import clojure.lang.IPersistentMap;
 import clojure.lang.Keyword;
@@ -50,9 +51,14 @@ public class ClojureRing {
     public static final Keyword ASYC_CHANNEL = intern("async-channel");
 
     public static final Keyword HTTP = intern("http");
+    public static final Keyword HTTPS = intern("https");
 
     public static final Keyword STATUS = intern("status");
 
+    // websocket streaming receive
+    public static final Keyword DATA = intern("data");
+    public static final Keyword LAST = intern("last?");
+
     public static int getStatus(Map<Keyword, Object> resp) {
         int status = 200;
         Object s = resp.get(STATUS);
@@ -122,7 +128,7 @@ public class ClojureRing {
         m.put(REMOTE_ADDR, req.getRemoteAddr());
         m.put(URI, req.uri);
         m.put(QUERY_STRING, req.queryString);
-        m.put(SCHEME, HTTP); // only http is supported
+        m.put(SCHEME, req.isSecure ? HTTPS : HTTP);
         m.put(ASYC_CHANNEL, req.asycChannel);
         m.put(WEBSOCKET, req.isWebSocket);
         m.put(REQUEST_METHOD, req.method.KEY);
@@ -135,4 +141,11 @@ public class ClojureRing {
         m.put(BODY, req.getBody());
         return PersistentArrayMap.create(m);
     }
+
+    public static IPersistentMap fragment(FragmentFrame frame) {
+        Map<Object, Object> m = new TreeMap<Object, Object>();
+        m.put(DATA, frame.data);
+        m.put(LAST, frame.last);
+        return PersistentArrayMap.create(m);
+    }
 }
@@ -28,9 +28,11 @@ public class HttpRequest {
     String charset = "utf8";
     boolean isKeepAlive = false;
     boolean isWebSocket = false;
-    
+    boolean isSecure = false; // https, wss
+
     InetSocketAddress remoteAddr;
     AsyncChannel asycChannel;
+    long start = 0; // nanoTime decoded, if access logged
 
     public HttpRequest(HttpMethod method, String url, HttpVersion version) {
         this.method = method;
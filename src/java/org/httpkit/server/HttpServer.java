@@ -13,10 +13,25 @@ import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
 
 import org.httpkit.*;
+import org.httpkit.PriorityQueue;
+import org.httpkit.metrics.Counter;
+import org.httpkit.metrics.Gauge;
+import org.httpkit.metrics.LoopWatch;
+import org.httpkit.metrics.Metrics;
 import org.httpkit.ws.*;
 
+import clojure.lang.IFn;
+
 public class HttpServer implements Runnable {
 
     static final String THREAD_NAME = "server-loop";
@@ -30,7 +45,58 @@ public class HttpServer implements Runnable {
 
     private Thread serverThread;
 
+    // permessage-deflate, null: disabled
+    private PerMessageDeflate wsDeflate;
+    private int maxWsMessage = WSDecoder.MAX_MESSAGE;
+
+    // WebSocket keepalive, null: disabled
+    private TimingWheel<SelectionKey> wsWheel;
+    private long wsPingInterval;
+    private long wsPongTimeout;
+    private volatile long wsPings = 0;
+    private volatile long wsReaped = 0; // no pong in time, closed
+    private static final ByteBuffer PING = WSEncoder.encode(WSDecoder.OPCODE_PING, new byte[0]);
+    private static final ByteBuffer CLOSE_AWAY_FRAME = WSEncoder.encode(
+            WSDecoder.OPCODE_CLOSE, CloseFrame.AWAY.data);
+    private final TimingWheel.Handler<SelectionKey> wsKeepalive =
+            new TimingWheel.Handler<SelectionKey>() {
+        public void expire(SelectionKey key, long now) {
+            checkAlive(key, now);
+        }
+    };
+
+    // TLS, null: plaintext
+    private SSLContext sslContext;
+    private SSLParameters sslParameters;
+    private ExecutorService sslTasks; // handshake tasks: certificate, key exchange
+    // network buffers of closed connections, by the loop
+    private final ArrayList<ByteBuffer> sslBuffers = new ArrayList<ByteBuffer>();
+    private volatile long sslHandshakes = 0;
+
+    // timers run by the loop: of channels, like a long-poll timeout. By
+    // deadline: select waits till the earliest, no polling
+    private final PriorityQueue<LoopTimer> timers = new PriorityQueue<LoopTimer>();
+    // scheduled, added to the heap by the loop before select
+    private final ConcurrentLinkedQueue<LoopTimer> newTimers = new ConcurrentLinkedQueue<LoopTimer>();
+    // cancelled, removed from the heap by the loop: not left till the deadline
+    private final ConcurrentLinkedQueue<LoopTimer> cancelledTimers =
+            new ConcurrentLinkedQueue<LoopTimer>();
+    private volatile long timersFired = 0;
+    private volatile int timersPending = 0; // in the heap
+
     private final ConcurrentLinkedQueue<SelectionKey> pendings = new ConcurrentLinkedQueue<SelectionKey>();
+
+    private final Metrics metrics = new Metrics();
+    private final Counter accepts = metrics.counter("accepts");
+    private final Counter connections = metrics.counter("connections"); // open
+    private final Counter reads = metrics.counter("reads");
+    private final Counter bytesIn = metrics.counter("bytes-in");
+    private final Counter bytesOut = metrics.counter("bytes-out");
+    private final Counter bodyTooLarge = metrics.counter("body-too-large"); // 413
+    private final Counter lineTooLarge = metrics.counter("line-too-large"); // 414
+    // loop-time: processing the selected keys and timers, not waiting in select
+    private final LoopWatch watch = new LoopWatch(metrics, 200);
+    private volatile AccessLog accessLog;
     // shared, single thread
     private final ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 64);
 
@@ -54,8 +120,22 @@ public class HttpServer implements Runnable {
             while ((s = ch.accept()) != null) {
                 s.configureBlocking(false);
                 HttpServerAtta atta = new HttpServerAtta(maxBody, maxLine);
-                SelectionKey k = s.register(selector, OP_READ, atta);
+                if (sslContext != null) {
+                    // a record is written at once; the flights, the session
+                    // ticket: not to wait for a delayed ACK
+                    s.socket().setTcpNoDelay(true);
+                    SSLEngine engine = sslContext.createSSLEngine();
+                    engine.setUseClientMode(false);
+                    if (sslParameters != null) {
+                        engine.setSSLParameters(sslParameters);
+                    }
+                    engine.beginHandshake();
+                    atta.ssl = new SslConn(engine, sslBuffers, sslTasks);
+                }
+                SelectionKey k = s.register(selector, OP_READ, atta); // ClientHello
                 atta.asycChannel = new AsyncChannel(k, this);
+                accepts.inc();
+                connections.inc();
             }
         } catch (Exception e) {
             // too many open files. do not quit
@@ -64,12 +144,22 @@ public class HttpServer implements Runnable {
     }
 
     private void closeKey(final SelectionKey key, int status) {
+        if (key.channel().isOpen()) {
+            connections.dec();
+        }
         try {
             key.channel().close();
         } catch (Exception ignore) {
         }
 
         ServerAtta att = (ServerAtta) key.attachment();
+        if (att.ssl != null) {
+            att.ssl.release();
+        }
+        if (att instanceof WsServerAtta) {
+            ((WsServerAtta) att).decoder.release();
+        }
+        att.asycChannel.cancelTimers(); // a handler may not close the channel
         if (att instanceof HttpServerAtta) {
             handler.clientClose(att.asycChannel, -1);
         } else {
@@ -84,14 +174,25 @@ public class HttpServer implements Runnable {
                 HttpRequest request = atta.decoder.decode(buffer);
                 if (request != null) {
                     if (request.isWebSocket) {
-                        key.attach(new WsServerAtta(atta.asycChannel));
+                        WsServerAtta ws = new WsServerAtta(atta.asycChannel, maxWsMessage);
+                        ws.ssl = atta.ssl;
+                        key.attach(ws);
+                        if (wsWheel != null) {
+                            ws.lastRead = System.currentTimeMillis();
+                            wsWheel.add(key, wsPingInterval);
+                        }
                     } else {
                         atta.keepalive = request.isKeepAlive;
                     }
                     request.asycChannel = atta.asycChannel;
+                    atta.asycChannel.request = request;
+                    if (accessLog != null) {
+                        request.start = System.nanoTime();
+                    }
+                    request.isSecure = atta.ssl != null;
                     request.remoteAddr = (InetSocketAddress) ch.socket()
                             .getRemoteSocketAddress();
-                    handler.handle(request, new ResponseCallback(key, this));
+                    handler.handle(request, new ResponseCallback(key, this, request));
                     // pipelining not supported : need queue to ensure order
                     // AsyncChannel can't be reseted here
                     atta.decoder.reset();
@@ -100,11 +201,13 @@ public class HttpServer implements Runnable {
         } catch (ProtocolException e) {
             closeKey(key, -1);
         } catch (RequestTooLargeException e) {
+            bodyTooLarge.inc();
             ByteBuffer[] buffers = ClojureRing.encode(413, null, e.getMessage());
             atta.addBuffer(buffers);
             atta.keepalive = false; // close after write
             key.interestOps(OP_WRITE);
         } catch (LineTooLargeException e) {
+            lineTooLarge.inc();
             ByteBuffer[] buffers = ClojureRing.encode(414, null, e.getMessage());
             atta.keepalive = false; // close after write
             atta.addBuffer(buffers);
@@ -113,16 +216,27 @@ public class HttpServer implements Runnable {
     }
 
     private void decodeWs(WsServerAtta atta, SelectionKey key) {
+        if (wsWheel != null) {
+            atta.lastRead = System.currentTimeMillis(); // any frame, pong or not
+        }
         try {
+            atta.decoder.setStreaming(atta.asycChannel.isReceiveFragments());
             do {
                 WSFrame frame = atta.decoder.decode(buffer);
                 if (frame instanceof TextFrame || frame instanceof BinaryFrame) {
                     handler.handle(atta.asycChannel, frame);
                     atta.decoder.reset();
+                } else if (frame instanceof FragmentFrame) {
+                    handler.handle(atta.asycChannel, frame);
+                    if (((FragmentFrame) frame).last) {
+                        atta.decoder.reset();
+                    }
                 } else if (frame instanceof PingFrame) {
                     atta.addBuffer(WSEncoder.encode(WSDecoder.OPCODE_PONG, frame.data));
                     atta.decoder.reset();
                     key.interestOps(OP_WRITE);
+                } else if (frame instanceof PongFrame) {
+                    atta.decoder.reset(); // alive, lastRead is updated
                 } else if (frame instanceof CloseFrame) {
                     // even though the logic connection is closed. the socket
                     // did not, if client willing to reuse it, http-kit is more
@@ -140,14 +254,16 @@ public class HttpServer implements Runnable {
 
     private void doRead(final SelectionKey key) {
         SocketChannel ch = (SocketChannel) key.channel();
+        final ServerAtta atta = (ServerAtta) key.attachment();
         try {
             buffer.clear(); // clear for read
-            int read = ch.read(buffer);
+            int read = atta.ssl == null ? ch.read(buffer) : atta.ssl.read(ch, buffer);
             if (read == -1) {
                 // remote entity shut the socket down cleanly.
                 closeKey(key, CLOSE_AWAY);
             } else if (read > 0) {
-                final ServerAtta atta = (ServerAtta) key.attachment();
+                reads.inc();
+                bytesIn.add(read);
                 buffer.flip(); // flip for read
                 if (atta instanceof HttpServerAtta) {
                     decodeHttp((HttpServerAtta) atta, key, ch);
@@ -169,7 +285,16 @@ public class HttpServer implements Runnable {
             // 1. keep byte data order, 2. ensure visibility
             synchronized (atta.toWrites) {
                 int size = toWrites.size();
-                if (size == 1) {
+                long before = 0, left = 0; // plaintext, written by TLS or not
+                for (ByteBuffer b : toWrites) {
+                    before += b.remaining();
+                }
+                boolean flushed = true; // no encrypted bytes left
+                if (atta.ssl != null) {
+                    ByteBuffer buffers[] = new ByteBuffer[size];
+                    toWrites.toArray(buffers);
+                    flushed = atta.ssl.write(ch, buffers);
+                } else if (size == 1) {
                     ch.write(toWrites.get(0));
                     // TODO investigate why needed.
                     // ws request for write, but has no data?
@@ -180,14 +305,20 @@ public class HttpServer implements Runnable {
                 }
                 Iterator<ByteBuffer> ite = toWrites.iterator();
                 while (ite.hasNext()) {
-                    if (!ite.next().hasRemaining()) {
+                    ByteBuffer b = ite.next();
+                    if (!b.hasRemaining()) {
                         ite.remove();
+                    } else {
+                        left += b.remaining();
                     }
                 }
+                bytesOut.add(before - left);
                 // all done
-                if (toWrites.size() == 0) {
+                if (toWrites.size() == 0 && flushed) {
                     if (atta.isKeepAlive()) {
                         key.interestOps(OP_READ);
+                    } else if (atta instanceof WsServerAtta) {
+                        closeKey(key, ((WsServerAtta) atta).closeStatus);
                     } else {
                         closeKey(key, CLOSE_NORMAL);
                     }
@@ -198,12 +329,117 @@ public class HttpServer implements Runnable {
         }
     }
 
+    private void handshake(final SelectionKey key) {
+        ServerAtta atta = (ServerAtta) key.attachment();
+        try {
+            int ops = atta.ssl.handshake((SocketChannel) key.channel(), buffer, new Runnable() {
+                public void run() { // tasks done, continue by the loop
+                    queueWrite(key);
+                }
+            });
+            if (ops == SslConn.TASKS) {
+                key.interestOps(0);
+            } else if (ops != 0) {
+                key.interestOps(ops);
+            } else {
+                sslHandshakes++;
+                key.interestOps(OP_READ);
+                doRead(key); // the request may be received with the Finished
+            }
+        } catch (IOException e) { // SSLException included: bad client, not trusted
+            closeKey(key, CLOSE_AWAY);
+        }
+    }
+
+    // ping if idle for wsPingInterval, close if no pong in wsPongTimeout
+    private void checkAlive(SelectionKey key, long now) {
+        if (!key.isValid() || !(key.attachment() instanceof WsServerAtta)) {
+            return; // closed, dropped from the wheel
+        }
+        WsServerAtta atta = (WsServerAtta) key.attachment();
+        if (atta.closeStatus != 0) { // the close frame not written in time
+            closeKey(key, atta.closeStatus);
+        } else if (atta.pingSent > 0 && atta.lastRead < atta.pingSent) {
+            long wait = atta.pingSent + wsPongTimeout - now;
+            if (wait > 0) {
+                wsWheel.add(key, wait);
+            } else { // half-open, or too busy to answer
+                wsReaped++;
+                // after what's queued, closed once written, as serverClose
+                atta.closeStatus = CLOSE_AWAY;
+                atta.addBuffer(CLOSE_AWAY_FRAME.duplicate());
+                queueWrite(key);
+                wsWheel.add(key, wsPongTimeout);
+            }
+        } else {
+            long idle = now - atta.lastRead;
+            if (idle >= wsPingInterval) {
+                wsPings++;
+                atta.pingSent = now;
+                atta.addBuffer(PING.duplicate());
+                key.interestOps(OP_WRITE);
+                wsWheel.add(key, wsPongTimeout);
+            } else {
+                atta.pingSent = 0;
+                wsWheel.add(key, wsPingInterval - idle);
+            }
+        }
+    }
+
     public void queueWrite(final SelectionKey key) {
         pendings.add(key);
         selector.wakeup(); // JVM is smart enough: only once per loop
     }
 
+    /**
+     * Run task by the loop in delay ms, no thread handoff when due. A timer of
+     * the channel (can be null) is dropped if the channel is closed
+     */
+    LoopTimer schedule(long delay, IFn task, AsyncChannel channel) {
+        LoopTimer timer = new LoopTimer(delay, task, channel, this);
+        newTimers.add(timer);
+        if (Thread.currentThread() != serverThread) {
+            selector.wakeup(); // the loop takes it before the next select
+        }
+        return timer;
+    }
+
+    void cancelled(LoopTimer timer) {
+        cancelledTimers.add(timer); // taken at the next iteration, no wakeup
+    }
+
+    // ms to the earliest live timer, cancelled ones before it are dropped. 0
+    // if none
+    private long untilNextTimer(long now) {
+        LoopTimer t;
+        while ((t = timers.peek()) != null && t.isDone()) {
+            timers.poll();
+        }
+        return t == null ? 0 : Math.max(1, t.deadline - now);
+    }
+
+    private void runTimers(long now) {
+        LoopTimer t;
+        while ((t = timers.peek()) != null && t.deadline <= now) {
+            timers.poll();
+            if (t.isDone()) {
+                continue; // cancelled
+            }
+            timersFired++;
+            try {
+                t.run();
+            } catch (Throwable e) {
+                HttpUtils.printError("In timer: " + t, e);
+            }
+        }
+    }
+
+    public LoopTimer schedule(long delay, IFn task) {
+        return schedule(delay, task, null);
+    }
+
     public void run() {
+        watch.start();
         while (true) {
             try {
                 SelectionKey k = null;
@@ -212,7 +448,32 @@ public class HttpServer implements Runnable {
                         k.interestOps(OP_WRITE);
                     }
                 }
-                if (selector.select() <= 0) {
+                LoopTimer timer;
+                while ((timer = newTimers.poll()) != null) {
+                    if (!timer.isDone()) {
+                        timers.offer(timer);
+                    }
+                }
+                while ((timer = cancelledTimers.poll()) != null) {
+                    timers.remove(timer); // O(log n), by its index
+                }
+                boolean ws = wsWheel != null && !wsWheel.isEmpty();
+                long timeout = untilNextTimer(System.currentTimeMillis());
+                if (ws && (timeout == 0 || timeout > wsWheel.getTick())) {
+                    timeout = wsWheel.getTick();
+                }
+                int selected = timeout == 0 ? selector.select() : selector.select(timeout);
+                watch.begin();
+                if (ws || timers.size() > 0) {
+                    long now = System.currentTimeMillis();
+                    if (ws) {
+                        wsWheel.advance(now, wsKeepalive);
+                    }
+                    runTimers(now);
+                }
+                timersPending = timers.size();
+                if (selected <= 0) {
+                    watch.end();
                     continue;
                 }
                 Set<SelectionKey> selectedKeys = selector.selectedKeys();
@@ -223,8 +484,12 @@ public class HttpServer implements Runnable {
                     if (!key.isValid()) {
                         continue;
                     }
+                    watch.on(key);
                     if (key.isAcceptable()) {
                         accept(key);
+                    } else if (((ServerAtta) key.attachment()).ssl != null
+                            && ((ServerAtta) key.attachment()).ssl.handshaking) {
+                        handshake(key);
                     } else if (key.isReadable()) {
                         doRead(key);
                     } else if (key.isWritable()) {
@@ -232,14 +497,141 @@ public class HttpServer implements Runnable {
                     }
                 }
                 selectedKeys.clear();
+                watch.end();
             } catch (ClosedSelectorException ignore) {
+                watch.stop();
                 return;
             } catch (Exception e) { // catch any exception, print it
+                watch.end();
                 HttpUtils.printError("http server loop error, should not happen", e);
             }
         }
     }
 
+    // call before start
+    public void setWsDeflate(PerMessageDeflate deflate) {
+        this.wsDeflate = deflate;
+    }
+
+    public PerMessageDeflate getWsDeflate() {
+        return wsDeflate;
+    }
+
+    // call before start
+    public void setMaxWsMessage(int maxWsMessage) {
+        this.maxWsMessage = maxWsMessage;
+    }
+
+    /**
+     * Ping WebSocket connection idle for pingInterval ms, close it with 1001
+     * if no pong (or any frame) in pongTimeout ms. Call before start
+     */
+    public void setWsKeepalive(long pingInterval, long pongTimeout) {
+        if (pingInterval <= 0 || pongTimeout <= 0) {
+            throw new IllegalArgumentException(
+                    "ping interval and pong timeout should be positive");
+        }
+        this.wsPingInterval = pingInterval;
+        this.wsPongTimeout = pongTimeout;
+        long tick = Math.max(10, Math.min(pingInterval, pongTimeout) / 8);
+        this.wsWheel = new TimingWheel<SelectionKey>(tick, 256, System.currentTimeMillis());
+    }
+
+    /**
+     * Serve HTTPS (and wss) only. Handshake tasks run on a small thread pool,
+     * off the loop. Call before start
+     *
+     * @param parameters
+     *            applied to every SSLEngine, can be null. Client auth,
+     *            protocols, ciphers; ALPN protocols on JDK 9+
+     */
+    public void setSslContext(SSLContext context, SSLParameters parameters) {
+        this.sslContext = context;
+        this.sslParameters = parameters;
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new PrefixThreadFactory(
+                        "server-ssl-"));
+        pool.allowCoreThreadTimeOut(true);
+        this.sslTasks = pool;
+    }
+
+    public long getSslHandshakes() {
+        return sslHandshakes;
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public long getWsPings() {
+        return wsPings;
+    }
+
+    public long getWsReaped() {
+        return wsReaped;
+    }
+
+    public long getTimersFired() {
+        return timersFired;
+    }
+
+    public int getTimersPending() {
+        return timersPending;
+    }
+
+    /**
+     * An iteration of the loop longer than it is a stall: counted, reported
+     * with the loop's stack. 0 to disable, default 200
+     */
+    public void setStallThreshold(long ms) {
+        watch.setThreshold(ms);
+    }
+
+    public LoopWatch getLoopWatch() {
+        return watch;
+    }
+
+    /**
+     * Log every response to it, closed on stop. null to disable
+     */
+    public void setAccessLog(final AccessLog log) {
+        this.accessLog = log;
+        if (log != null) {
+            metrics.gauge("access-logged", new Gauge() {
+                public long get() {
+                    return log.getLogged();
+                }
+            });
+            metrics.gauge("access-dropped", new Gauge() {
+                public long get() {
+                    return log.getDropped();
+                }
+            });
+        }
+    }
+
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    // by a handler, the loop
+    void log(HttpRequest request, ByteBuffer[] buffers) {
+        AccessLog log = accessLog;
+        if (log != null && request != null && request.start != 0) {
+            log.log(request, buffers, request.start);
+        }
+    }
+
+    /**
+     * accepts, connections (open), reads, bytes-in, bytes-out, body-too-large
+     * (413), line-too-large (414), loop-time, stalls; access-logged,
+     * access-dropped with an access log
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     public void start() throws IOException {
         serverThread = new Thread(this, THREAD_NAME);
         serverThread.start();
@@ -255,6 +647,14 @@ public class HttpServer implements Runnable {
                 }
                 selector.close();
                 handler.close();
+                metrics.unregister();
+                watch.stop();
+                if (accessLog != null) {
+                    accessLog.close();
+                }
+                if (sslTasks != null) {
+                    sslTasks.shutdownNow();
+                }
             } catch (IOException ignore) {
             }
             serverThread.interrupt();
@@ -0,0 +1,71 @@
+package org.httpkit.server;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.httpkit.PriorityQueue;
+
+import clojure.lang.IFn;
+
+/**
+ * A task run by the server loop, when due. Of a channel: cancelled when the
+ * channel is closed. Should be quick, like a send: the loop waits for it.
+ */
+public class LoopTimer implements Comparable<LoopTimer>, PriorityQueue.Indexed {
+
+    final long deadline;
+    final AsyncChannel channel; // null: of the server
+    private final HttpServer server;
+    private IFn task; // null when done
+    private final AtomicBoolean done = new AtomicBoolean(false);
+    private int heapIndex = -1; // by the loop
+
+    LoopTimer(long delay, IFn task, AsyncChannel channel, HttpServer server) {
+        this.deadline = System.currentTimeMillis() + delay;
+        this.task = task;
+        this.channel = channel;
+        this.server = server;
+    }
+
+    // by the loop
+    void run() {
+        if (done.compareAndSet(false, true)) {
+            IFn t = task;
+            task = null;
+            t.invoke();
+        }
+    }
+
+    /**
+     * @return true if cancelled, false if already run or cancelled
+     */
+    public boolean cancel() {
+        if (done.compareAndSet(false, true)) {
+            task = null; // release the closure
+            server.cancelled(this); // removed from the heap by the loop
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isDone() {
+        return done.get();
+    }
+
+    public int getHeapIndex() {
+        return heapIndex;
+    }
+
+    public void setHeapIndex(int index) {
+        heapIndex = index;
+    }
+
+    // the earliest first, in the loop's heap
+    public int compareTo(LoopTimer o) {
+        return deadline < o.deadline ? -1 : (deadline == o.deadline ? 0 : 1);
+    }
+
+    public String toString() {
+        return "LoopTimer{due in " + (deadline - System.currentTimeMillis()) + "ms, "
+                + (done.get() ? "done" : "pending") + ", channel=" + channel + "}";
+    }
+}
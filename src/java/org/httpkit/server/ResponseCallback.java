@@ -6,15 +6,22 @@ import java.nio.channels.SelectionKey;
 public class ResponseCallback {
     private final SelectionKey key;
     private final HttpServer server;
+    private final HttpRequest request; // for the access log, may be null
 
     public ResponseCallback(SelectionKey key, HttpServer server) {
+        this(key, server, null);
+    }
+
+    public ResponseCallback(SelectionKey key, HttpServer server, HttpRequest request) {
         this.key = key;
         this.server = server;
+        this.request = request;
     }
 
     // maybe in another thread :worker thread
     public void run(ByteBuffer... buffers) {
         ServerAtta atta = (ServerAtta) key.attachment();
+        server.log(request, buffers);
         atta.addBuffer(buffers);
         server.queueWrite(key);
     }
@@ -10,6 +10,11 @@ import java.util.concurrent.atomic.AtomicReference;
 
 import org.httpkit.HttpUtils;
 import org.httpkit.PrefixThreadFactory;
+import org.httpkit.metrics.Counter;
+import org.httpkit.metrics.Gauge;
+import org.httpkit.metrics.Histogram;
+import org.httpkit.metrics.Metrics;
+import org.httpkit.ws.FragmentFrame;
 import org.httpkit.ws.TextFrame;
 import org.httpkit.ws.WSFrame;
 
@@ -21,14 +26,19 @@ class HttpHandler implements Runnable {
     final HttpRequest req;
     final ResponseCallback cb;
     final IFn handler;
+    final RingHandler ring; // metrics
+    final long queuedAt = System.nanoTime();
 
-    public HttpHandler(HttpRequest req, ResponseCallback cb, IFn handler) {
+    public HttpHandler(HttpRequest req, ResponseCallback cb, IFn handler, RingHandler ring) {
         this.req = req;
         this.cb = cb;
         this.handler = handler;
+        this.ring = ring;
     }
 
     public void run() {
+        long start = System.nanoTime();
+        ring.queueWait.record(start - queuedAt);
         try {
             Map resp = (Map) handler.invoke(buildRequestMap(req));
             if (resp == null) { // handler return null
@@ -44,6 +54,7 @@ class HttpHandler implements Runnable {
             cb.run(encode(500, new TreeMap<String, Object>(), e.getMessage()));
             HttpUtils.printError(req.method + " " + req.uri, e);
         }
+        ring.handlerTime.since(start);
     }
 }
 
@@ -77,6 +88,8 @@ class WSFrameHandler implements Runnable {
         try {
             if(frame instanceof TextFrame) {
                 channel.messageReceived(((TextFrame) frame).getText());
+            } else if (frame instanceof FragmentFrame) {
+                channel.messageReceived(fragment((FragmentFrame) frame));
             } else {
                 channel.messageReceived(frame.data);
             }
@@ -90,17 +103,35 @@ public class RingHandler implements IHandler {
     final ExecutorService execs;
     final IFn handler;
 
+    private final Metrics metrics = new Metrics();
+    final Histogram queueWait = metrics.histogram("queue-wait");
+    final Histogram handlerTime = metrics.histogram("handler-time");
+    private final Counter rejected = metrics.counter("rejected"); // 503
+
     public RingHandler(int thread, IFn handler, String prefix, int queueSize) {
         PrefixThreadFactory factory = new PrefixThreadFactory(prefix);
-        BlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(queueSize);
+        final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(queueSize);
         execs = new ThreadPoolExecutor(thread, thread, 0, TimeUnit.MILLISECONDS, queue, factory);
         this.handler = handler;
+        metrics.gauge("queue-depth", new Gauge() {
+            public long get() {
+                return queue.size();
+            }
+        });
+    }
+
+    /**
+     * queue-depth, queue-wait, handler-time (of HTTP requests), rejected (503)
+     */
+    public Metrics getMetrics() {
+        return metrics;
     }
 
     public void handle(HttpRequest req, ResponseCallback cb) {
         try {
-            execs.submit(new HttpHandler(req, cb, handler));
+            execs.submit(new HttpHandler(req, cb, handler, this));
         } catch (RejectedExecutionException e) {
+            rejected.inc();
             HttpUtils.printError("increase :queue-size if this happens often", e);
             cb.run(encode(503, null, "Server is overloaded, please try later"));
         }
@@ -108,6 +139,7 @@ public class RingHandler implements IHandler {
 
     public void close() {
         execs.shutdownNow();
+        metrics.unregister();
     }
 
     public void handle(AsyncChannel channel, WSFrame frame) {
@@ -137,7 +169,7 @@ public class RingHandler implements IHandler {
     public void clientClose(final AsyncChannel channel, final int status) {
         if (!channel.closedRan.get()) { // server did not close it first
             // has close handler, execute it in another thread
-            if (channel.closeHandler.get() != null) {
+            if (channel.hasCloseListener()) {
                 try {
                     // no need to maintain order
                     execs.submit(new Runnable() {
@@ -3,6 +3,8 @@ package org.httpkit.server;
 import java.nio.ByteBuffer;
 import java.util.LinkedList;
 
+import org.httpkit.SslConn;
+
 public abstract class ServerAtta {
     final LinkedList<ByteBuffer> toWrites = new LinkedList<ByteBuffer>();
 
@@ -18,5 +20,7 @@ public abstract class ServerAtta {
     
     protected AsyncChannel asycChannel;
 
+    public SslConn ssl; // null if plaintext
+
     public abstract boolean isKeepAlive();
 }
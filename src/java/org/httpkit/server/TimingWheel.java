@@ -0,0 +1,101 @@
+package org.httpkit.server;
+
+import java.util.ArrayList;
+
+/**
+ * Hashed timing wheel, for many timeouts of a similar length (keepalive of
+ * 200k WebSocket connections). O(1) add, expired entries are found by the
+ * slot of current tick. Not thread safe: owned by the event loop.
+ *
+ * No cancel: an expired item may be of no use (closed), the handler drops it.
+ */
+public class TimingWheel<T> {
+
+    public interface Handler<T> {
+        void expire(T item, long now);
+    }
+
+    static class Entry<T> {
+        final T item;
+        final long deadline;
+
+        Entry(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tick;
+    private final ArrayList<ArrayList<Entry<T>>> slots;
+    private ArrayList<Entry<T>> spare = new ArrayList<Entry<T>>();
+    private long time; // time of the current tick
+    private int cursor;
+    private int size;
+
+    public TimingWheel(long tick, int slots, long now) {
+        if (tick <= 0 || slots <= 0) {
+            throw new IllegalArgumentException("tick and slots should be positive");
+        }
+        this.tick = tick;
+        this.slots = new ArrayList<ArrayList<Entry<T>>>(slots);
+        for (int i = 0; i < slots; i++) {
+            this.slots.add(new ArrayList<Entry<T>>());
+        }
+        this.time = now;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Expire item after delay ms, relative to the current tick, at least one
+     * tick later
+     */
+    public void add(T item, long delay) {
+        long ticks = Math.max(1, (delay + tick - 1) / tick);
+        int idx = (int) ((cursor + ticks) % slots.size()); // checked every round
+        slots.get(idx).add(new Entry<T>(item, time + delay));
+        size++;
+    }
+
+    /**
+     * Move to now, call handler for expired items. The handler may add again
+     */
+    public void advance(long now, Handler<T> handler) {
+        long ticks = (now - time) / tick;
+        if (ticks <= 0) {
+            return;
+        }
+        // jumped (long gc pause), every slot is checked at most once
+        int n = (int) Math.min(ticks, slots.size());
+        time += (ticks - n) * tick;
+        for (int i = 0; i < n; i++) {
+            time += tick;
+            cursor = (cursor + 1) % slots.size();
+            ArrayList<Entry<T>> slot = slots.get(cursor);
+            if (slot.isEmpty()) {
+                continue;
+            }
+            slots.set(cursor, spare); // added by handler go to the fresh list
+            for (Entry<T> e : slot) {
+                if (e.deadline <= now) {
+                    size--;
+                    handler.expire(e.item, now);
+                } else { // rounds later
+                    slots.get(cursor).add(e);
+                }
+            }
+            slot.clear();
+            spare = slot;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package org.httpkit.server;
+
+import static org.httpkit.HttpUtils.printError;
+import static org.httpkit.server.ClojureRing.BODY;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.httpkit.BytesInputStream;
+import org.httpkit.DynamicBytes;
+import org.httpkit.ws.PerMessageDeflate;
+
+/**
+ * Topic (room) => subscribed channels. Subscribe and unsubscribe are O(1),
+ * channels are spread to striped concurrent sets, no copy on write.
+ *
+ * A channel is unsubscribed automatically when closed. WebSocket frame is
+ * encoded once per publish, shared by all subscribers (compressed once too, if
+ * permessage-deflate is negotiated); HTTP channels (long polling) get a normal
+ * response, and closed after it.
+ */
+public class TopicHub {
+
+    static class Topic {
+        final Object name;
+        final List<Set<AsyncChannel>> stripes;
+        final AtomicInteger count = new AtomicInteger(0);
+
+        public Topic(Object name, int stripes) {
+            this.name = name;
+            this.stripes = new ArrayList<Set<AsyncChannel>>(stripes);
+            for (int i = 0; i < stripes; i++) {
+                this.stripes.add(Collections
+                        .newSetFromMap(new ConcurrentHashMap<AsyncChannel, Boolean>()));
+            }
+        }
+
+        private Set<AsyncChannel> stripe(AsyncChannel ch) {
+            int h = System.identityHashCode(ch);
+            h ^= (h >>> 16);
+            return stripes.get((h & 0x7fffffff) % stripes.size());
+        }
+
+        boolean add(AsyncChannel ch) {
+            if (stripe(ch).add(ch)) {
+                count.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        boolean remove(AsyncChannel ch) {
+            if (stripe(ch).remove(ch)) {
+                count.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final ConcurrentMap<Object, Topic> topics = new ConcurrentHashMap<Object, Topic>();
+    private final int stripes;
+
+    // publish stats
+    private final AtomicLong published = new AtomicLong(0);
+    private final AtomicLong delivered = new AtomicLong(0);
+    private final AtomicLong publishNanos = new AtomicLong(0);
+    private final AtomicLong maxPublishNanos = new AtomicLong(0);
+
+    public TopicHub(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes should be positive: " + stripes);
+        }
+        this.stripes = stripes;
+    }
+
+    public TopicHub() {
+        this(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+    }
+
+    private Topic getOrCreate(Object topic) {
+        Topic t = topics.get(topic);
+        if (t == null) {
+            Topic tmp = new Topic(topic, stripes);
+            t = topics.putIfAbsent(topic, tmp);
+            if (t == null) {
+                t = tmp;
+            }
+        }
+        return t;
+    }
+
+    /**
+     * @return true if newly subscribed, false if already subscribed
+     */
+    public boolean subscribe(final Object topic, final AsyncChannel ch) {
+        while (true) {
+            Topic t = getOrCreate(topic);
+            if (!t.add(ch)) {
+                return false; // already there
+            }
+            if (topics.get(topic) == t) {
+                break;
+            }
+            // the topic was removed since empty, retry with a fresh one
+            t.remove(ch);
+        }
+        ch.addCloseHook(new Unsubscribe(topic, ch));
+        return true;
+    }
+
+    // the close hook of a subscription. equal of the same hub, topic, channel:
+    // removed by unsubscribe, not to pile up on a long lived channel
+    private class Unsubscribe implements Runnable {
+        final Object topic;
+        final AsyncChannel ch;
+
+        Unsubscribe(Object topic, AsyncChannel ch) {
+            this.topic = topic;
+            this.ch = ch;
+        }
+
+        public void run() {
+            remove(topic, ch); // the hook is polled already
+        }
+
+        private TopicHub hub() {
+            return TopicHub.this;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Unsubscribe)) {
+                return false;
+            }
+            Unsubscribe u = (Unsubscribe) o;
+            return u.hub() == hub() && u.ch == ch && u.topic.equals(topic);
+        }
+
+        public int hashCode() {
+            return topic.hashCode();
+        }
+
+        public String toString() {
+            return "unsubscribe from " + topic;
+        }
+    }
+
+    public boolean unsubscribe(Object topic, AsyncChannel ch) {
+        if (remove(topic, ch)) {
+            ch.removeCloseHook(new Unsubscribe(topic, ch));
+            return true;
+        }
+        return false;
+    }
+
+    private boolean remove(Object topic, AsyncChannel ch) {
+        Topic t = topics.get(topic);
+        if (t == null || !t.remove(ch)) {
+            return false;
+        }
+        if (t.count.get() == 0 && topics.remove(topic, t)) {
+            // a concurrent subscribe may sneak in before the removal
+            for (Set<AsyncChannel> s : t.stripes) {
+                for (AsyncChannel c : s) {
+                    if (t.remove(c)) {
+                        resubscribe(topic, c);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private void resubscribe(Object topic, AsyncChannel ch) {
+        while (true) {
+            Topic t = getOrCreate(topic);
+            t.add(ch); // the close hook is already added
+            if (topics.get(topic) == t) {
+                return;
+            }
+            t.remove(ch);
+        }
+    }
+
+    // InputStream can only be read once, replay it for every HTTP channel
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static Object replay(Object data, DynamicBytes bytes) {
+        BytesInputStream is = new BytesInputStream(bytes.get(), bytes.length());
+        if (data instanceof Map) {
+            Map resp = new HashMap((Map) data);
+            resp.put(BODY, is);
+            return resp;
+        }
+        return is;
+    }
+
+    /**
+     * Send data to all channels subscribed to topic.
+     *
+     * @return the number of channels the data is sent to
+     */
+    @SuppressWarnings("rawtypes")
+    public int publish(Object topic, Object data) throws IOException {
+        Topic t = topics.get(topic);
+        if (t == null || data == null) {
+            return 0; // nil is ignored, like send!
+        }
+        long start = System.nanoTime();
+        Object body = data instanceof Map ? ((Map) data).get(BODY) : data;
+        DynamicBytes streamBytes = null; // read once, shared
+        if (body instanceof InputStream) {
+            streamBytes = (DynamicBytes) AsyncChannel.frameData(body);
+        }
+        // encoded lazily, only if there is WebSocket subscriber
+        ByteBuffer frame = null, deflated = null;
+        PerMessageDeflate deflatedBy = null;
+        int sent = 0;
+        for (Set<AsyncChannel> s : t.stripes) {
+            for (AsyncChannel ch : s) {
+                try {
+                    if (ch.isWebSocket()) {
+                        Object payload = streamBytes != null ? streamBytes : data;
+                        PerMessageDeflate deflate = ch.getDeflate();
+                        ByteBuffer f;
+                        if (deflate == null) {
+                            if (frame == null) {
+                                frame = AsyncChannel.encodeFrame(payload, null);
+                            }
+                            f = frame;
+                        } else if (deflate == deflatedBy) {
+                            f = deflated;
+                        } else {
+                            // stateless compression, shared by the same config
+                            f = deflated = AsyncChannel.encodeFrame(payload, deflate);
+                            deflatedBy = deflate;
+                        }
+                        if (ch.sendFrame(f)) {
+                            sent++;
+                        }
+                    } else if (ch.send(streamBytes != null ? replay(data, streamBytes) : data,
+                            true)) { // long polling: respond, close
+                        sent++;
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw e; // not understandable data, every channel will fail
+                } catch (Exception e) {
+                    printError("publish to " + ch, e);
+                }
+            }
+        }
+        long time = System.nanoTime() - start;
+        published.incrementAndGet();
+        delivered.addAndGet(sent);
+        publishNanos.addAndGet(time);
+        long max;
+        while (time > (max = maxPublishNanos.get())) {
+            if (maxPublishNanos.compareAndSet(max, time)) {
+                break;
+            }
+        }
+        return sent;
+    }
+
+    public int subscriberCount(Object topic) {
+        Topic t = topics.get(topic);
+        return t == null ? 0 : t.count.get();
+    }
+
+    public int subscriberCount() {
+        int count = 0;
+        for (Topic t : topics.values()) {
+            count += t.count.get();
+        }
+        return count;
+    }
+
+    public Set<Object> topics() {
+        return Collections.unmodifiableSet(topics.keySet());
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new TreeMap<String, Object>();
+        long n = published.get();
+        stats.put("topics", topics.size());
+        stats.put("subscribers", subscriberCount());
+        stats.put("published", n);
+        stats.put("delivered", delivered.get());
+        stats.put("publish-avg-us", n == 0 ? 0 : publishNanos.get() / n / 1000);
+        stats.put("publish-max-us", maxPublishNanos.get() / 1000);
+        return stats;
+    }
+
+    public String toString() {
+        return "TopicHub" + getStats();
+    }
+}
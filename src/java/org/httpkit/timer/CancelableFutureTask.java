@@ -1,54 +1,63 @@
 package org.httpkit.timer;
 
-import java.util.concurrent.atomic.AtomicBoolean;
-
-import org.httpkit.PriorityQueue;
-
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import clojure.lang.IFn;
 
-public class CancelableFutureTask implements Comparable<CancelableFutureTask> {
+/**
+ * A task of TimerService. Cancel is O(1): marked done, dropped by the timer
+ * thread when its slot is reached. The fn is released, a cancelled task left in
+ * the wheel holds no closure.
+ */
+public class CancelableFutureTask {
+
+    private static final AtomicIntegerFieldUpdater<CancelableFutureTask> DONE =
+            AtomicIntegerFieldUpdater.newUpdater(CancelableFutureTask.class, "done");
 
     private final int timeout;
-    private final IFn futureTask;
+    private IFn futureTask; // null when done
     public final long timeoutTs;
+    private volatile int done = 0;
 
-    private final AtomicBoolean done = new AtomicBoolean(false);
-    private final PriorityQueue<CancelableFutureTask> queue;
+    // by the timer thread
+    final long tick; // expires at, in ticks of the service
+    CancelableFutureTask next; // incoming stack, then the slot
 
-    public CancelableFutureTask(int timeout, IFn task, PriorityQueue<CancelableFutureTask> queue) {
+    CancelableFutureTask(int timeout, IFn task, long tick) {
         this.timeoutTs = System.currentTimeMillis() + timeout;
         this.timeout = timeout;
         this.futureTask = task;
-        this.queue = queue;
+        this.tick = tick;
     }
 
     public String toString() {
         long now = System.currentTimeMillis();
-        if (done.get()) {
+        if (done == 1) {
             return "timeout=" + timeout + "ms, done or canceled";
         } else {
             return "timeout=" + timeout + "ms, due in " + (timeoutTs - now) + "ms";
         }
     }
 
-    public void runTask() {
-        if (done.compareAndSet(false, true)) {
-            futureTask.invoke();
-        }
+    boolean isDone() {
+        return done == 1;
     }
 
-    public boolean cancel() {
-        boolean b = done.compareAndSet(false, true);
-        if (b) {// ok, not done
-            synchronized (queue) {
-                queue.remove(this);
-            }
+    // by the timer thread: due, can not be cancelled from now. null if cancelled
+    IFn claim() {
+        if (DONE.compareAndSet(this, 0, 1)) {
+            IFn task = futureTask;
+            futureTask = null;
+            return task;
         }
-        return b;
+        return null;
     }
 
-    public int compareTo(CancelableFutureTask o) {
-        return (int) (timeoutTs - o.timeoutTs);
+    public boolean cancel() {
+        if (DONE.compareAndSet(this, 0, 1)) { // ok, not done
+            futureTask = null;
+            return true;
+        }
+        return false;
     }
-}
\ No newline at end of file
+}
@@ -1,91 +1,292 @@
 package org.httpkit.timer;
 
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import org.httpkit.HttpUtils;
-import org.httpkit.PriorityQueue;
-
+import org.httpkit.PrefixThreadFactory;
 
 import clojure.lang.IFn;
 
+/**
+ * Hierarchical hashed timing wheel, for many timeouts (one per long-poll
+ * request). Levels of 64 slots, a slot of a level spans the whole level below.
+ * O(1) schedule and cancel: scheduled tasks are pushed to a lock-free stack,
+ * moved into the wheel by the timer thread, which owns it. A task is due at
+ * most a tick late, run by the executor: a slow one delays no other.
+ */
 public class TimerService implements Runnable {
 
-    private final PriorityQueue<CancelableFutureTask> queue = new PriorityQueue<CancelableFutureTask>();
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 6; // 2^36 ticks
+
+    private final int tick; // ms
+    private final long origin = System.currentTimeMillis(); // tick 0
+    // scheduled, not in the wheel yet. pushed by any thread, taken by the timer
+    private final AtomicReference<CancelableFutureTask> incoming =
+            new AtomicReference<CancelableFutureTask>();
+    // by the timer thread
+    private final CancelableFutureTask[][] wheel = new CancelableFutureTask[LEVELS][SLOTS];
+    private long processed; // the last tick run
+    private volatile int size = 0; // in the wheel, cancelled ones until dropped
+
     private final AtomicBoolean started = new AtomicBoolean(false);
+    private volatile Thread thread;
+    private volatile boolean sleeping = false; // nothing to run, parked until scheduled
+    private volatile ExecutorService executor; // null: by the timer thread
+
+    // lag: run at, minus due at. by the executor
+    private final AtomicLong fired = new AtomicLong(0);
+    private final AtomicLong lagTotal = new AtomicLong(0);
+    private final AtomicLong lagMax = new AtomicLong(0);
+    private volatile long lagLast = 0;
+
+    /**
+     * @param tick
+     *            ms, the precision
+     * @param executor
+     *            runs the tasks, null to run them by the timer thread
+     */
+    public TimerService(int tick, ExecutorService executor) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("tick should be positive, got " + tick);
+        }
+        this.tick = tick;
+        this.executor = executor;
+        this.processed = 0;
+    }
+
+    public TimerService(int tick) {
+        this(tick, null);
+    }
+
+    /**
+     * A virtual thread per task if the JVM has them (21+), else a pool of a
+     * thread per core, 4 at least: a slow task does not hold up the others
+     */
+    public static ExecutorService defaultExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception ignore) { // no virtual threads
+        }
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new PrefixThreadFactory(
+                        "timer-worker-"));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Tasks due from now are run by it, null to run them by the timer thread
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
 
     public CancelableFutureTask scheduleTask(int timeout, IFn task) {
+        // round up: never early
+        long at = (System.currentTimeMillis() + timeout - origin + tick - 1) / tick;
+        CancelableFutureTask t = new CancelableFutureTask(timeout, task, at);
+        CancelableFutureTask head;
+        do {
+            head = incoming.get();
+            t.next = head;
+        } while (!incoming.compareAndSet(head, t));
+
         // start the timer thread, if not started
         if (started.compareAndSet(false, true)) {
             // the timer thread will kill itself when no job to schedule for too
             // much time. restart if new job come it
-            Thread t = new Thread(this, "timer-service");
-            t.start();
-        }
-
-        CancelableFutureTask t = new CancelableFutureTask(timeout, task, queue);
-        synchronized (queue) {
-            queue.offer(t);
-            queue.notify();
+            Thread th = new Thread(this, "timer-service");
+            thread = th;
+            th.start();
+        } else if (sleeping) {
+            LockSupport.unpark(thread);
         }
         return t;
     }
 
-    public static final TimerService SERVICE = new TimerService();
+    public static final TimerService SERVICE = new TimerService(10, defaultExecutor());
+
+    /**
+     * pending, fired; lag of the tasks run, ms: last, max and mean
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new TreeMap<String, Object>();
+        long n = fired.get();
+        stats.put("pending", size);
+        stats.put("fired", n);
+        stats.put("lag-last", lagLast);
+        stats.put("lag-max", lagMax.get());
+        stats.put("lag-mean", n == 0 ? 0 : lagTotal.get() / n);
+        return stats;
+    }
 
     @Override
     public String toString() {
-        return "pending=" + queue.size() + ", thread started:" + started.get();
+        return "pending=" + size + ", tick=" + tick + "ms, thread started:" + started.get()
+                + ", lag-max=" + lagMax.get() + "ms";
+    }
+
+    private void lag(long lag) {
+        fired.incrementAndGet();
+        lagTotal.addAndGet(lag);
+        lagLast = lag;
+        long max;
+        while (lag > (max = lagMax.get()) && !lagMax.compareAndSet(max, lag)) {
+        }
+    }
+
+    private void runTask(CancelableFutureTask task, IFn fn) {
+        lag(System.currentTimeMillis() - task.timeoutTs);
+        try {
+            fn.invoke();
+        } catch (Throwable e) {
+            HttpUtils.printError("In timer: " + task, e);
+        }
+    }
+
+    // due, by the timer thread
+    private void fire(final CancelableFutureTask task) {
+        final IFn fn = task.claim();
+        if (fn == null) {
+            return; // cancelled
+        }
+        ExecutorService exec = executor;
+        if (exec != null) {
+            try {
+                exec.submit(new Runnable() {
+                    public void run() {
+                        runTask(task, fn);
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException ignore) { // shutdown, or full
+            }
+        }
+        runTask(task, fn);
+    }
+
+    // the timer thread
+    private void insert(CancelableFutureTask t) {
+        long cur = processed + 1; // the next tick to run
+        long at = Math.max(t.tick, cur);
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = level * BITS;
+            long diff = (at >>> shift) - (cur >>> shift);
+            if (diff < SLOTS) {
+                push(level, (int) ((at >>> shift) & MASK), t);
+                return;
+            }
+        }
+        // too far: the farthest slot, placed again when reached
+        int shift = (LEVELS - 1) * BITS;
+        push(LEVELS - 1, (int) (((cur >>> shift) + MASK) & MASK), t);
+    }
+
+    private void push(int level, int slot, CancelableFutureTask t) {
+        t.next = wheel[level][slot];
+        wheel[level][slot] = t;
+    }
+
+    // scheduled since last time, into the wheel
+    private void drain() {
+        CancelableFutureTask t = incoming.getAndSet(null);
+        while (t != null) {
+            CancelableFutureTask next = t.next;
+            if (!t.isDone()) { // or cancelled before placed
+                insert(t);
+                size++;
+            }
+            t = next;
+        }
+    }
+
+    // run the tasks of tick t, the next one, after moving the ones of higher
+    // levels due in it down
+    private void advance(long t) {
+        for (int level = LEVELS - 1; level > 0; level--) {
+            int shift = level * BITS;
+            if ((t & ((1L << shift) - 1)) == 0) { // a new slot of this level
+                int slot = (int) ((t >>> shift) & MASK);
+                CancelableFutureTask task = wheel[level][slot];
+                wheel[level][slot] = null;
+                while (task != null) {
+                    CancelableFutureTask next = task.next;
+                    if (task.isDone()) {
+                        size--; // cancelled, dropped
+                    } else {
+                        insert(task);
+                    }
+                    task = next;
+                }
+            }
+        }
+        int slot = (int) (t & MASK);
+        CancelableFutureTask task = wheel[0][slot];
+        wheel[0][slot] = null;
+        while (task != null) {
+            CancelableFutureTask next = task.next;
+            task.next = null;
+            size--;
+            fire(task);
+            task = next;
+        }
     }
 
     public void run() {
-        // if 2 checks of the queue, find it empty, stop self
-        boolean emptyQueueWaited = false;
-        CancelableFutureTask task;
+        long idleSince = 0;
         while (true) {
-            synchronized (queue) {
-                task = queue.peek();
+            long now = System.currentTimeMillis();
+            long target = (now - origin) / tick;
+            if (size == 0 && processed < target - 1) {
+                processed = target - 1; // empty, no need to walk the ticks parked
             }
-            if (task == null) {
-                synchronized (queue) {
-                    try {
-                        // wait 2 minute before kill self
-                        queue.wait(1000 * 120);
-                        if (emptyQueueWaited) {
-                            started.compareAndSet(true, false);
-                            break; // die, will restart
-                        } else {
-                            emptyQueueWaited = true; // queue is empty
-                        }
-                    } catch (InterruptedException ignore) {
-                    }
+            drain();
+            while (processed < target) {
+                advance(processed + 1);
+                processed++;
+                if ((processed & MASK) == 0) {
+                    drain(); // many ticks behind: new ones are not left waiting
                 }
-            } else {
-                emptyQueueWaited = false;
-                long due = task.timeoutTs - System.currentTimeMillis();
-                // schedule to run in 1000ms, maybe run in 1000ms, 1001ms, ...
-                if (due <= 0) {
-                    try {
-                        task.runTask();
-                    } catch (Exception e) {
-                        HttpUtils.printError("In timer: " + task, e);
-                    }
-                    synchronized (queue) { // remove
-                        if (task == queue.peek()) {
-                            queue.poll(); // much faster
-                        } else {
-                            queue.remove(task);
-                        }
-                    }
-                } else {
-                    synchronized (queue) {
-                        try {
-                            queue.wait(due); // others may notify you
-                        } catch (InterruptedException ignore) {
-                            // maybe more urgent job come in
-                        }
-                    }
+            }
+            if (size > 0) {
+                idleSince = 0;
+                // the next tick
+                LockSupport.parkNanos((origin + (processed + 1) * tick - now) * 1000000L);
+                continue;
+            }
+            // no task: park until one is scheduled, die if none for 2 minutes
+            if (idleSince == 0) {
+                idleSince = now;
+            } else if (now - idleSince > 1000 * 120) {
+                started.set(false);
+                // scheduled just now, saw it started
+                if (incoming.get() == null || !started.compareAndSet(false, true)) {
+                    return; // die, will restart
                 }
+                idleSince = 0;
+                continue;
+            }
+            sleeping = true;
+            if (incoming.get() == null) {
+                LockSupport.parkNanos(1000L * 1000000 * 60);
             }
+            sleeping = false;
         }
     }
 }
@@ -0,0 +1,13 @@
+package org.httpkit.ws;
+
+/**
+ * A chunk of a binary message, delivered as it arrives, not reassembled
+ */
+public class FragmentFrame extends WSFrame {
+    public final boolean last;
+
+    public FragmentFrame(byte[] data, boolean last) {
+        super(data);
+        this.last = last;
+    }
+}
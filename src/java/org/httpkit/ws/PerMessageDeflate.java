@@ -0,0 +1,217 @@
+package org.httpkit.ws;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.httpkit.DynamicBytes;
+import org.httpkit.ProtocolException;
+
+/**
+ * permessage-deflate WebSocket extension, RFC 7692. One instance per server.
+ *
+ * Server to client: java.util.zip.Deflater has no sync flush before JDK7, every
+ * message is a complete deflate stream (BFINAL set, section 7.2.3.4), so
+ * server_no_context_takeover is always negotiated. Deflaters are pooled, no
+ * per connection memory; compressed frame can be shared by many connections.
+ *
+ * Client to server: the client keeps its context by default, one Inflater per
+ * connection. With noContextTakeover, client_no_context_takeover is asked,
+ * Inflaters are pooled too, to bound memory when many connections are idle.
+ */
+public class PerMessageDeflate {
+    public static final String EXTENSION = "permessage-deflate";
+
+    private static final byte[] TAIL = { 0, 0, (byte) 0xff, (byte) 0xff };
+    private static final int POOL_SIZE = 64;
+
+    final int threshold;
+    final int level;
+    final boolean noContextTakeover;
+
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private final AtomicInteger pooledDeflaters = new AtomicInteger(0);
+    private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+    private final AtomicInteger pooledInflaters = new AtomicInteger(0);
+
+    /**
+     * @param threshold
+     *            message shorter than it is sent as is
+     * @param level
+     *            deflate level, 0-9, -1 for default
+     * @param noContextTakeover
+     *            ask client to reset context after each message, save memory
+     */
+    public PerMessageDeflate(int threshold, int level, boolean noContextTakeover) {
+        if (level < -1 || level > 9) {
+            throw new IllegalArgumentException("deflate level should be -1 to 9, get: "
+                    + level);
+        }
+        this.threshold = threshold;
+        this.level = level;
+        this.noContextTakeover = noContextTakeover;
+    }
+
+    /**
+     * @param offers
+     *            Sec-WebSocket-Extensions header sent by client, can be null
+     * @return Sec-WebSocket-Extensions header to respond, null if declined
+     */
+    public String negotiate(String offers) {
+        if (offers == null) {
+            return null;
+        }
+        outer: for (String offer : offers.split(",")) {
+            String[] params = offer.split(";");
+            if (!EXTENSION.equalsIgnoreCase(params[0].trim())) {
+                continue;
+            }
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                int idx = param.indexOf('=');
+                String name = (idx == -1 ? param : param.substring(0, idx)).trim();
+                if ("server_max_window_bits".equalsIgnoreCase(name)) {
+                    String v = idx == -1 ? "" : param.substring(idx + 1).trim();
+                    // Deflater always use 15 bits
+                    if (!"15".equals(v.replace("\"", ""))) {
+                        continue outer;
+                    }
+                } else if (!"client_max_window_bits".equalsIgnoreCase(name)
+                        && !"server_no_context_takeover".equalsIgnoreCase(name)
+                        && !"client_no_context_takeover".equalsIgnoreCase(name)) {
+                    continue outer; // unknown, decline the offer
+                }
+            }
+            if (noContextTakeover) {
+                return EXTENSION + "; server_no_context_takeover; client_no_context_takeover";
+            }
+            return EXTENSION + "; server_no_context_takeover";
+        }
+        return null;
+    }
+
+    /**
+     * Encode a frame, compressed (RSV1 set) if long enough, and smaller
+     */
+    public ByteBuffer encode(byte opcode, byte[] data, int length) {
+        if (length >= threshold) {
+            DynamicBytes compressed = deflate(data, length);
+            if (compressed.length() < length) {
+                return WSEncoder.encode(opcode, true, compressed.get(), compressed.length());
+            }
+        }
+        return WSEncoder.encode(opcode, data, length);
+    }
+
+    private DynamicBytes deflate(byte[] data, int length) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        } else {
+            pooledDeflaters.decrementAndGet();
+        }
+        DynamicBytes out = new DynamicBytes(Math.max(64, length / 2));
+        byte[] buffer = new byte[Math.min(length + 16, 8192)];
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.append(buffer, n);
+            }
+            // empty stored block, with 00 00 ff ff removed. 7.2.3.4
+            out.append((byte) 0);
+        } finally {
+            deflater.reset();
+            if (pooledDeflaters.incrementAndGet() <= POOL_SIZE) {
+                deflaters.offer(deflater);
+            } else {
+                pooledDeflaters.decrementAndGet();
+                deflater.end();
+            }
+        }
+        return out;
+    }
+
+    Inflater acquireInflater() {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            return new Inflater(true);
+        }
+        pooledInflaters.decrementAndGet();
+        return inflater;
+    }
+
+    void releaseInflater(Inflater inflater) {
+        inflater.reset();
+        if (pooledInflaters.incrementAndGet() <= POOL_SIZE) {
+            inflaters.offer(inflater);
+        } else {
+            pooledInflaters.decrementAndGet();
+            inflater.end();
+        }
+    }
+
+    /**
+     * Decompress a message received from client
+     */
+    static byte[] inflate(Inflater inflater, byte[] data, int length, int maxLength)
+            throws ProtocolException {
+        return inflate(inflater, data, length, maxLength, true);
+    }
+
+    /**
+     * Decompress part of a message, for streaming receive. The inflater keeps
+     * its state between parts, the tail is appended after the last
+     */
+    static byte[] inflate(Inflater inflater, byte[] data, int length, int maxLength,
+            boolean last) throws ProtocolException {
+        DynamicBytes out = new DynamicBytes(Math.max(64, length * 3));
+        byte[] buffer = new byte[8192];
+        try {
+            inflater.setInput(data, 0, length);
+            inflateAll(inflater, out, buffer, maxLength);
+            if (last && !inflater.finished()) {
+                inflater.setInput(TAIL);
+                inflateAll(inflater, out, buffer, maxLength);
+            }
+            if (last && inflater.finished()) { // BFINAL sent by client, start over
+                inflater.reset();
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("bad compressed data: " + e.getMessage());
+        }
+        byte[] result = out.get();
+        if (result.length != out.length()) {
+            byte[] tmp = new byte[out.length()];
+            System.arraycopy(result, 0, tmp, 0, tmp.length);
+            result = tmp;
+        }
+        return result;
+    }
+
+    private static void inflateAll(Inflater inflater, DynamicBytes out, byte[] buffer,
+            int maxLength) throws DataFormatException, ProtocolException {
+        int n;
+        // output may be pending even if all input is consumed
+        while ((n = inflater.inflate(buffer)) > 0) {
+            out.append(buffer, n);
+            if (out.length() > maxLength) { // zip bomb
+                throw new ProtocolException("Max payload length " + maxLength
+                        + ", get more after inflate");
+            }
+        }
+        if (inflater.needsDictionary()) {
+            throw new ProtocolException("preset dictionary is not supported");
+        }
+    }
+
+    public String toString() {
+        return EXTENSION + "{threshold=" + threshold + ", level=" + level
+                + ", noContextTakeover=" + noContextTakeover + "}";
+    }
+}
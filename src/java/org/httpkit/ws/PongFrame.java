@@ -0,0 +1,7 @@
+package org.httpkit.ws;
+
+public class PongFrame extends WSFrame {
+    public PongFrame(byte[] data) {
+        super(data);
+    }
+}
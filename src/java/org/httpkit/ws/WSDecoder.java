@@ -2,6 +2,7 @@ package org.httpkit.ws;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.zip.Inflater;
 
 import org.httpkit.ProtocolException;
 
@@ -14,13 +15,20 @@ public class WSDecoder {
     public static final byte OPCODE_PING = 0x9;
     public static final byte OPCODE_PONG = 0xA;
 
+    public static final int MAX_MESSAGE = 4194304; // 4M, default
+
     public enum State {
-        FRAME_START, MASKING_KEY, PAYLOAD, CORRUPT
+        FRAME_START, PAYLOAD, CORRUPT
     }
 
+    private final int maxMessage;
+    // 2 + 8 + 4, the header may be split by reads
+    private final ByteBuffer header = ByteBuffer.allocate(14);
+
     private State state = State.FRAME_START;
-    private byte[] content;
-    private int idx = 0;
+    private byte[] content; // capacity, doubled if fragmented
+    private ByteBuffer contentView; // wrap content, for 8 bytes a time unmask
+    private int idx = 0; // bytes in content
 
     private int payloadLength;
     private int payloadRead;
@@ -28,73 +36,56 @@ public class WSDecoder {
     private boolean finalFlag;
     private int opcode = -1;
 
+    // binary message is delivered as FragmentFrame, not reassembled
+    private volatile boolean streaming;
+    private boolean fragmenting; // streaming of current message
+
+    // permessage-deflate, set when negotiated in handshake (by worker thread)
+    private volatile PerMessageDeflate deflate;
+    private Inflater inflater;
+    private boolean compressed; // RSV1 of the first frame
+
+    /**
+     * @param maxMessage
+     *            max length of a message, after reassembled and inflated
+     */
+    public WSDecoder(int maxMessage) {
+        this.maxMessage = maxMessage;
+    }
+
+    public WSDecoder() {
+        this(MAX_MESSAGE);
+    }
+
+    public void enableDeflate(PerMessageDeflate deflate) {
+        this.deflate = deflate;
+    }
+
+    // take effect from next message
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
     public WSFrame decode(ByteBuffer buffer) throws ProtocolException {
         while (buffer.hasRemaining()) {
             switch (state) {
             case FRAME_START:
-                byte b = buffer.get(); // FIN, RSV, OPCODE
-                finalFlag = (b & 0x80) != 0;
-
-                int tmpOp = b & 0x0F;
-                if (opcode != -1 && tmpOp != opcode) {
-                    // TODO ping frame in fragmented text frame
-                    throw new ProtocolException("opcode mismatch: pre: " + opcode + ", now: "
-                            + tmpOp);
-                }
-                opcode = tmpOp;
-                b = buffer.get(); // MASK, PAYLOAD LEN 1
-                boolean masked = (b & 0x80) != 0;
-                payloadLength = b & 0x7F;
-
-                if (payloadLength == 126) {
-                    payloadLength = buffer.getShort() & 0xFFFF;
-                    if (payloadLength < 126) {
-                        throw new ProtocolException(
-                                "invalid data frame length (not using minimal length encoding)");
-                    }
-                } else if (payloadLength == 127) {
-                    long length = buffer.getLong();
-                    // if negative, that too big, drop it.
-                    if (length < 65536) {
-                        throw new ProtocolException(
-                                "invalid data frame length. max payload length 4M");
-                    }
-                    abortIfTooLarge(length);
-                    payloadLength = (int) length;
+                if (!readHeader(buffer)) {
+                    return null; // wait for more bytes
                 }
-
-                if (content == null) {
-                    content = new byte[payloadLength];
-                } else if (payloadLength > 0) {
-                    abortIfTooLarge(content.length + payloadLength);
-                    /*
-                     * TODO if an attacker sent many fragmented frames, only one
-                     * byte of data per frame, server end up reallocate many
-                     * times. may not be a problem
-                     */
-                    // resize
-                    content = Arrays.copyOf(content, content.length + payloadLength);
-                }
-
-                if (!masked) {
-                    throw new ProtocolException("unmasked client to server frame");
-                }
-                state = State.MASKING_KEY;
-                break;
-            case MASKING_KEY:
-                maskingKey = buffer.getInt();
                 state = State.PAYLOAD;
                 // No break. since payloadLength can be 0
             case PAYLOAD:
                 int read = Math.min(buffer.remaining(), payloadLength - payloadRead);
-                if (read > 0) {
-                    buffer.get(content, idx, read);
-
-                    byte[] mask = ByteBuffer.allocate(4).putInt(maskingKey).array();
-                    for (int i = 0; i < read; i++) {
-                        content[i + idx] = (byte) (content[i + idx] ^ mask[i % 4]);
+                if (fragmenting) {
+                    WSFrame f = fragment(buffer, read);
+                    if (f != null) {
+                        return f;
                     }
-
+                    break;
+                }
+                if (read > 0) {
+                    unmask(buffer, read, content, contentView, idx);
                     payloadRead += read;
                     idx += read;
                 }
@@ -102,18 +93,7 @@ public class WSDecoder {
                 // all read
                 if (payloadRead == payloadLength) {
                     if (finalFlag) {
-                        switch (opcode) {
-                        case OPCODE_TEXT:
-                            return new TextFrame(content);
-                        case OPCODE_BINARY:
-                            return new BinaryFrame(content);
-                        case OPCODE_PING:
-                            return new PingFrame(content);
-                        case OPCODE_CLOSE:
-                            return new CloseFrame(content);
-                        default:
-                            throw new ProtocolException("not impl for opcode: " + opcode);
-                        }
+                        return frame();
                     } else {
                         state = State.FRAME_START;
                         payloadRead = 0;
@@ -125,19 +105,219 @@ public class WSDecoder {
         return null; // wait for more bytes
     }
 
-    public void abortIfTooLarge(long length) throws ProtocolException {
-        // TODO configurable
-        if (length > 4194304) { // 4M, drop if message is too big
-            throw new ProtocolException("Max payload length 4m, get: " + length);
+    private boolean readHeader(ByteBuffer buffer) throws ProtocolException {
+        while (header.position() < 2) {
+            if (!buffer.hasRemaining()) {
+                return false;
+            }
+            header.put(buffer.get());
+        }
+        int len = header.get(1) & 0x7F;
+        int need = (len == 126 ? 4 : len == 127 ? 10 : 2) + 4;
+        while (header.position() < need) {
+            if (!buffer.hasRemaining()) {
+                return false;
+            }
+            header.put(buffer.get());
+        }
+        header.flip();
+        try {
+            parseHeader(header);
+        } finally {
+            header.clear();
         }
+        return true;
+    }
+
+    private void parseHeader(ByteBuffer header) throws ProtocolException {
+        byte b = header.get(); // FIN, RSV, OPCODE
+        finalFlag = (b & 0x80) != 0;
 
+        int tmpOp = b & 0x0F;
+        int rsv = b & 0x70;
+        if (rsv != 0) {
+            // only RSV1 on the first frame of a data message
+            if (rsv != WSEncoder.RSV1 || deflate == null || opcode != -1
+                    || tmpOp == OPCODE_CONT || tmpOp >= OPCODE_CLOSE) {
+                throw new ProtocolException("unexpected RSV bits: " + rsv);
+            }
+            compressed = true;
+        }
+        boolean first = opcode == -1;
+        if (first) {
+            if (tmpOp == OPCODE_CONT) {
+                throw new ProtocolException("continuation frame without a message");
+            }
+            opcode = tmpOp;
+        } else if (tmpOp != OPCODE_CONT && tmpOp != opcode) {
+            // TODO ping frame in fragmented text frame
+            throw new ProtocolException("opcode mismatch: pre: " + opcode + ", now: " + tmpOp);
+        }
+        b = header.get(); // MASK, PAYLOAD LEN 1
+        boolean masked = (b & 0x80) != 0;
+        payloadLength = b & 0x7F;
+
+        if (payloadLength == 126) {
+            payloadLength = header.getShort() & 0xFFFF;
+            if (payloadLength < 126) {
+                throw new ProtocolException(
+                        "invalid data frame length (not using minimal length encoding)");
+            }
+        } else if (payloadLength == 127) {
+            long length = header.getLong();
+            // if negative, that too big, drop it.
+            if (length < 65536) {
+                throw new ProtocolException("invalid data frame length: " + length);
+            }
+            if (length > Integer.MAX_VALUE) {
+                throw new ProtocolException("frame too large: " + length);
+            }
+            payloadLength = (int) length;
+        }
+        if (opcode >= OPCODE_CLOSE && (payloadLength > 125 || !finalFlag)) {
+            throw new ProtocolException("control frame too large or fragmented");
+        }
+        if (!masked) {
+            throw new ProtocolException("unmasked client to server frame");
+        }
+        maskingKey = header.getInt();
+
+        if (first) {
+            fragmenting = streaming && opcode == OPCODE_BINARY;
+        }
+        if (fragmenting) {
+            return; // no limit, not buffered
+        }
+        if (content == null) {
+            abortIfTooLarge(payloadLength);
+            content = new byte[payloadLength];
+            contentView = ByteBuffer.wrap(content);
+        } else if (payloadLength > 0) {
+            int length = idx + payloadLength;
+            abortIfTooLarge(length);
+            if (length > content.length) {
+                // doubled, linear for many small fragments
+                int capacity = Math.max(length, (int) Math.min(maxMessage,
+                        content.length * 2L));
+                content = Arrays.copyOf(content, capacity);
+                contentView = ByteBuffer.wrap(content);
+            }
+        }
+    }
+
+    private WSFrame frame() throws ProtocolException {
+        byte[] data;
+        if (compressed) {
+            data = inflate(content, idx);
+        } else if (content.length != idx) {
+            data = Arrays.copyOf(content, idx);
+        } else {
+            data = content;
+        }
+        switch (opcode) {
+        case OPCODE_TEXT:
+            return new TextFrame(data);
+        case OPCODE_BINARY:
+            return new BinaryFrame(data);
+        case OPCODE_PING:
+            return new PingFrame(data);
+        case OPCODE_PONG:
+            return new PongFrame(data);
+        case OPCODE_CLOSE:
+            return new CloseFrame(data);
+        default:
+            throw new ProtocolException("not impl for opcode: " + opcode);
+        }
+    }
+
+    // streaming: what is read now, null if nothing
+    private WSFrame fragment(ByteBuffer buffer, int read) throws ProtocolException {
+        byte[] data = new byte[read];
+        if (read > 0) {
+            unmask(buffer, read, data, ByteBuffer.wrap(data), 0);
+            payloadRead += read;
+        }
+        boolean last = false;
+        if (payloadRead == payloadLength) {
+            last = finalFlag;
+            state = State.FRAME_START;
+            payloadRead = 0;
+        }
+        if (compressed && (read > 0 || last)) {
+            PerMessageDeflate d = deflate;
+            if (inflater == null) {
+                inflater = d.acquireInflater();
+            }
+            data = PerMessageDeflate.inflate(inflater, data, read, maxMessage, last);
+            if (last && d.noContextTakeover) {
+                d.releaseInflater(inflater);
+                inflater = null;
+            }
+        }
+        if (data.length > 0 || last) {
+            return new FragmentFrame(data, last);
+        }
+        return null;
+    }
+
+    /**
+     * Copy read bytes from buffer to dest, unmasked. 8 bytes a time, the mask
+     * is rotated to where the previous read stopped in this frame
+     */
+    private void unmask(ByteBuffer buffer, int read, byte[] dest, ByteBuffer destView,
+            int offset) {
+        int shift = (payloadRead & 3) << 3;
+        int m = shift == 0 ? maskingKey : (maskingKey << shift) | (maskingKey >>> (32 - shift));
+        long mask = ((long) m << 32) | (m & 0xFFFFFFFFL);
+
+        int i = 0;
+        for (; i + 8 <= read; i += 8) { // both big endian
+            destView.putLong(offset + i, buffer.getLong() ^ mask);
+        }
+        for (; i < read; i++) {
+            dest[offset + i] = (byte) (buffer.get() ^ (m >>> (24 - ((i & 3) << 3))));
+        }
+    }
+
+    private byte[] inflate(byte[] data, int length) throws ProtocolException {
+        PerMessageDeflate d = deflate;
+        if (inflater == null) {
+            inflater = d.acquireInflater();
+        }
+        try {
+            return PerMessageDeflate.inflate(inflater, data, length, maxMessage);
+        } finally {
+            if (d.noContextTakeover) { // client reset its context too
+                d.releaseInflater(inflater);
+                inflater = null;
+            }
+        }
+    }
+
+    // connection closed
+    public void release() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    public void abortIfTooLarge(long length) throws ProtocolException {
+        if (length > maxMessage) { // drop if message is too big
+            throw new ProtocolException("Max payload length " + maxMessage + ", get: "
+                    + length);
+        }
     }
 
     public void reset() {
         state = State.FRAME_START;
+        header.clear();
         payloadRead = 0;
         idx = 0;
         opcode = -1;
         content = null;
+        contentView = null;
+        compressed = false;
+        fragmenting = false;
     }
 }
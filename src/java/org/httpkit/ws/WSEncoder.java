@@ -3,9 +3,15 @@ package org.httpkit.ws;
 import java.nio.ByteBuffer;
 
 public class WSEncoder {
-    public static ByteBuffer encode(byte opcode, byte[] data, int length) {
+    // permessage-deflate: the message is compressed
+    public static final byte RSV1 = 0x40;
+
+    public static ByteBuffer encode(byte opcode, boolean rsv1, byte[] data, int length) {
         byte b0 = 0;
         b0 |= 1 << 7; // FIN
+        if (rsv1) {
+            b0 |= RSV1;
+        }
         b0 |= opcode;
         ByteBuffer buffer = ByteBuffer.allocate(length + 10); // max
         buffer.put(b0);
@@ -24,6 +30,10 @@ public class WSEncoder {
         return buffer;
     }
 
+    public static ByteBuffer encode(byte opcode, byte[] data, int length) {
+        return encode(opcode, false, data, length);
+    }
+
     public static ByteBuffer encode(byte opcode, byte[] data) {
         return encode(opcode, data, data.length);
     }
@@ -7,12 +7,34 @@ public class WsServerAtta extends ServerAtta {
 
     final public WSDecoder decoder;
 
+    // negotiated in handshake, null if not
+    private volatile PerMessageDeflate deflate;
+
+    // keepalive, by the server loop
+    public long lastRead;
+    public long pingSent; // 0: not waiting for pong
+    // 0, or a close frame is queued: closed with it once written
+    public int closeStatus;
+
     public WsServerAtta(AsyncChannel channel) {
-        this.decoder = new WSDecoder();
+        this(channel, WSDecoder.MAX_MESSAGE);
+    }
+
+    public WsServerAtta(AsyncChannel channel, int maxMessage) {
+        this.decoder = new WSDecoder(maxMessage);
         this.asycChannel = channel;
     }
 
+    public void enableDeflate(PerMessageDeflate deflate) {
+        decoder.enableDeflate(deflate);
+        this.deflate = deflate;
+    }
+
+    public PerMessageDeflate getDeflate() {
+        return deflate;
+    }
+
     public boolean isKeepAlive() {
-        return true; // always keep-alived, wait other close it
+        return closeStatus == 0; // keep-alived, wait other close it
     }
 }
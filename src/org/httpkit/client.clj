@@ -2,7 +2,8 @@
   (:refer-clojure :exclude [get])
   (:require [clojure.string :as str])
   (:import [org.httpkit.client HttpClientConfig HttpClient
-            IResponseHandler RespListener IFilter MaxBodyFilter]
+            IResponseHandler RespListener StreamListener IFilter MaxBodyFilter
+            DnsCache IResolver ResponseCache SingleFlight]
            [org.httpkit HttpMethod PrefixThreadFactory HttpUtils]
            [java.util.concurrent ThreadPoolExecutor LinkedBlockingQueue TimeUnit]
            [java.net URI URLEncoder]
@@ -51,7 +52,9 @@
            url)
     :method (HttpMethod/fromKeyword (or method :get))
     :headers  (prepare-request-headers req)
-    ;; :body  ring body: null, String, seq, InputStream, File
+    ;; :body  ring body: null, String, seq, InputStream, File; or ByteBuffer, FileChannel.
+    ;; File, FileChannel, FileInputStream are sent by transferTo, not in memory;
+    ;; another InputStream is read into memory, it may block the client loop
     :body     (if form-params (query-string form-params) body)))
 
 ;; thread pool for executing callbacks, since they may take a long time to execute.
@@ -66,13 +69,85 @@
 (defn max-body-filter "reject if response's body exceeds size in bytes"
   [size] (MaxBodyFilter. (int size)))
 
-(defn init-client "Initializes and returns a new HTTP client. Timeout: 1 minute, keep-alive: 2 minutes"
-   [& {:keys [timeout user-agent keep-alive]
-       :or {timeout 60000 user-agent "http-kit/2.0" keep-alive 120000}}]
-   (HttpClient. (HttpClientConfig. timeout user-agent keep-alive)))
+(defn init-client "Initializes and returns a new HTTP client. Timeout: 1 minute, keep-alive: 2 minutes.
+  :max-connections-per-host bounds connections to a host, more requests wait
+  for one, FIFO; 0 (default) for no limit.
+  :io-threads is the number of event loops (default 1), a host is served by
+  one of them, a new host may go to the least loaded one.
+  Host names are resolved off the caller's thread by :resolver (an IResolver,
+  default the system's), cached for :dns-ttl ms, failures for :dns-negative-ttl ms.
+  https uses :ssl-context (javax.net.ssl.SSLContext), default SSLContext/getDefault.
+  :pipelining (default 1, off) is the number of idempotent requests in flight on a
+  connection, HTTP/1.1 pipelining: fewer sockets to a chatty host. Responses
+  come in order, a slow one delays the ones behind it.
+  :cache-size (bytes, default 0, off) caches GET responses in memory, by
+  Cache-Control/Expires, revalidated with ETag/Last-Modified when stale.
+  Concurrent misses of a URL are sent once.
+  :single-flight, a seq of header names, e.g. [\"Accept\"]: concurrent GET or HEAD
+  requests of the same URL and those headers (Authorization, Cookie too) are sent
+  once, the response is shared. Off if nil (default)
+  :jmx-name, e.g. \"org.httpkit:type=HttpClient,name=api\": its metrics as an MBean,
+  see `client-metrics`. :stall-threshold (ms, default 200, 0: off): a loop busy on an
+  iteration longer than it, like a callback blocking it, is reported with its stack"
+   [& {:keys [timeout user-agent keep-alive max-connections-per-host io-threads
+              resolver dns-ttl dns-negative-ttl ssl-context pipelining cache-size
+              single-flight jmx-name stall-threshold]
+       :or {timeout 60000 user-agent "http-kit/2.0" keep-alive 120000
+            max-connections-per-host 0 io-threads 1 pipelining 1 cache-size 0
+            stall-threshold 200
+            resolver IResolver/SYSTEM dns-ttl 60000 dns-negative-ttl 10000}}]
+   (let [client (HttpClient. (HttpClientConfig. timeout user-agent keep-alive
+                                                max-connections-per-host io-threads pipelining)
+                             (DnsCache. resolver dns-ttl dns-negative-ttl 4096 4)
+                             ssl-context
+                             (when (pos? cache-size) (ResponseCache. (long cache-size)))
+                             (when single-flight (SingleFlight. (into-array String single-flight))))]
+     (.setStallThreshold client stall-threshold)
+     (when jmx-name
+       (.register (.getMetrics client) jmx-name))
+     client))
+
+(defn- keywordize [m]
+  (reduce (fn [m [k v]] (assoc m (keyword k) v)) {} m))
 
 (defonce default-client (delay (init-client)))
 
+(defn client-stats
+  "Returns {:io-threads _ :open _ :idle _ :waiting _ :waited _ :wait-avg-ms _ :wait-max-ms _
+            :pipelined _
+            :hedge-requests _ :hedged _ :hedge-wins _
+            :hosts {\"host/ip:port\" {:open _ :idle _ :waiting _}}
+            :dns {:entries _ :inflight _ :hits _ :misses _}
+            :cache {:entries _ :bytes _ :inflight _ :hits _ :misses _ :revalidations _
+                    :not-modified _ :coalesced _ :evictions _}
+            :single-flight {:inflight _ :coalesced _}}
+  of connections. :waited is the number of requests waited for a connection,
+  :pipelined sent on a connection with others in flight.
+  Of :hedge-requests, :hedged sent a duplicate, :hedge-wins completed by it.
+  :cache if :cache-size, :coalesced requests waited for the same miss;
+  :single-flight if on, :coalesced requests waited for an identical one."
+  ([] (client-stats @default-client))
+  ([^HttpClient client]
+     (let [stats (.getStats client)
+           m (assoc (keywordize (dissoc (into {} stats) "hosts" "dns" "cache" "single-flight"))
+               :hosts (reduce (fn [m [host s]] (assoc m host (keywordize s)))
+                              {} (.get stats "hosts"))
+               :dns (keywordize (.get stats "dns")))]
+       (reduce (fn [m k] (if-let [s (.get stats k)] (assoc m (keyword k) (keywordize s)) m))
+               m ["cache" "single-flight"]))))
+
+(defn client-metrics
+  "Returns a snapshot of the client's metrics:
+    {:in-flight _ :pool-hits _ :connects _ :connect-timeouts _ :read-timeouts _ :retries _
+     :loop-time {:count _ :mean _ :p50 _ :p90 _ :p99 _ :max _} :stalls _}
+  :in-flight includes requests waiting for a connection; :pool-hits, requests sent
+  on an idle kept-alive connection; :retries, resent after the server closed one.
+  :loop-time, us, of a loop's iteration; :stalls, longer than :stall-threshold."
+  ([] (client-metrics @default-client))
+  ([^HttpClient client]
+     (reduce (fn [m [k v]] (assoc m (keyword k) (if (instance? java.util.Map v) (keywordize v) v)))
+             {} (.snapshot (.getMetrics client)))))
+
 (defn request
   "Issues an async HTTP request and returns a promise object to which the value
   of `(callback {:opts _ :status _ :headers _ :body _})` or
@@ -101,11 +176,26 @@
 
  Request options:
     :url :method :headers :timeout :query-params :form-params
-    :client :body :basic-auth :user-agent :filter :worker-pool"
-  [{:keys [client timeout filter worker-pool] :as opts
-    :or {client @default-client timeout -1 filter IFilter/ACCEPT_ALL worker-pool default-pool}}
+    :client :body :basic-auth :user-agent :filter :worker-pool :as :stream-buffer
+    :hedge-after-ms :hedge-url
+
+  :as :stream delivers the response once headers are received, :body is an
+  InputStream fed as the body arrives, gzip/deflate decoded on the fly. At most
+  about :stream-buffer bytes are buffered, reading from the server is paused
+  until the InputStream is read. Close it to abort early
+
+  :hedge-after-ms, for idempotent requests to replicated servers: if no
+  response in that many ms, a duplicate is sent to :hedge-url (default :url).
+  The first completed is delivered, the other is cancelled. Not with :as :stream,
+  nor :post or :patch"
+  [{:keys [client timeout filter worker-pool as stream-buffer hedge-after-ms hedge-url]
+    :as opts
+    :or {client @default-client timeout -1 filter IFilter/ACCEPT_ALL worker-pool default-pool
+         stream-buffer 262144}}
    callback]
   (let [{:keys [url method headers body]} (coerce-req opts)
+        ;; same :query-params
+        hedge-url (when hedge-url (:url (coerce-req (assoc opts :url hedge-url))))
         response (promise)
         deliver-resp #(deliver response ;; deliver the result
                                (try ((or callback identity) %1)
@@ -122,8 +212,18 @@
                                    :status  status}))
                   (onThrowable [this t]
                     (deliver-resp {:opts opts :error t})))
-        listener (RespListener. handler filter worker-pool)]
-    (.exec ^HttpClient client url method headers body timeout listener)
+        listener #(if (= as :stream)
+                    (StreamListener. handler filter worker-pool (int stream-buffer))
+                    (RespListener. handler filter worker-pool))]
+    (if hedge-after-ms
+      (do (when (= as :stream)
+            (throw (IllegalArgumentException. ":hedge-after-ms is not for :as :stream")))
+          (when-not (.isIdempotent ^HttpMethod method)
+            (throw (IllegalArgumentException.
+                    (str ":hedge-after-ms is not for " method ", not idempotent"))))
+          (.execHedged ^HttpClient client url hedge-url method headers body timeout
+                       (int hedge-after-ms) (listener) (listener)))
+      (.exec ^HttpClient client url method headers body timeout (listener)))
     response))
 
 (defmacro ^:private defreq [method]
@@ -1,5 +1,6 @@
 (ns org.httpkit.server
-  (:import [org.httpkit.server AsyncChannel HttpServer RingHandler]
+  (:import [org.httpkit.server AccessLog AsyncChannel HttpServer RingHandler TopicHub]
+           org.httpkit.ws.PerMessageDeflate
            javax.xml.bind.DatatypeConverter
            java.security.MessageDigest))
 
@@ -9,19 +10,98 @@
   "Starts (mostly*) Ring-compatible HTTP server and returns a nullary function
   that stops the server.
 
-  * See http://http-kit.org/migration.html for differences."
-  [handler {:keys [port thread ip max-body max-line worker-name-prefix queue-size]
+  * See http://http-kit.org/migration.html for differences.
+
+  The returned function has the server as :server in its metadata, see
+  `server-stats` and `server-metrics`. With :jmx? true the metrics are MBeans
+  too: org.httpkit:type=HttpServer,port=_ and org.httpkit:type=RingHandler,port=_"
+  [handler {:keys [port thread ip max-body max-line worker-name-prefix queue-size
+                   ws-deflate ws-deflate-threshold ws-deflate-level
+                   ws-deflate-no-context-takeover max-ws-message
+                   ws-ping-interval ws-pong-timeout ssl-context ssl-parameters jmx?
+                   stall-threshold access-log access-log-size]
             :or   {ip "0.0.0.0"  ; which ip (if has many ips) to bind
                    port 8090     ; which port listen incomming request
                    thread 4      ; http worker thread count
                    queue-size 20480 ; max job queued before reject to project self
                    worker-name-prefix "worker-" ; woker thread name prefix
                    max-body 8388608             ; max http body: 8m
-                   max-line 4096}}]  ; max http inital line length: 4K
+                   max-line 4096  ; max http inital line length: 4K
+                   ws-deflate false ; WebSocket permessage-deflate, if client offers it
+                   ws-deflate-threshold 256  ; message shorter than it is not compressed
+                   ws-deflate-level -1       ; 0-9, -1: default(6)
+                   ;; ask client not to keep context between messages, less memory
+                   ws-deflate-no-context-takeover false
+                   ;; max WebSocket message, reassembled, inflated: 4m
+                   max-ws-message 4194304
+                   ;; ping WebSocket idle for ws-ping-interval ms, close it if
+                   ;; no pong in ws-pong-timeout ms. nil: no ping
+                   ws-ping-interval nil
+                   ws-pong-timeout 10000
+                   ;; javax.net.ssl.SSLContext: serve HTTPS (and wss) only.
+                   ;; ssl-parameters: SSLParameters for every SSLEngine, like
+                   ;; client auth, protocols, or ALPN (JDK 9+)
+                   ssl-context nil
+                   ssl-parameters nil
+                   jmx? false
+                   ;; ms, the loop busy on an iteration longer than it (a handler
+                   ;; blocking it) is reported with its stack, counted as :stalls
+                   ;; of `server-metrics`. 0: off
+                   stall-threshold 200
+                   ;; file path: a line per response, appended by a background
+                   ;; thread. access-log-size responses are buffered; when full,
+                   ;; dropped, counted as :access-dropped. nil: no log
+                   access-log nil
+                   access-log-size 65536}}]
   (let [h (RingHandler. thread handler worker-name-prefix queue-size)
         s (HttpServer. ip port h max-body max-line)]
+    (.setMaxWsMessage s max-ws-message)
+    (.setStallThreshold s stall-threshold)
+    (when access-log
+      (.setAccessLog s (AccessLog. access-log access-log-size)))
+    (when ws-ping-interval
+      (.setWsKeepalive s ws-ping-interval ws-pong-timeout))
+    (when ssl-context
+      (.setSslContext s ssl-context ssl-parameters))
+    (when ws-deflate
+      (.setWsDeflate s (PerMessageDeflate. ws-deflate-threshold ws-deflate-level
+                                           (boolean ws-deflate-no-context-takeover))))
     (.start s)
-    (fn stop-server [] (.close h) (.stop s))))
+    (when jmx?
+      (.register (.getMetrics s) (str "org.httpkit:type=HttpServer,port=" (.getPort s)))
+      (.register (.getMetrics h) (str "org.httpkit:type=RingHandler,port=" (.getPort s))))
+    (with-meta (fn stop-server [] (.close h) (.stop s))
+      {:server s :handler h})))
+
+(defn server-stats
+  "Returns {:ws-pings _ :ws-reaped _ :ssl-handshakes _ :timers-fired _}, of the
+  server started by `run-server` (the returned function). :ws-reaped is
+  WebSocket connections closed for no pong in time. :timers-fired is tasks run
+  by the server loop, see `schedule`."
+  [stop-server]
+  (let [^HttpServer s (:server (meta stop-server))]
+    {:ws-pings  (.getWsPings s)
+     :ws-reaped (.getWsReaped s)
+     :ssl-handshakes (.getSslHandshakes s)
+     :timers-fired (.getTimersFired s)}))
+
+(defn- metrics-map [m]
+  (reduce (fn [r [k v]] (assoc r (keyword k) (if (instance? java.util.Map v) (metrics-map v) v)))
+          {} m))
+
+(defn server-metrics
+  "Returns a snapshot of the metrics of the server started by `run-server`:
+    :accepts :connections (open) :reads :bytes-in :bytes-out
+    :body-too-large (413) :line-too-large (414) :loop-time :stalls
+    :access-logged :access-dropped (with :access-log)
+    :queue-depth :queue-wait :handler-time :rejected (503)
+  Times are {:count _ :mean _ :p50 _ :p90 _ :p99 _ :max _} in us, :loop-time is
+  the loop's work on an iteration, not waiting in select; :stalls, iterations
+  longer than :stall-threshold."
+  [stop-server]
+  (let [{:keys [^HttpServer server ^RingHandler handler]} (meta stop-server)]
+    (merge (metrics-map (.snapshot (.getMetrics server)))
+           (metrics-map (.snapshot (.getMetrics handler))))))
 
 ;;;; Asynchronous extension
 
@@ -78,6 +158,59 @@
   (on-receive [ch callback] (.setReceiveHandler ch callback))
   (on-close [ch callback] (.setCloseHandler ch callback)))
 
+(defn on-receive-fragments
+  "Like `on-receive`, but binary messages are not reassembled: callback gets
+  {:data byte[] :last? boolean} for every chunk as it arrives, in order, with
+  no max message size. For large binary transfers. Text messages are the same
+  as `on-receive`."
+  [^AsyncChannel ch callback] (.setReceiveHandler ch callback true))
+
+(defn schedule
+  "Calls (f) in ms, by the server loop owning the channel: no thread handoff,
+  cheaper than org.httpkit.timer for a long-polling timeout or a streaming
+  heartbeat. f should be quick, like a `send!`: the loop waits for it.
+
+  Cancelled if the channel is closed first. Returns a timer, `(.cancel timer)`
+  returns true iff cancelled before run.
+
+    (with-channel request ch
+      (schedule ch 30000 #(send! ch {:status 204})))"
+  [^AsyncChannel ch ms f] (.schedule ch (long ms) f))
+
+;;;; Pub/sub
+
+(defn topic-hub
+  "Returns a registry of topic => subscribed channels (WebSocket or HTTP
+  long-polling), for chat rooms, notifications, etc. Channels are unsubscribed
+  automatically when closed. `stripes` trades memory for less contention."
+  ([] (TopicHub.))
+  ([stripes] (TopicHub. (int stripes))))
+
+(defn subscribe!
+  "Subscribes channel to topic. Returns false if already subscribed."
+  [^TopicHub hub topic ch] (.subscribe hub topic ch))
+
+(defn unsubscribe!
+  "Unsubscribes channel from topic. Returns false if not subscribed."
+  [^TopicHub hub topic ch] (.unsubscribe hub topic ch))
+
+(defn publish!
+  "Sends data to every channel subscribed to topic, returns the number of
+  channels sent to. Same data form as `send!`: for WebSocket, the frame is
+  encoded once and shared by all channels; for HTTP, a response is sent and the
+  channel is closed (long-polling)."
+  [^TopicHub hub topic data] (.publish hub topic data))
+
+(defn- keywordize [m]
+  (reduce (fn [m [k v]] (assoc m (keyword k) v)) {} m))
+
+(defn hub-stats
+  "Returns {:topics _ :subscribers _ :published _ :delivered _
+            :publish-avg-us _ :publish-max-us _}, or subscriber count of topic.
+  Publish latency is the time to fan out to all subscribers."
+  ([^TopicHub hub] (keywordize (.getStats hub)))
+  ([^TopicHub hub topic] (.subscriberCount hub topic)))
+
 ;;;; WebSocket
 (defn accept [key]
   (let [md (MessageDigest/getInstance "SHA1")
@@ -118,14 +251,15 @@
     (on-receieve [ch callback])
     (on-close [ch callback])
 
-  See org.httpkit.timer ns for optional timeout facilities."
+  See `schedule`, or org.httpkit.timer ns for optional timeout facilities."
   [request ch-name & body]
   `(let [^AsyncChannel ~ch-name (:async-channel ~request)]
      (if (:websocket? ~request)
        (if-let [key# (get-in ~request [:headers "sec-websocket-key"])]
          (do (.sendHandshake ~ch-name {"Upgrade"    "websocket"
                                        "Connection" "Upgrade"
-                                       "Sec-WebSocket-Accept" (accept key#)})
+                                       "Sec-WebSocket-Accept" (accept key#)}
+                             (get-in ~request [:headers "sec-websocket-extensions"]))
              ~@body
              {:body ~ch-name})
          {:status 400 :body "Bad Sec-WebSocket-Key header"})
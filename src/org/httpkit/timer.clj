@@ -1,19 +1,35 @@
 (ns org.httpkit.timer
   "TimerService wrapper:
      * Can schedule many tasks at once.
-     * When scheduled for 1000ms, may run in 1000ms, 10001ms, etc.
+     * When scheduled for 1000ms, may run in 1000ms, 1010ms: never early, at
+       most one tick (10ms) late.
      * Cancel returns true => future task guaranteed cancelled;
              returns false => already cancelled || already run.
-     * Scheduling a new task is O(log(N)) where N is # active tasks.
-     * Cancelling a task is O(N).
+     * Scheduling a new task is O(1), lock-free (hashed timing wheel).
+     * Cancelling a task is O(1), the task's fn is released at once.
+     * Tasks are run by an executor, a virtual thread each on JVMs having
+       them, else a pool of a thread per core (4 at least): see
+       `set-executor!`.
      * Timer-service thread will kill itself automatically when no task is
-       scheduled for 4 minutes, and will restart automatically when a new task
+       scheduled for 2 minutes, and will restart automatically when a new task
        is added."
   (:import [org.httpkit.timer TimerService CancelableFutureTask]))
 
 (defn cancel [^CancelableFutureTask task]
   (.cancel task))
 
+(defn set-executor!
+  "Runs the tasks due from now by the given java.util.concurrent.ExecutorService,
+  nil to run them by the timer-service thread (a slow one delays the others)."
+  [executor]
+  (.setExecutor TimerService/SERVICE executor))
+
+(defn timer-stats
+  "{:pending :fired :lag-last :lag-max :lag-mean}, lag: how late tasks ran, ms.
+  A growing lag means the executor is short of threads."
+  []
+  (reduce (fn [m [k v]] (assoc m (keyword k) v)) {} (.getStats TimerService/SERVICE)))
+
 (defmacro schedule-task
   "Schedules body for invocation after given time and returns a
   CancelableFutureTask. `(cancel task)` will cancel the task if possible and
@@ -0,0 +1,79 @@
+package org.httpkit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PriorityQueueTest {
+
+    static class Item implements Comparable<Item>, PriorityQueue.Indexed {
+        final int value;
+        int heapIndex = -1;
+
+        Item(int value) {
+            this.value = value;
+        }
+
+        public int compareTo(Item o) {
+            return value < o.value ? -1 : (value == o.value ? 0 : 1);
+        }
+
+        public int getHeapIndex() {
+            return heapIndex;
+        }
+
+        public void setHeapIndex(int index) {
+            heapIndex = index;
+        }
+    }
+
+    @Test
+    public void testIndexedRemove() {
+        Random r = new Random();
+        PriorityQueue<Item> queue = new PriorityQueue<Item>();
+        java.util.PriorityQueue<Integer> expected = new java.util.PriorityQueue<Integer>();
+        List<Item> items = new ArrayList<Item>();
+        for (int round = 0; round < 20000; round++) {
+            int op = r.nextInt(3);
+            if (op == 0 || items.isEmpty()) {
+                Item item = new Item(r.nextInt(1000));
+                items.add(item);
+                queue.offer(item);
+                expected.offer(item.value);
+            } else if (op == 1) {
+                Item item = items.remove(r.nextInt(items.size()));
+                Assert.assertSame(item, queue.remove(item));
+                Assert.assertEquals(-1, item.heapIndex);
+                Assert.assertNull(queue.remove(item)); // removed already
+                expected.remove(item.value);
+            } else {
+                Item item = queue.poll();
+                Assert.assertEquals(expected.poll(), (Integer) item.value);
+                Assert.assertEquals(-1, item.heapIndex);
+                items.remove(item);
+            }
+            Assert.assertEquals(expected.size(), queue.size());
+            if (!expected.isEmpty()) {
+                Assert.assertEquals(expected.peek(), (Integer) queue.peek().value);
+            }
+        }
+        for (Item item : items) {
+            Assert.assertTrue(item.heapIndex >= 0 && item.heapIndex < queue.size());
+        }
+    }
+
+    @Test
+    public void testNotIndexed() { // remove by equals, like before
+        PriorityQueue<String> queue = new PriorityQueue<String>();
+        queue.offer("b");
+        queue.offer("a");
+        queue.offer("c");
+        Assert.assertEquals("b", queue.remove(new String("b")));
+        Assert.assertEquals("a", queue.poll());
+        Assert.assertEquals("c", queue.poll());
+        Assert.assertNull(queue.poll());
+    }
+}
@@ -0,0 +1,141 @@
+package org.httpkit.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.httpkit.HttpMethod;
+import org.httpkit.codec.Utils.Collector;
+import org.httpkit.codec.Utils.TestServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+
+    TestServer server;
+    final AtomicInteger concurrent = new AtomicInteger(0);
+    final AtomicInteger maxConcurrent = new AtomicInteger(0);
+    // responses are held until released
+    volatile CountDownLatch release = new CountDownLatch(0);
+
+    // keep-alive, thread per connection, a little slow
+    @Before
+    public void setup() throws IOException {
+        server = new TestServer(new TestServer.Handler() {
+            public boolean handle(TestServer.Request req, OutputStream out) throws Exception {
+                int c = concurrent.incrementAndGet();
+                int max;
+                while (c > (max = maxConcurrent.get()) && !maxConcurrent.compareAndSet(max, c)) {
+                }
+                release.await();
+                Thread.sleep(5);
+                concurrent.decrementAndGet();
+                TestServer.respond(out, "", "ok");
+                return true;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    private static int ok(List<Collector> listeners) {
+        int ok = 0;
+        for (Collector c : listeners) {
+            if (c.isOk()) {
+                ok++;
+            }
+        }
+        return ok;
+    }
+
+    @Test
+    public void testMaxConnectionsPerHost() throws Exception {
+        HttpClient client = new HttpClient(new HttpClientConfig(10000, "test", 60000, 4));
+        int n = 200;
+        CountDownLatch latch = new CountDownLatch(n);
+        List<Collector> listeners = new ArrayList<Collector>();
+        String url = server.url("/");
+        release = new CountDownLatch(1);
+        for (int i = 0; i < n; i++) {
+            Collector c = new Collector(latch);
+            listeners.add(c);
+            client.exec(url, HttpMethod.GET, new TreeMap<String, Object>(), null, -1, c);
+        }
+        Map<String, Object> stats = client.getStats();
+        // all are queued by the loop, not only submitted
+        for (int i = 0; i < 500 && !stats.get("waiting").equals(n - 4); i++) {
+            Thread.sleep(10);
+            stats = client.getStats();
+        }
+        Assert.assertEquals(n - 4, stats.get("waiting"));
+        release.countDown();
+        Assert.assertTrue(latch.await(20, TimeUnit.SECONDS));
+        Assert.assertEquals(n, ok(listeners));
+        Assert.assertEquals(4, server.accepted.get());
+        Assert.assertTrue(maxConcurrent.get() <= 4);
+
+        stats = client.getStats();
+        for (int i = 0; i < 100 && !stats.get("idle").equals(4); i++) {
+            Thread.sleep(10); // completed before released by the loop
+            stats = client.getStats();
+        }
+        System.out.println(stats);
+        Assert.assertEquals(4, stats.get("open"));
+        Assert.assertEquals(4, stats.get("idle"));
+        Assert.assertEquals(0, stats.get("waiting"));
+        Assert.assertTrue((Long) stats.get("waited") >= n - 4);
+        client.stop();
+    }
+
+    @Test
+    public void testIoThreads() throws Exception {
+        HttpClient client = new HttpClient(new HttpClientConfig(10000, "test", 60000, 2, 4));
+        String[] urls = { server.url("/"), "http://localhost:" + server.getPort() + "/" };
+        int n = 400;
+        CountDownLatch latch = new CountDownLatch(n);
+        List<Collector> listeners = new ArrayList<Collector>();
+        for (int i = 0; i < n; i++) {
+            Collector c = new Collector(latch);
+            listeners.add(c);
+            client.exec(urls[i % 2], HttpMethod.GET, new TreeMap<String, Object>(), null, -1, c);
+        }
+        Assert.assertTrue(latch.await(20, TimeUnit.SECONDS));
+        Assert.assertEquals(n, ok(listeners));
+        // a host is owned by a loop, max connections are kept
+        Assert.assertTrue(server.accepted.get() <= 4);
+        Assert.assertEquals(4, client.getStats().get("io-threads"));
+        client.stop();
+    }
+
+    @Test
+    public void testWaitingTimeout() throws Exception {
+        HttpClient client = new HttpClient(new HttpClientConfig(10000, "test", 60000, 1));
+        String url = server.url("/");
+        CountDownLatch latch = new CountDownLatch(20);
+        List<Collector> listeners = new ArrayList<Collector>();
+        for (int i = 0; i < 20; i++) { // 5ms each, some can not wait 30ms
+            Collector c = new Collector(latch);
+            listeners.add(c);
+            client.exec(url, HttpMethod.GET, new TreeMap<String, Object>(), null, 30, c);
+        }
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        int ok = ok(listeners);
+        Assert.assertTrue(ok > 0 && ok < 20);
+        for (int i = 0; i < 100 && !client.getStats().get("waiting").equals(0); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, client.getStats().get("waiting")); // timeout, removed
+        client.stop();
+    }
+}
@@ -0,0 +1,157 @@
+package org.httpkit.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import org.httpkit.DynamicBytes;
+import org.httpkit.HttpStatus;
+import org.httpkit.HttpUtils;
+import org.httpkit.HttpVersion;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ContentDecoderTest {
+
+    static byte[] data(int n) {
+        StringBuilder sb = new StringBuilder();
+        Random r = new Random(n);
+        while (sb.length() < n) {
+            sb.append("{\"id\":").append(r.nextInt(1000)).append(",\"name\":\"http-kit\"},");
+        }
+        return sb.substring(0, n).getBytes();
+    }
+
+    static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        GZIPOutputStream gos = new GZIPOutputStream(bos);
+        gos.write(data);
+        gos.close();
+        return bos.toByteArray();
+    }
+
+    static byte[] deflate(byte[] data, boolean nowrap) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DeflaterOutputStream dos = new DeflaterOutputStream(bos, new Deflater(6, nowrap));
+        dos.write(data);
+        dos.close();
+        return bos.toByteArray();
+    }
+
+    // feed by random reads, some direct
+    static byte[] decode(String encoding, byte[] compressed) throws Exception {
+        ContentDecoder decoder = ContentDecoder.create(encoding, null);
+        DynamicBytes out = new DynamicBytes(64);
+        Random r = new Random();
+        int off = 0;
+        while (off < compressed.length) {
+            int n = Math.min(compressed.length - off, 1 + r.nextInt(r.nextBoolean() ? 8 : 4096));
+            if (r.nextBoolean()) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(n);
+                buffer.put(compressed, off, n).flip();
+                decoder.decode(buffer, out);
+            } else {
+                decoder.decode(compressed, off, n, out);
+            }
+            off += n;
+        }
+        decoder.finish();
+        byte[] result = new byte[out.length()];
+        System.arraycopy(out.get(), 0, result, 0, result.length);
+        return result;
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        for (int n : new int[] { 0, 1, 100, 100000 }) {
+            byte[] data = data(n);
+            Assert.assertArrayEquals(data, decode("gzip", gzip(data)));
+        }
+    }
+
+    @Test
+    public void testGzipHeaderFields() throws Exception {
+        byte[] data = data(1000);
+        byte[] body = deflate(data, true);
+        DynamicBytes gz = new DynamicBytes(64);
+        // FEXTRA, FNAME, FCOMMENT, FHCRC
+        gz.append(new byte[] { 0x1f, (byte) 0x8b, 8, 4 | 8 | 16 | 2, 0, 0, 0, 0, 0, 3 }, 10);
+        gz.append(new byte[] { 3, 0, 'a', 'b', 'c' }, 5);
+        gz.append("file.json").append((byte) 0).append("comment").append((byte) 0);
+        gz.append(new byte[] { 0, 0 }, 2);
+        gz.append(body, body.length);
+        java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        crc.update(data);
+        long v = crc.getValue();
+        for (long x : new long[] { v, data.length }) {
+            for (int i = 0; i < 4; i++) {
+                gz.append((byte) (x >> (8 * i)));
+            }
+        }
+        byte[] compressed = new byte[gz.length()];
+        System.arraycopy(gz.get(), 0, compressed, 0, compressed.length);
+        Assert.assertArrayEquals(data, decode("gzip", compressed));
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        byte[] data = data(50000);
+        Assert.assertArrayEquals(data, decode("deflate", deflate(data, false))); // zlib
+        Assert.assertArrayEquals(data, decode("deflate", deflate(data, true))); // raw
+    }
+
+    @Test(expected = ZipException.class)
+    public void testCorruptTrailer() throws Exception {
+        byte[] gz = gzip(data(1000));
+        gz[gz.length - 5] ^= 1;
+        decode("gzip", gz);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws Exception {
+        byte[] gz = gzip(data(100000));
+        byte[] truncated = new byte[gz.length / 2];
+        System.arraycopy(gz, 0, truncated, 0, truncated.length);
+        decode("gzip", truncated);
+    }
+
+    @Test
+    public void testMaxBodyDecompressed() throws Exception {
+        final LinkedBlockingQueue<Object> result = new LinkedBlockingQueue<Object>();
+        IResponseHandler handler = new IResponseHandler() {
+            public void onSuccess(int status, Map<String, String> headers, Object body) {
+                result.offer(body);
+            }
+
+            public void onThrowable(Throwable t) {
+                result.offer(t);
+            }
+        };
+        RespListener l = new RespListener(handler, new MaxBodyFilter(1024 * 1024),
+                Executors.newSingleThreadExecutor());
+        byte[] bomb = gzip(new byte[1024 * 1024 * 64]);
+        Assert.assertTrue(bomb.length < 1024 * 128);
+        Map<String, String> headers = new TreeMap<String, String>();
+        headers.put(HttpUtils.CONTENT_ENCODING, "gzip");
+        l.onInitialLineReceived(HttpVersion.HTTP_1_1, HttpStatus.OK);
+        l.onHeadersReceived(headers);
+        try {
+            // all at once, rejected while inflating
+            l.onBodyReceived(ByteBuffer.wrap(bomb));
+            Assert.fail("should be rejected");
+        } catch (AbortException expected) {
+            l.onThrowable(expected);
+        }
+        Assert.assertTrue(result.poll(1, TimeUnit.SECONDS) instanceof AbortException);
+    }
+}
@@ -0,0 +1,100 @@
+package org.httpkit.client;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.httpkit.HttpStatus;
+import org.httpkit.HttpVersion;
+
+/**
+ * Decoder garbage per read: 4M body read by 64K like the client loop. Compare
+ * the old per decode() 64K scratch array, the byte[] listener (a scratch array
+ * per response), the ByteBuffer listener (no copy by the decoder).
+ * Allocated bytes are counted by the HotSpot thread MXBean
+ */
+public class DecoderAllocBench {
+
+    static final ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 64);
+
+    static class Listener implements IRespListener {
+        final byte[] sink = new byte[1024 * 64]; // consumed, not kept
+
+        public void onInitialLineReceived(HttpVersion version, HttpStatus status) {
+        }
+
+        public void onHeadersReceived(Map<String, String> headers) {
+        }
+
+        public void onBodyReceived(byte[] buf, int length) {
+            System.arraycopy(buf, 0, sink, 0, length);
+        }
+
+        public void onCompleted() {
+        }
+
+        public void onThrowable(Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    static class BufferListener extends Listener implements IRespBufferListener {
+        public void onBodyReceived(ByteBuffer buf) {
+            buf.get(sink, 0, buf.remaining());
+        }
+    }
+
+    static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // return reads
+    static int decode(Listener listener, ByteBuffer resp, boolean old) throws Exception {
+        Decoder decoder = new Decoder(listener, org.httpkit.HttpMethod.GET);
+        resp.position(0);
+        int reads = 0;
+        while (resp.hasRemaining()) {
+            buffer.clear();
+            ByteBuffer slice = resp.duplicate();
+            slice.limit(Math.min(resp.limit(), resp.position() + buffer.capacity()));
+            buffer.put(slice);
+            resp.position(slice.position());
+            buffer.flip();
+            if (old) {
+                byte[] bodyBuffer = new byte[1024 * 64]; // what decode() did
+                bodyBuffer[reads % bodyBuffer.length] = 1;
+            }
+            decoder.decode(buffer);
+            reads++;
+        }
+        return reads;
+    }
+
+    public static void main(String[] args) throws Exception {
+        byte[] body = new byte[1024 * 1024 * 4];
+        String header = "HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n";
+        ByteBuffer resp = ByteBuffer.allocate(header.length() + body.length);
+        resp.put(header.getBytes()).put(body).flip();
+
+        String[] names = { "old, 64K per read", "byte[] listener", "ByteBuffer listener" };
+        int times = 200;
+        for (int round = 0; round < 3; round++) { // the first 2 are warm up
+            for (int i = 0; i < names.length; i++) {
+                Listener l = i == 2 ? new BufferListener() : new Listener();
+                long start = System.nanoTime(), alloc = allocated();
+                long reads = 0;
+                for (int j = 0; j < times; j++) {
+                    reads += decode(l, resp, i == 0);
+                }
+                long bytes = allocated() - alloc;
+                long time = System.nanoTime() - start;
+                if (round == 2) {
+                    double mb = (double) body.length * times / 1024 / 1024;
+                    System.out.printf("%20s: %8d bytes/read, %8.1f MB/s\n", names[i], bytes
+                            / reads, mb / time * 1e9);
+                }
+            }
+        }
+    }
+}
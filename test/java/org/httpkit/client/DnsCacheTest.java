@@ -0,0 +1,114 @@
+package org.httpkit.client;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DnsCacheTest {
+
+    DnsCache dns;
+
+    @After
+    public void tearDown() {
+        dns.stop();
+    }
+
+    static class Callback implements DnsCache.Callback {
+        final CountDownLatch latch;
+        final AtomicInteger ok = new AtomicInteger(0);
+        final AtomicInteger failed = new AtomicInteger(0);
+        volatile Thread thread;
+
+        Callback(int n) {
+            latch = new CountDownLatch(n);
+        }
+
+        public void onResolved(InetAddress addr) {
+            thread = Thread.currentThread();
+            ok.incrementAndGet();
+            latch.countDown();
+        }
+
+        public void onFailed(UnknownHostException e) {
+            failed.incrementAndGet();
+            latch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testCoalesceAndCache() throws Exception {
+        MapResolver resolver = new MapResolver().put("a.test", "10.0.0.1");
+        resolver.setDelay(200);
+        dns = new DnsCache(resolver, 60000, 10000, 16, 2);
+        Callback cb = new Callback(10);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            dns.resolve("a.test", cb);
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < 100); // not blocked
+        cb.await();
+        Assert.assertEquals(10, cb.ok.get());
+        Assert.assertEquals(1, resolver.getLookups());
+
+        cb = new Callback(1);
+        dns.resolve("A.TEST", cb); // cached, by the caller
+        cb.await();
+        Assert.assertEquals(Thread.currentThread(), cb.thread);
+        Assert.assertEquals(1, resolver.getLookups());
+    }
+
+    @Test
+    public void testTtlAndNegative() throws Exception {
+        MapResolver resolver = new MapResolver().put("a.test", "10.0.0.1");
+        dns = new DnsCache(resolver, 100, 100, 16, 1);
+        Callback cb = new Callback(4);
+        dns.resolve("b.test", cb);
+        Thread.sleep(20);
+        dns.resolve("b.test", cb); // failure cached
+        Assert.assertEquals(1, resolver.getLookups());
+        dns.resolve("a.test", cb);
+        Thread.sleep(200);
+        dns.resolve("a.test", cb); // expired
+        cb.await();
+        Assert.assertEquals(2, cb.failed.get());
+        Assert.assertEquals(3, resolver.getLookups());
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        MapResolver resolver = new MapResolver();
+        for (int i = 0; i < 10; i++) {
+            resolver.put("h" + i, "10.0.0." + i);
+        }
+        dns = new DnsCache(resolver, 60000, 10000, 4, 1);
+        Callback cb = new Callback(10);
+        for (int i = 0; i < 10; i++) {
+            dns.resolve("h" + i, cb);
+        }
+        cb.await();
+        Thread.sleep(20);
+        Assert.assertEquals(4, dns.getStats().get("entries"));
+    }
+
+    @Test
+    public void testLiteral() throws Exception {
+        MapResolver resolver = new MapResolver();
+        dns = new DnsCache(resolver);
+        Callback cb = new Callback(2);
+        dns.resolve("127.0.0.1", cb);
+        dns.resolve("::1", cb);
+        cb.await();
+        Assert.assertEquals(2, cb.ok.get());
+        Assert.assertEquals(0, resolver.getLookups());
+    }
+}
@@ -0,0 +1,146 @@
+package org.httpkit.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.httpkit.HttpMethod;
+import org.httpkit.codec.Utils.Collector;
+import org.httpkit.codec.Utils.TestServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HedgeTest {
+
+    TestServer server;
+    HttpClient client;
+
+    // keep-alive, thread per connection; /slow responds in 1s, others at once
+    @Before
+    public void setup() throws IOException {
+        server = new TestServer(new TestServer.Handler() {
+            public boolean handle(TestServer.Request req, OutputStream out) throws Exception {
+                if (req.path.equals("/slow")) {
+                    Thread.sleep(1000);
+                }
+                TestServer.respond(out, "", req.path.substring(1));
+                return true;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        client.stop();
+    }
+
+    // the primary's and the backup's, sharing a latch
+    private Collector[] hedge(String url, String alternate, int hedgeAfterMs)
+            throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        Collector[] r = { new Collector(latch), new Collector(latch) };
+        client.execHedged(url, alternate, HttpMethod.GET, new TreeMap<String, Object>(), null,
+                5000, hedgeAfterMs, r[0], r[1]);
+        Assert.assertTrue(latch.await(4, TimeUnit.SECONDS));
+        return r;
+    }
+
+    // the one completed or failed
+    private static Collector done(Collector[] r) {
+        return r[0].calls.get() > 0 ? r[0] : r[1];
+    }
+
+    private static int calls(Collector[] r) {
+        return r[0].calls.get() + r[1].calls.get();
+    }
+
+    @Test
+    public void testBackupWins() throws Exception {
+        client = new HttpClient(new HttpClientConfig(10000, "test", 60000));
+        long start = System.currentTimeMillis();
+        Collector[] r = hedge(server.url("/slow"), server.url("/fast"), 50);
+        Assert.assertTrue(System.currentTimeMillis() - start < 800);
+        Assert.assertEquals("fast", done(r).body());
+        Map<String, Object> stats = client.getStats();
+        Assert.assertEquals(1L, stats.get("hedged"));
+        Assert.assertEquals(1L, stats.get("hedge-wins"));
+        // the slow one is closed, not pooled: its response is not read
+        for (int i = 0; i < 300 && server.closed.get() == 0; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, server.closed.get());
+        Thread.sleep(100);
+        Assert.assertEquals(1, calls(r));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPostRejected() throws Exception {
+        client = new HttpClient(new HttpClientConfig(10000, "test", 60000));
+        client.execHedged(server.url("/fast"), null, HttpMethod.POST,
+                new TreeMap<String, Object>(), "body", 5000, 100, new Collector(),
+                new Collector());
+    }
+
+    @Test
+    public void testNoHedgeIfFast() throws Exception {
+        client = new HttpClient(new HttpClientConfig(10000, "test", 60000));
+        Collector[] r = hedge(server.url("/fast"), null, 500);
+        Assert.assertEquals("fast", done(r).body());
+        Thread.sleep(600); // past the hedge time
+        Map<String, Object> stats = client.getStats();
+        Assert.assertEquals(1L, stats.get("hedge-requests"));
+        Assert.assertEquals(0L, stats.get("hedged"));
+        Assert.assertEquals(1, server.requests.get());
+    }
+
+    @Test
+    public void testPrimaryFailsBackupAtOnce() throws Exception {
+        client = new HttpClient(new HttpClientConfig(10000, "test", 60000));
+        ServerSocket refused = new ServerSocket(0);
+        refused.close();
+        long start = System.currentTimeMillis();
+        Collector[] r = hedge("http://127.0.0.1:" + refused.getLocalPort() + "/",
+                server.url("/fast"), 3000);
+        Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+        Assert.assertEquals("fast", done(r).body());
+        Assert.assertEquals(1L, client.getStats().get("hedge-wins"));
+    }
+
+    @Test
+    public void testBothFail() throws Exception {
+        client = new HttpClient(new HttpClientConfig(10000, "test", 60000));
+        ServerSocket refused = new ServerSocket(0);
+        refused.close();
+        String url = "http://127.0.0.1:" + refused.getLocalPort() + "/";
+        Collector[] r = hedge(url, url, 3000);
+        Assert.assertNotNull(done(r).error);
+        Thread.sleep(100);
+        Assert.assertEquals(1, calls(r));
+    }
+
+    @Test
+    public void testWaitingBackupCancelled() throws Exception {
+        // one connection: the backup waits for it, the primary wins
+        client = new HttpClient(new HttpClientConfig(10000, "test", 60000, 1));
+        Collector[] r = hedge(server.url("/slow"), null, 50);
+        Assert.assertEquals("slow", done(r).body());
+        Map<String, Object> stats = client.getStats();
+        for (int i = 0; i < 100 && !stats.get("idle").equals(1); i++) {
+            Thread.sleep(10); // completed before released by the loop
+            stats = client.getStats();
+        }
+        Assert.assertEquals(1L, stats.get("hedged"));
+        Assert.assertEquals(0L, stats.get("hedge-wins"));
+        Assert.assertEquals(0, stats.get("waiting"));
+        Assert.assertEquals(1, stats.get("idle")); // pooled, not closed
+        Assert.assertEquals(1, server.requests.get());
+        Assert.assertEquals(0, server.closed.get());
+    }
+}
@@ -0,0 +1,70 @@
+package org.httpkit.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HostPoolTest {
+
+    final InetSocketAddress addr = new InetSocketAddress("127.0.0.1", 80);
+    Selector selector;
+    PersistentConn[] conns;
+
+    @Before
+    public void setup() throws IOException {
+        selector = Selector.open();
+        conns = new PersistentConn[4];
+        for (int i = 0; i < conns.length; i++) {
+            Pipe.SourceChannel ch = Pipe.open().source();
+            ch.configureBlocking(false);
+            SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+            conns[i] = new PersistentConn(i, addr, key);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (PersistentConn c : conns) {
+            c.key.channel().close();
+        }
+        selector.close();
+    }
+
+    @Test
+    public void testLifo() {
+        HostPool pool = new HostPool(addr);
+        for (PersistentConn c : conns) {
+            pool.push(c);
+        }
+        Assert.assertEquals(4, pool.idleCount);
+        for (int i = conns.length - 1; i >= 0; i--) {
+            Assert.assertSame(conns[i], pool.pop());
+        }
+        Assert.assertNull(pool.pop());
+        Assert.assertEquals(0, pool.idleCount);
+    }
+
+    @Test
+    public void testRemove() {
+        HostPool pool = new HostPool(addr);
+        for (PersistentConn c : conns) {
+            pool.push(c);
+        }
+        Assert.assertSame(conns[1], pool.remove(conns[1].key));
+        Assert.assertNull(pool.remove(conns[1].key)); // not idle
+        Assert.assertSame(conns[3], pool.remove(conns[3].key)); // the top
+        Assert.assertSame(conns[0], pool.remove(conns[0].key)); // the bottom
+        Assert.assertEquals(1, pool.idleCount);
+        pool.push(conns[1]);
+        Assert.assertSame(conns[1], pool.pop());
+        Assert.assertSame(conns[2], pool.pop());
+        Assert.assertNull(pool.pop());
+    }
+}
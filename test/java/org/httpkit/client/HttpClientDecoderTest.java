@@ -16,6 +16,7 @@ import org.httpkit.ProtocolException;
 import org.httpkit.client.AbortException;
 import org.httpkit.client.Decoder;
 import org.httpkit.client.IRespListener;
+import org.httpkit.DynamicBytes;
 import org.httpkit.client.State;
 import org.httpkit.codec.Utils;
 import org.junit.Test;
@@ -56,4 +57,46 @@ public class HttpClientDecoderTest {
         Assert.assertEquals("state should be ALL_READ", s, State.ALL_READ);
         Assert.assertTrue(onCompleteCallded);
     }
+
+    @Test
+    public void testBufferListener() throws Exception {
+        final DynamicBytes body = new DynamicBytes(1024);
+        Decoder decoder = new Decoder(new IRespBufferListener() {
+            public void onThrowable(Throwable t) {
+                throw new RuntimeException(t);
+            }
+
+            public void onInitialLineReceived(HttpVersion version, HttpStatus status) {
+            }
+
+            public void onHeadersReceived(Map<String, String> headers) {
+            }
+
+            public void onCompleted() {
+            }
+
+            public void onBodyReceived(byte[] buf, int length) {
+                Assert.fail("ByteBuffer expected");
+            }
+
+            public void onBodyReceived(ByteBuffer buf) {
+                body.append(buf);
+            }
+        }, HttpMethod.GET);
+
+        String resp = "HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\n0123456789";
+        // read by 3 bytes
+        byte[] bytes = resp.getBytes();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(3);
+        State s = null;
+        for (int i = 0; i < bytes.length; i += 3) {
+            buffer.clear();
+            buffer.put(bytes, i, Math.min(3, bytes.length - i));
+            buffer.flip();
+            s = decoder.decode(buffer);
+            Assert.assertFalse(buffer.hasRemaining());
+        }
+        Assert.assertEquals(State.ALL_READ, s);
+        Assert.assertEquals("0123456789", new String(body.get(), 0, body.length()));
+    }
 }
@@ -0,0 +1,127 @@
+package org.httpkit.client;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLServerSocket;
+
+import org.httpkit.BytesInputStream;
+import org.httpkit.HttpMethod;
+import org.httpkit.codec.Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpsClientTest {
+
+    SSLContext ctx;
+    SSLServerSocket server;
+    HttpClient client;
+    final AtomicInteger accepted = new AtomicInteger(0);
+    final byte[] big = new byte[1024 * 1024];
+
+    // keep-alive, thread per connection. /big for 1M
+    @Before
+    public void setup() throws Exception {
+        new Random().nextBytes(big);
+        ctx = Utils.sslContext();
+        server = (SSLServerSocket) ctx.getServerSocketFactory().createServerSocket(0);
+        new Thread() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket s = server.accept();
+                        accepted.incrementAndGet();
+                        new Thread() {
+                            public void run() {
+                                serve(s);
+                            }
+                        }.start();
+                    }
+                } catch (IOException ignore) { // closed
+                }
+            }
+        }.start();
+        client = new HttpClient(new HttpClientConfig(5000, "test", 60000), new DnsCache(
+                IResolver.SYSTEM), ctx);
+    }
+
+    private void serve(Socket s) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            OutputStream out = s.getOutputStream();
+            String line, path = null;
+            while ((line = in.readLine()) != null) {
+                if (path == null) {
+                    path = line.split(" ")[1];
+                } else if (line.length() == 0) {
+                    byte[] body = path.equals("/big") ? big : "hello".getBytes();
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n")
+                            .getBytes());
+                    out.write(body);
+                    out.flush();
+                    path = null;
+                }
+            }
+            s.close();
+        } catch (Exception ignore) {
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.stop();
+        server.close();
+    }
+
+    private Object get(String url) throws Exception {
+        final LinkedBlockingQueue<Object> result = new LinkedBlockingQueue<Object>();
+        client.exec(url, HttpMethod.GET, new TreeMap<String, Object>(), null, -1,
+                new RespListener(new IResponseHandler() {
+                    public void onSuccess(int status, Map<String, String> headers, Object body) {
+                        result.offer(body);
+                    }
+
+                    public void onThrowable(Throwable t) {
+                        result.offer(t);
+                    }
+                }, IFilter.ACCEPT_ALL, Executors.newSingleThreadExecutor()));
+        return result.poll(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testGetKeepalive() throws Exception {
+        String url = "https://localhost:" + server.getLocalPort() + "/";
+        for (int i = 0; i < 5; i++) {
+            Assert.assertArrayEquals("hello".getBytes(), ((BytesInputStream) get(url)).bytes());
+        }
+        Assert.assertEquals(1, accepted.get()); // reused
+        for (int i = 0; i < 100 && !client.getStats().get("idle").equals(1); i++) {
+            Thread.sleep(10); // completed before released by the loop
+        }
+        Assert.assertEquals(1, client.getStats().get("idle"));
+    }
+
+    @Test
+    public void testBigBody() throws Exception {
+        String url = "https://localhost:" + server.getLocalPort() + "/big";
+        Assert.assertArrayEquals(big, ((BytesInputStream) get(url)).bytes());
+    }
+
+    @Test
+    public void testHostnameMismatch() throws Exception {
+        // the certificate is for localhost
+        Object r = get("https://127.0.0.1:" + server.getLocalPort() + "/");
+        Assert.assertTrue(String.valueOf(r), r instanceof SSLException);
+    }
+}
@@ -0,0 +1,138 @@
+package org.httpkit.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.httpkit.HttpMethod;
+import org.httpkit.codec.Utils.Collector;
+import org.httpkit.codec.Utils.TestServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PipelineTest {
+
+    TestServer server;
+    HttpClient client;
+    volatile boolean closeAfterOne = false;
+
+    // thread per connection, answers in order; /slow in 2.5s, after the loop's
+    // 2s timeout check. body is the path
+    @Before
+    public void setup() throws IOException {
+        server = new TestServer(new TestServer.Handler() {
+            public boolean handle(TestServer.Request req, OutputStream out) throws Exception {
+                if (req.path.equals("/slow")) {
+                    Thread.sleep(2500);
+                }
+                TestServer.respond(out, "", req.path);
+                return !closeAfterOne;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        client.stop();
+    }
+
+    // responses matched in order
+    private int run(HttpMethod method, int n) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(n);
+        Collector[] listeners = new Collector[n];
+        for (int i = 0; i < n; i++) {
+            listeners[i] = new Collector(latch);
+            client.exec(server.url("/" + i), method, new TreeMap<String, Object>(), null, -1,
+                    listeners[i]);
+        }
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        int ok = 0;
+        for (int i = 0; i < n; i++) {
+            if (listeners[i].isOk() && listeners[i].body().equals("/" + i)) {
+                ok++;
+            }
+        }
+        return ok;
+    }
+
+    @Test
+    public void testPipelined() throws Exception {
+        client = new HttpClient(new HttpClientConfig(10000, "test", 60000, 2, 1, 4));
+        Assert.assertEquals(200, run(HttpMethod.GET, 200));
+        Assert.assertTrue(server.accepted.get() <= 2);
+        Map<String, Object> stats = client.getStats();
+        System.out.println(stats);
+        Assert.assertTrue((Long) stats.get("pipelined") > 0);
+    }
+
+    @Test
+    public void testPostNotPipelined() throws Exception {
+        client = new HttpClient(new HttpClientConfig(10000, "test", 60000, 2, 1, 4));
+        Assert.assertEquals(50, run(HttpMethod.POST, 50));
+        Assert.assertEquals(0L, client.getStats().get("pipelined"));
+    }
+
+    @Test
+    public void testRetriedIfClosed() throws Exception {
+        // one response per connection: the ones behind are sent again, alone
+        closeAfterOne = true;
+        client = new HttpClient(new HttpClientConfig(10000, "test", 60000, 0, 1, 4));
+        Assert.assertEquals(40, run(HttpMethod.GET, 40));
+    }
+
+    @Test
+    public void testTimeoutBehindSlow() throws Exception {
+        client = new HttpClient(new HttpClientConfig(10000, "test", 60000, 1, 1, 2));
+        CountDownLatch latch = new CountDownLatch(2);
+        Collector slow = new Collector(latch);
+        Collector behind = new Collector(latch);
+        client.exec(server.url("/slow"), HttpMethod.GET, new TreeMap<String, Object>(), null,
+                5000, slow);
+        client.exec(server.url("/behind"), HttpMethod.GET, new TreeMap<String, Object>(), null,
+                300, behind);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals("/slow", slow.body());
+        Assert.assertTrue(behind.error instanceof TimeoutException);
+        Assert.assertEquals(1L, client.getMetrics().snapshot().get("read-timeouts"));
+
+        // the late response is dropped, the connection is still good
+        Assert.assertEquals(3, run(HttpMethod.GET, 3));
+        Assert.assertEquals(1, server.accepted.get());
+    }
+
+    @Test
+    public void testRetriedAtOnceIfCancelled() throws Exception {
+        // the backup is on the other loop, the primary cancelled from it
+        client = new HttpClient(new HttpClientConfig(10000, "test", 60000, 1, 2, 2));
+        TestServer backup = new TestServer(new TestServer.Handler() {
+            public boolean handle(TestServer.Request req, OutputStream out) throws Exception {
+                TestServer.respond(out, "", "backup");
+                return true;
+            }
+        });
+        try {
+            CountDownLatch hedged = new CountDownLatch(1);
+            Collector behind = new Collector();
+            long start = System.currentTimeMillis();
+            client.execHedged(server.url("/slow"), backup.url("/"), HttpMethod.GET,
+                    new TreeMap<String, Object>(), null, 5000, 50, new Collector(hedged),
+                    new Collector(hedged));
+            client.exec(server.url("/behind"), HttpMethod.GET, new TreeMap<String, Object>(),
+                    null, 5000, behind);
+            Assert.assertTrue(hedged.await(5, TimeUnit.SECONDS));
+            // the slow one is cancelled, its connection closed: the one pipelined
+            // behind is sent again, not after the loop's next select timeout
+            Assert.assertTrue(behind.latch.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals("/behind", behind.body());
+            Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+        } finally {
+            backup.close();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package org.httpkit.client;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.net.ssl.SSLContext;
+
+import org.httpkit.BytesInputStream;
+import org.httpkit.HttpMethod;
+import org.httpkit.codec.Utils;
+import org.httpkit.codec.Utils.TestServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RequestBodyTest {
+
+    TestServer server;
+    HttpClient client;
+    volatile String transferEncoding;
+
+    // thread per connection, responds with the length and CRC32 of the body
+    private void start(ServerSocket s) {
+        server = new TestServer(s, new TestServer.Handler() {
+            public boolean handle(TestServer.Request req, OutputStream out) throws Exception {
+                if (req.headers.containsKey("transfer-encoding")) {
+                    transferEncoding = req.headers.get("transfer-encoding");
+                }
+                CRC32 crc = new CRC32();
+                byte[] buf = new byte[65536];
+                long total = 0;
+                int n;
+                while ((n = req.body.read(buf, 0, buf.length)) != -1) {
+                    crc.update(buf, 0, n);
+                    total += n;
+                }
+                TestServer.respond(out, "", total + " " + crc.getValue());
+                return true;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        client.stop();
+    }
+
+    private String post(String scheme, Object body) throws Exception {
+        final LinkedBlockingQueue<Object> result = new LinkedBlockingQueue<Object>();
+        client.exec(scheme + "://localhost:" + server.getPort() + "/", HttpMethod.POST,
+                new TreeMap<String, Object>(), body, -1, new RespListener(
+                        new IResponseHandler() {
+                            public void onSuccess(int status, Map<String, String> headers,
+                                    Object body) {
+                                result.offer(body);
+                            }
+
+                            public void onThrowable(Throwable t) {
+                                result.offer(t);
+                            }
+                        }, IFilter.ACCEPT_ALL, Executors.newSingleThreadExecutor()));
+        Object r = result.poll(60, TimeUnit.SECONDS);
+        if (r instanceof Throwable) {
+            throw new AssertionError(r);
+        }
+        return new String(((BytesInputStream) r).bytes());
+    }
+
+    private static String expected(byte[] data, int from) {
+        CRC32 crc = new CRC32();
+        crc.update(data, from, data.length - from);
+        return (data.length - from) + " " + crc.getValue();
+    }
+
+    private static File tempFile(byte[] data) throws IOException {
+        File f = File.createTempFile("http-kit", ".body");
+        f.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+        return f;
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random().nextBytes(data);
+        return data;
+    }
+
+    private void startPlain() throws Exception {
+        start(new ServerSocket(0));
+        client = new HttpClient(new HttpClientConfig(60000, "test", 60000));
+    }
+
+    @Test
+    public void testFile() throws Exception {
+        startPlain();
+        byte[] data = random(3 * 1024 * 1024 + 17);
+        Assert.assertEquals(expected(data, 0), post("http", tempFile(data)));
+        Assert.assertNull(transferEncoding);
+    }
+
+    @Test
+    public void testFileHttps() throws Exception {
+        SSLContext ctx = Utils.sslContext();
+        start(ctx.getServerSocketFactory().createServerSocket(0));
+        client = new HttpClient(new HttpClientConfig(60000, "test", 60000), new DnsCache(
+                IResolver.SYSTEM), ctx);
+        byte[] data = random(1024 * 1024 + 3);
+        Assert.assertEquals(expected(data, 0), post("https", tempFile(data)));
+        Assert.assertEquals(expected(data, 0), post("https", new ByteArrayInputStream(data)));
+    }
+
+    @Test
+    public void testFileChannel() throws Exception {
+        startPlain();
+        byte[] data = random(200000);
+        FileChannel ch = new FileInputStream(tempFile(data)).getChannel();
+        ch.position(1000);
+        Assert.assertEquals(expected(data, 1000), post("http", ch));
+        Assert.assertEquals(1000, ch.position()); // not moved, not closed: the caller's
+        Assert.assertTrue(ch.isOpen());
+        ch.close();
+    }
+
+    @Test
+    public void testInputStream() throws Exception {
+        startPlain();
+        byte[] data = random(1024 * 1024 + 5);
+        // in memory, streamed by the loop
+        Assert.assertEquals(expected(data, 0), post("http", new ByteArrayInputStream(data)));
+        Assert.assertNull(transferEncoding); // Content-Length, as before
+        Assert.assertEquals("0 0", post("http", new ByteArrayInputStream(new byte[0])));
+        Assert.assertEquals(expected(data, 0), post("http", new BytesInputStream(data,
+                data.length)));
+        // a file, from its position
+        FileInputStream fis = new FileInputStream(tempFile(data));
+        fis.skip(1000);
+        Assert.assertEquals(expected(data, 1000), post("http", fis));
+        Assert.assertNull(transferEncoding);
+        // may block: read into memory by the caller, not the loop
+        Assert.assertEquals(zeros(100000), post("http", new Zeros(100000)));
+        Assert.assertNull(transferEncoding);
+    }
+
+    @Test
+    public void testDirectByteBuffer() throws Exception {
+        startPlain();
+        byte[] data = random(100000);
+        ByteBuffer b = ByteBuffer.allocateDirect(data.length);
+        b.put(data).flip();
+        b.position(10);
+        Assert.assertEquals(expected(data, 10), post("http", b));
+        Assert.assertEquals(10, b.position()); // a view is sent
+    }
+
+    static class Zeros extends InputStream {
+        long left;
+
+        Zeros(long size) {
+            left = size;
+        }
+
+        public int read() {
+            return left-- > 0 ? 0 : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (left <= 0) {
+                return -1;
+            }
+            int n = (int) Math.min(len, left);
+            left -= n;
+            return n; // b is zeros, never written
+        }
+    }
+
+    static String zeros(long size) {
+        CRC32 crc = new CRC32();
+        byte[] b = new byte[65536];
+        for (long left = size; left > 0; left -= b.length) {
+            crc.update(b, 0, (int) Math.min(b.length, left));
+        }
+        return size + " " + crc.getValue();
+    }
+
+    // peak heap used while uploading, over the used before
+    private long heapGrowth(String scheme, Object body, String expected)
+            throws Exception {
+        final Runtime rt = Runtime.getRuntime();
+        System.gc();
+        final long before = rt.totalMemory() - rt.freeMemory();
+        final AtomicLong peak = new AtomicLong(before);
+        Thread sampler = new Thread() {
+            public void run() {
+                while (true) {
+                    long used = rt.totalMemory() - rt.freeMemory();
+                    if (used > peak.get()) {
+                        peak.set(used);
+                    }
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        return; // done
+                    }
+                }
+            }
+        };
+        sampler.start();
+        long start = System.currentTimeMillis();
+        Assert.assertEquals(expected, post(scheme, body));
+        sampler.interrupt();
+        sampler.join();
+        long growth = peak.get() - before;
+        System.out.println(body.getClass().getSimpleName() + " 1G: "
+                + (System.currentTimeMillis() - start) + "ms, heap +" + growth / 1024 / 1024
+                + "M");
+        return growth;
+    }
+
+    @Test
+    public void testUpload1G() throws Exception {
+        startPlain();
+        long size = 1024L * 1024 * 1024;
+        File f = File.createTempFile("http-kit", ".1g");
+        f.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(size); // sparse, zeros
+        raf.close();
+        String expected = zeros(size);
+        // used to be read into memory: mapped, or drained to a byte[] that doubles
+        Assert.assertTrue(heapGrowth("http", f, expected) < 64 * 1024 * 1024);
+        Assert.assertTrue(heapGrowth("http", new FileInputStream(f), expected)
+                < 64 * 1024 * 1024);
+        f.delete();
+    }
+}
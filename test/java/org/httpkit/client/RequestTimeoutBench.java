@@ -0,0 +1,87 @@
+package org.httpkit.client;
+
+import java.util.Random;
+
+import org.httpkit.HttpMethod;
+import org.httpkit.PriorityQueue;
+
+/**
+ * Per read cost of keeping the timeout of in-flight requests, as concurrency
+ * grows. The old way: remove (linear scan) and offer on every read. Now:
+ * update a field, re-queue lazily when due
+ */
+public class RequestTimeoutBench {
+
+    static final int READS = 200000;
+    static final int READS_PER_LOOP = 64; // reads of a select, then clearTimeout
+
+    // like the old Request: not Indexed, ordered by the updated timeout
+    static class OldRequest implements Comparable<OldRequest> {
+        long timeoutTs;
+
+        public int compareTo(OldRequest o) {
+            return (int) (timeoutTs - o.timeoutTs);
+        }
+    }
+
+    static long old(int concurrency, Random r) {
+        PriorityQueue<OldRequest> queue = new PriorityQueue<OldRequest>();
+        OldRequest[] requests = new OldRequest[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            requests[i] = new OldRequest();
+            requests[i].timeoutTs = 60000 + i;
+            queue.offer(requests[i]);
+        }
+        long now = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            OldRequest req = requests[r.nextInt(concurrency)];
+            queue.remove(req);
+            req.timeoutTs = now + 60000;
+            queue.offer(req);
+            if (i % READS_PER_LOOP == 0) {
+                now++;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    static long indexed(int concurrency, Random r) {
+        PriorityQueue<Request> queue = new PriorityQueue<Request>();
+        Request[] requests = new Request[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            requests[i] = new Request(null, null, null, 60000, HttpMethod.GET);
+            requests[i].clients = queue;
+            queue.offer(requests[i]);
+        }
+        long now = System.currentTimeMillis();
+        long start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            requests[r.nextInt(concurrency)].onProgress(now);
+            if (i % READS_PER_LOOP == 0) {
+                now += 10; // time goes faster: more due, re-queued
+                Request req; // what clearTimeout does
+                while ((req = queue.peek()) != null && !req.isTimeout(now)
+                        && req.refreshTimeout(now)) {
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) {
+        Random r = new Random();
+        int[] concurrencies = { 100, 1000, 10000, 20000, 50000 };
+        for (int round = 0; round < 3; round++) { // the first 2 are warm up
+            for (int c : concurrencies) {
+                long o = old(c, r);
+                long n = indexed(c, r);
+                if (round == 2) {
+                    System.out.printf("%6d in-flight: remove+offer %8.1f ns/read, "
+                            + "lazy refresh %6.1f ns/read\n", c, (double) o / READS,
+                            (double) n / READS);
+                }
+            }
+        }
+    }
+}
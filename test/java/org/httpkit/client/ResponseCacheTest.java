@@ -0,0 +1,236 @@
+package org.httpkit.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.httpkit.HttpMethod;
+import org.httpkit.codec.Utils.TestServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResponseCacheTest {
+
+    TestServer server;
+    HttpClient client;
+    final AtomicInteger notModified = new AtomicInteger(0);
+    final ExecutorService pool = Executors.newCachedThreadPool();
+
+    // keep-alive, thread per connection. the path picks the caching headers
+    @Before
+    public void setup() throws IOException {
+        server = new TestServer(new TestServer.Handler() {
+            public boolean handle(TestServer.Request req, OutputStream out) throws Exception {
+                String path = req.path, headers = "";
+                if (path.startsWith("/fresh")) {
+                    headers = "Cache-Control: max-age=60\r\n";
+                } else if (path.equals("/etag")) {
+                    headers = "Cache-Control: no-cache\r\nETag: \"v1\"\r\n";
+                } else if (path.equals("/nostore")) {
+                    headers = "Cache-Control: no-store\r\n";
+                } else if (path.equals("/slow")) {
+                    Thread.sleep(300);
+                    headers = "Cache-Control: max-age=60\r\n";
+                }
+                if (path.equals("/big")) { // chunked, larger than the cache takes
+                    Thread.sleep(300);
+                    StringBuilder chunk = new StringBuilder();
+                    for (int i = 0; i < 10000; i++) {
+                        chunk.append('x');
+                    }
+                    out.write(("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\n"
+                            + "Transfer-Encoding: chunked\r\n\r\n").getBytes());
+                    for (int i = 0; i < 2; i++) {
+                        out.write(("2710\r\n" + chunk + "\r\n").getBytes());
+                        out.flush();
+                    }
+                    out.write("0\r\n\r\n".getBytes());
+                } else if ("\"v1\"".equals(req.headers.get("if-none-match"))) {
+                    notModified.incrementAndGet();
+                    out.write(("HTTP/1.1 304 Not Modified\r\nETag: \"v1\"\r\n\r\n")
+                            .getBytes());
+                } else {
+                    TestServer.respond(out, "Content-Type: text/plain\r\n" + headers,
+                            path.substring(1));
+                }
+                return true;
+            }
+        });
+        client = new HttpClient(new HttpClientConfig(5000, "test", 60000), new DnsCache(
+                IResolver.SYSTEM), null, new ResponseCache(64 * 1024));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        client.stop();
+    }
+
+    private void get(String path, Map<String, Object> headers,
+            final LinkedBlockingQueue<Object> result) {
+        client.exec(server.url(path), HttpMethod.GET, headers, null, -1, new RespListener(
+                new IResponseHandler() {
+                    public void onSuccess(int status, Map<String, String> headers, Object body) {
+                        result.offer(status + " " + body);
+                    }
+
+                    public void onThrowable(Throwable t) {
+                        result.offer(t);
+                    }
+                }, IFilter.ACCEPT_ALL, pool));
+    }
+
+    private Object get(String path, Map<String, Object> headers) throws Exception {
+        LinkedBlockingQueue<Object> result = new LinkedBlockingQueue<Object>();
+        get(path, headers, result);
+        return result.poll(5, TimeUnit.SECONDS);
+    }
+
+    private Object get(String path) throws Exception {
+        return get(path, new TreeMap<String, Object>());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> stats() {
+        return (Map<String, Object>) client.getStats().get("cache");
+    }
+
+    @Test
+    public void testFresh() throws Exception {
+        Assert.assertEquals("200 fresh", get("/fresh"));
+        Assert.assertEquals("200 fresh", get("/fresh"));
+        Assert.assertEquals(1, server.requests.get());
+        Assert.assertEquals(1L, stats().get("hits"));
+        Assert.assertEquals(1L, stats().get("misses"));
+        Assert.assertEquals("200 fresh2", get("/fresh2")); // another key
+        Assert.assertEquals(2, server.requests.get());
+    }
+
+    @Test
+    public void testRevalidate() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals("200 etag", get("/etag"));
+        }
+        Assert.assertEquals(3, server.requests.get()); // no-cache: asked every time
+        Assert.assertEquals(2, notModified.get()); // the body is reused
+        Assert.assertEquals(2L, stats().get("revalidations"));
+        Assert.assertEquals(2L, stats().get("not-modified"));
+    }
+
+    @Test
+    public void testNoStore() throws Exception {
+        Assert.assertEquals("200 nostore", get("/nostore"));
+        Assert.assertEquals("200 nostore", get("/nostore"));
+        Assert.assertEquals(2, server.requests.get());
+        Assert.assertEquals(0, stats().get("entries"));
+    }
+
+    @Test
+    public void testBypass() throws Exception {
+        Map<String, Object> headers = new TreeMap<String, Object>();
+        headers.put("Cache-Control", "no-cache");
+        Assert.assertEquals("200 fresh", get("/fresh"));
+        Assert.assertEquals("200 fresh", get("/fresh", headers));
+        Assert.assertEquals(2, server.requests.get());
+        headers.clear();
+        headers.put("Accept", "text/plain"); // another key
+        Assert.assertEquals("200 fresh", get("/fresh", headers));
+        Assert.assertEquals(3, server.requests.get());
+    }
+
+    @Test
+    public void testCoalesced() throws Exception {
+        LinkedBlockingQueue<Object> result = new LinkedBlockingQueue<Object>();
+        for (int i = 0; i < 20; i++) {
+            get("/slow", new TreeMap<String, Object>(), result);
+        }
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals("200 slow", result.poll(5, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(1, server.requests.get());
+        Assert.assertEquals(19L, stats().get("coalesced"));
+    }
+
+    @Test
+    public void testTooLargePassedThrough() throws Exception {
+        LinkedBlockingQueue<Object> result = new LinkedBlockingQueue<Object>();
+        for (int i = 0; i < 3; i++) {
+            get("/big", new TreeMap<String, Object>(), result);
+        }
+        for (int i = 0; i < 3; i++) {
+            // no content type: a stream
+            Assert.assertEquals("200 BytesInputStream[len=20000]",
+                    result.poll(5, TimeUnit.SECONDS).toString());
+        }
+        Assert.assertEquals(1, server.requests.get()); // coalesced, then passed to all
+        Assert.assertEquals(0, stats().get("entries"));
+        Assert.assertEquals(0, stats().get("inflight"));
+        get("/big");
+        Assert.assertEquals(2, server.requests.get());
+    }
+
+    @Test
+    public void testEvicted() throws Exception {
+        client.stop();
+        // 256 bytes an entry at least: 4 fit
+        client = new HttpClient(new HttpClientConfig(5000, "test", 60000), new DnsCache(
+                IResolver.SYSTEM), null, new ResponseCache(1100));
+        for (int i = 0; i < 6; i++) {
+            get("/fresh" + i);
+        }
+        Assert.assertEquals(4, stats().get("entries"));
+        Assert.assertEquals(2L, stats().get("evictions"));
+        get("/fresh5");
+        Assert.assertEquals(6, server.requests.get()); // recent, hit
+        get("/fresh0");
+        Assert.assertEquals(7, server.requests.get()); // evicted
+    }
+
+    @Test
+    public void testFreshUntil() throws Exception {
+        Map<String, String> h = new TreeMap<String, String>();
+        h.put("cache-control", "public, max-age=30");
+        h.put("age", "10");
+        Assert.assertEquals(1000 + 20000, ResponseCache.freshUntil(h, 1000));
+        h.clear();
+        h.put("date", "Sun, 06 Nov 1994 08:49:37 GMT");
+        h.put("expires", "Sun, 06 Nov 1994 08:50:37 GMT");
+        Assert.assertEquals(1000 + 60000, ResponseCache.freshUntil(h, 1000));
+        h.put("expires", "0");
+        Assert.assertEquals(1000, ResponseCache.freshUntil(h, 1000));
+        h.put("cache-control", "private, no-store");
+        Assert.assertEquals(-1, ResponseCache.freshUntil(h, 1000));
+    }
+
+    @Test
+    public void testManyHits() throws Exception {
+        // fresh hits are answered by the caller thread, at once
+        Assert.assertEquals("200 fresh", get("/fresh"));
+        final CountDownLatch latch = new CountDownLatch(1000);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            client.exec(server.url("/fresh"), HttpMethod.GET, new TreeMap<String, Object>(),
+                    null, -1, new RespListener(new IResponseHandler() {
+                        public void onSuccess(int status, Map<String, String> headers,
+                                Object body) {
+                            latch.countDown();
+                        }
+
+                        public void onThrowable(Throwable t) {
+                        }
+                    }, IFilter.ACCEPT_ALL, pool));
+        }
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        System.out.println("1000 hits in " + (System.currentTimeMillis() - start) + "ms");
+        Assert.assertEquals(1, server.requests.get());
+    }
+}
@@ -0,0 +1,132 @@
+package org.httpkit.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.httpkit.BytesInputStream;
+import org.httpkit.HttpMethod;
+import org.httpkit.codec.Utils.TestServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+    TestServer server;
+    HttpClient client;
+    final ExecutorService pool = Executors.newCachedThreadPool();
+
+    // keep-alive, thread per connection. responds in 300ms, binary, the path
+    @Before
+    public void setup() throws IOException {
+        server = new TestServer(new TestServer.Handler() {
+            public boolean handle(TestServer.Request req, OutputStream out) throws Exception {
+                Thread.sleep(300);
+                out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + req.path.length()
+                        + "\r\n\r\n" + (req.method.equals("HEAD") ? "" : req.path))
+                        .getBytes());
+                return true;
+            }
+        });
+        client = new HttpClient(new HttpClientConfig(5000, "test", 60000), new DnsCache(
+                IResolver.SYSTEM), null, null, new SingleFlight("Accept"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        client.stop();
+    }
+
+    private void exec(String url, HttpMethod method, Map<String, Object> headers,
+            final LinkedBlockingQueue<Object> result) {
+        client.exec(url, method, headers, null, -1, new RespListener(new IResponseHandler() {
+            public void onSuccess(int status, Map<String, String> headers, Object body) {
+                // a stream for each
+                result.offer(new String(((BytesInputStream) body).bytes()));
+            }
+
+            public void onThrowable(Throwable t) {
+                result.offer(t);
+            }
+        }, IFilter.ACCEPT_ALL, pool));
+    }
+
+    private static Map<String, Object> headers(String... kv) {
+        Map<String, Object> headers = new TreeMap<String, Object>();
+        for (int i = 0; i < kv.length; i += 2) {
+            headers.put(kv[i], kv[i + 1]);
+        }
+        return headers;
+    }
+
+    private void await(LinkedBlockingQueue<Object> result, int n, Object expected)
+            throws InterruptedException {
+        for (int i = 0; i < n; i++) {
+            Object r = result.poll(5, TimeUnit.SECONDS);
+            if (expected instanceof Class) {
+                Assert.assertTrue(String.valueOf(r), ((Class<?>) expected).isInstance(r));
+            } else {
+                Assert.assertEquals(expected, r);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private long coalesced() {
+        Map<String, Object> stats = (Map<String, Object>) client.getStats().get(
+                "single-flight");
+        return (Long) stats.get("coalesced");
+    }
+
+    @Test
+    public void testCoalesced() throws Exception {
+        LinkedBlockingQueue<Object> result = new LinkedBlockingQueue<Object>();
+        for (int i = 0; i < 100; i++) {
+            exec(server.url("/a"), HttpMethod.GET, headers("X-Not-In-Key", "" + i), result);
+        }
+        await(result, 100, "/a");
+        Assert.assertEquals(1, server.requests.get());
+        Assert.assertEquals(1, server.accepted.get());
+        Assert.assertEquals(99, coalesced());
+
+        exec(server.url("/a"), HttpMethod.GET, headers(), result); // done, not cached
+        await(result, 1, "/a");
+        Assert.assertEquals(2, server.requests.get());
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        LinkedBlockingQueue<Object> result = new LinkedBlockingQueue<Object>();
+        exec(server.url("/a"), HttpMethod.GET, headers(), result);
+        exec(server.url("/b"), HttpMethod.GET, headers(), result);
+        exec(server.url("/a"), HttpMethod.HEAD, headers(), result);
+        exec(server.url("/a"), HttpMethod.GET, headers("accept", "text/html"), result);
+        exec(server.url("/a"), HttpMethod.GET, headers("Authorization", "Basic eDp5"), result);
+        exec(server.url("/a"), HttpMethod.POST, headers(), result);
+        exec(server.url("/a"), HttpMethod.POST, headers(), result);
+        await(result, 7, String.class);
+        Assert.assertEquals(7, server.requests.get());
+        Assert.assertEquals(0, coalesced());
+    }
+
+    @Test
+    public void testFailedForAll() throws Exception {
+        ServerSocket refused = new ServerSocket(0);
+        refused.close();
+        LinkedBlockingQueue<Object> result = new LinkedBlockingQueue<Object>();
+        for (int i = 0; i < 10; i++) {
+            exec("http://127.0.0.1:" + refused.getLocalPort() + "/", HttpMethod.GET,
+                    headers(), result);
+        }
+        await(result, 10, IOException.class);
+    }
+}
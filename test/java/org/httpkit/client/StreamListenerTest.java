@@ -0,0 +1,153 @@
+package org.httpkit.client;
+
+import java.io.*;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.httpkit.HttpMethod;
+import org.httpkit.codec.Utils.TestServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StreamListenerTest {
+
+    static final int LENGTH = 1024 * 1024 * 8;
+    static final int BUFFER = 1024 * 64;
+
+    TestServer server;
+    byte[] data = new byte[LENGTH];
+    byte[] gzipped, deflated, rawDeflated;
+    final ExecutorService pool = Executors.newCachedThreadPool();
+
+    private byte[] compress(OutputStream os, ByteArrayOutputStream bos) throws IOException {
+        os.write(data);
+        os.close();
+        return bos.toByteArray();
+    }
+
+    // respond the whole data at once, gzipped if /gzip, zlib if /deflate, raw
+    // deflate if /raw
+    @Before
+    public void setup() throws IOException {
+        new Random().nextBytes(data);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        gzipped = compress(new GZIPOutputStream(bos), bos);
+        bos = new ByteArrayOutputStream();
+        deflated = compress(new DeflaterOutputStream(bos), bos);
+        bos = new ByteArrayOutputStream();
+        rawDeflated = compress(new DeflaterOutputStream(bos, new Deflater(
+                Deflater.DEFAULT_COMPRESSION, true)), bos);
+
+        server = new TestServer(new TestServer.Handler() {
+            public boolean handle(TestServer.Request req, OutputStream out) throws Exception {
+                byte[] body = data;
+                String encoding = "";
+                if (req.path.equals("/gzip")) {
+                    body = gzipped;
+                    encoding = "\r\nContent-Encoding: gzip";
+                } else if (req.path.equals("/deflate") || req.path.equals("/raw")) {
+                    body = req.path.equals("/raw") ? rawDeflated : deflated;
+                    encoding = "\r\nContent-Encoding: deflate";
+                }
+                out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + encoding
+                        + "\r\n\r\n").getBytes());
+                out.write(body);
+                return false;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        pool.shutdown();
+    }
+
+    static class Handler implements IResponseHandler {
+        final LinkedBlockingQueue<Object> result = new LinkedBlockingQueue<Object>();
+
+        public void onSuccess(int status, Map<String, String> headers, Object body) {
+            result.offer(body);
+        }
+
+        public void onThrowable(Throwable t) {
+            result.offer(t);
+        }
+    }
+
+    private InputStream get(HttpClient client, String path) throws Exception {
+        Handler h = new Handler();
+        client.exec(server.url(path), HttpMethod.GET, new TreeMap<String, Object>(), null, 1000,
+                new StreamListener(h, IFilter.ACCEPT_ALL, pool, BUFFER));
+        // before the body is received
+        return (InputStream) h.result.poll(5, TimeUnit.SECONDS);
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = is.read(buf)) != -1) {
+            bos.write(buf, 0, n);
+        }
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testPauseResume() throws Exception {
+        HttpClient client = new HttpClient(new HttpClientConfig(10000, "test", 60000));
+        InputStream is = get(client, "/");
+        // the consumer is slow, the loop stops reading
+        Thread.sleep(300);
+        Assert.assertTrue(is.available() <= BUFFER * 2);
+        Thread.sleep(1500); // longer than the timeout, paused is not timeout
+        Assert.assertArrayEquals(data, readAll(is));
+        client.stop();
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        HttpClient client = new HttpClient(new HttpClientConfig(10000, "test", 60000));
+        InputStream is = get(client, "/gzip");
+        Assert.assertArrayEquals(data, readAll(is));
+        client.stop();
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        HttpClient client = new HttpClient(new HttpClientConfig(10000, "test", 60000));
+        for (String path : new String[] { "/deflate", "/raw" }) {
+            InputStream is = get(client, path);
+            Assert.assertArrayEquals(data, readAll(is));
+            is.close();
+        }
+        client.stop();
+    }
+
+    @Test
+    public void testCloseEarly() throws Exception {
+        HttpClient client = new HttpClient(new HttpClientConfig(10000, "test", 60000));
+        InputStream is = get(client, "/");
+        Assert.assertTrue(is.read(new byte[1024]) > 0);
+        is.close();
+        try {
+            is.read();
+            Assert.fail("closed");
+        } catch (IOException expected) {
+        }
+        Thread.sleep(300);
+        Map<String, Object> stats = client.getStats();
+        Assert.assertEquals(0, stats.get("open")); // not reused
+        client.stop();
+    }
+}
@@ -1,8 +1,26 @@
 package org.httpkit.codec;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.httpkit.HttpStatus;
+import org.httpkit.HttpVersion;
+import org.httpkit.client.IRespListener;
 
 public class Utils {
 
@@ -16,4 +34,278 @@ public class Utils {
         is.close();
         return bos.toByteArray();
     }
+
+    // self-signed, CN=localhost, both the key and the trust
+    public static SSLContext sslContext() throws Exception {
+        char[] password = "123456".toCharArray();
+        KeyStore ks = KeyStore.getInstance("JKS");
+        InputStream is = Utils.class.getClassLoader().getResourceAsStream("ssl_keystore");
+        ks.load(is, password);
+        is.close();
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory
+                .getDefaultAlgorithm());
+        kmf.init(ks, password);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory
+                .getDefaultAlgorithm());
+        tmf.init(ks);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return ctx;
+    }
+
+    // a line without CRLF, null if the stream ends before it
+    static String line(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                if (sb.length() == 0) {
+                    return null;
+                }
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * HTTP/1.1 server for the client's tests: thread per connection,
+     * keep-alive, requests are answered in order by the handler
+     */
+    public static class TestServer {
+
+        public interface Handler {
+            // write the response, false to close the connection after it
+            boolean handle(Request req, OutputStream out) throws Exception;
+        }
+
+        public static class Request {
+            public final String method;
+            public final String path;
+            public final Map<String, String> headers; // names in lower case
+            // by Content-Length or chunked, what's left is drained after
+            public final InputStream body;
+
+            Request(String method, String path, Map<String, String> headers, InputStream body) {
+                this.method = method;
+                this.path = path;
+                this.headers = headers;
+                this.body = body;
+            }
+        }
+
+        private final ServerSocket server;
+        private final Handler handler;
+        public final AtomicInteger accepted = new AtomicInteger(0);
+        public final AtomicInteger requests = new AtomicInteger(0);
+        public final AtomicInteger closed = new AtomicInteger(0); // connections ended
+
+        public TestServer(Handler handler) throws IOException {
+            this(new ServerSocket(0), handler);
+        }
+
+        // a bound ServerSocket, an SSLServerSocket for https
+        public TestServer(ServerSocket server, Handler handler) {
+            this.server = server;
+            this.handler = handler;
+            new Thread() {
+                public void run() {
+                    try {
+                        while (true) {
+                            final Socket s = TestServer.this.server.accept();
+                            accepted.incrementAndGet();
+                            new Thread() {
+                                public void run() {
+                                    serve(s);
+                                }
+                            }.start();
+                        }
+                    } catch (IOException ignore) { // closed
+                    }
+                }
+            }.start();
+        }
+
+        private void serve(Socket s) {
+            try {
+                InputStream in = new BufferedInputStream(s.getInputStream());
+                OutputStream out = s.getOutputStream();
+                String initial;
+                while ((initial = line(in)) != null) {
+                    String[] parts = initial.split(" ");
+                    Map<String, String> headers = new TreeMap<String, String>();
+                    String l;
+                    while ((l = line(in)) != null && l.length() > 0) {
+                        int idx = l.indexOf(':');
+                        headers.put(l.substring(0, idx).trim().toLowerCase(), l.substring(
+                                idx + 1).trim());
+                    }
+                    InputStream body;
+                    if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                        body = new ChunkedStream(in);
+                    } else {
+                        String length = headers.get("content-length");
+                        body = new BoundedStream(in, length == null ? 0 : Long
+                                .parseLong(length));
+                    }
+                    requests.incrementAndGet();
+                    boolean keepalive = handler.handle(new Request(parts[0], parts[1],
+                            headers, body), out);
+                    out.flush();
+                    if (!keepalive) {
+                        break;
+                    }
+                    byte[] buf = new byte[8192];
+                    while (body.read(buf, 0, buf.length) != -1) {
+                    }
+                }
+                s.close();
+            } catch (Exception ignore) { // closed by the client
+            }
+            closed.incrementAndGet();
+        }
+
+        public int getPort() {
+            return server.getLocalPort();
+        }
+
+        public String url(String path) {
+            return "http://127.0.0.1:" + server.getLocalPort() + path;
+        }
+
+        public void close() throws IOException {
+            server.close();
+        }
+
+        // 200, with Content-Length. each of the headers ends with CRLF
+        public static void respond(OutputStream out, String headers, String body)
+                throws IOException {
+            out.write(("HTTP/1.1 200 OK\r\n" + headers + "Content-Length: " + body.length()
+                    + "\r\n\r\n" + body).getBytes());
+        }
+    }
+
+    static class BoundedStream extends InputStream {
+        private final InputStream in;
+        private long left;
+
+        BoundedStream(InputStream in, long length) {
+            this.in = in;
+            this.left = length;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (left <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, left));
+            if (n == -1) {
+                throw new EOFException();
+            }
+            left -= n;
+            return n;
+        }
+    }
+
+    static class ChunkedStream extends InputStream {
+        private final InputStream in;
+        private long left = 0; // of the current chunk
+        private boolean first = true, eof = false;
+
+        ChunkedStream(InputStream in) {
+            this.in = in;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eof) {
+                return -1;
+            }
+            if (left == 0) {
+                if (!first) {
+                    line(in); // CRLF of the last chunk
+                }
+                first = false;
+                String size = line(in);
+                int idx = size.indexOf(';'); // extension
+                left = Long.parseLong(idx < 0 ? size : size.substring(0, idx), 16);
+                if (left == 0) {
+                    while (line(in).length() > 0) { // trailers
+                    }
+                    eof = true;
+                    return -1;
+                }
+            }
+            int n = in.read(b, off, (int) Math.min(len, left));
+            if (n == -1) {
+                throw new EOFException();
+            }
+            left -= n;
+            return n;
+        }
+    }
+
+    /**
+     * Collects a response. The latch, can be shared by listeners, is counted
+     * down when it is completed or failed
+     */
+    public static class Collector implements IRespListener {
+        public final CountDownLatch latch;
+        public final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        public final AtomicInteger calls = new AtomicInteger(0); // completed or failed
+        public volatile HttpStatus status;
+        public volatile Map<String, String> headers;
+        public volatile Throwable error;
+
+        public Collector() {
+            this(new CountDownLatch(1));
+        }
+
+        public Collector(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        public boolean isOk() {
+            return calls.get() > 0 && error == null;
+        }
+
+        public String body() {
+            return body.toString();
+        }
+
+        public void onBodyReceived(byte[] buf, int length) {
+            body.write(buf, 0, length);
+        }
+
+        public void onCompleted() {
+            calls.incrementAndGet();
+            latch.countDown();
+        }
+
+        public void onHeadersReceived(Map<String, String> headers) {
+            this.headers = headers;
+        }
+
+        public void onInitialLineReceived(HttpVersion version, HttpStatus status) {
+            this.status = status;
+        }
+
+        public void onThrowable(Throwable t) {
+            error = t;
+            calls.incrementAndGet();
+            latch.countDown();
+        }
+    }
 }
@@ -0,0 +1,76 @@
+package org.httpkit.metrics;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import org.httpkit.server.AsyncChannel;
+import org.httpkit.server.HttpRequest;
+import org.httpkit.server.HttpServer;
+import org.httpkit.server.IHandler;
+import org.httpkit.server.ResponseCallback;
+import org.httpkit.ws.WSFrame;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LoopWatchTest {
+
+    @Test
+    public void testStall() throws Exception {
+        Metrics metrics = new Metrics();
+        LoopWatch watch = new LoopWatch(metrics, 50);
+        watch.start();
+        try {
+            for (int i = 0; i < 3; i++) { // fast
+                watch.begin();
+                watch.end();
+            }
+            watch.begin();
+            Thread.sleep(300); // blocked
+            watch.end();
+            Thread.sleep(100); // waiting in select, not a stall
+        } finally {
+            watch.stop();
+        }
+        Assert.assertEquals(1L, metrics.counter("stalls").get());
+        Assert.assertEquals(4L, metrics.histogram("loop-time").snapshot().get("count"));
+        Assert.assertTrue(watch.getLastStall(), watch.getLastStall().startsWith(
+                Thread.currentThread().getName() + " stalled"));
+    }
+
+    @Test
+    public void testServerLoopBlocked() throws Exception {
+        // the handler is called by the loop: blocking it stalls the loop
+        IHandler handler = new IHandler() {
+            public void handle(HttpRequest request, ResponseCallback callback) {
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException ignore) {
+                }
+            }
+
+            public void handle(AsyncChannel channel, WSFrame frame) {
+            }
+
+            public void clientClose(AsyncChannel channel, int status) {
+            }
+
+            public void close() {
+            }
+        };
+        HttpServer server = new HttpServer("127.0.0.1", 0, handler, 1024, 1024);
+        server.setStallThreshold(100);
+        server.start();
+        try {
+            Socket s = new Socket("127.0.0.1", server.getPort());
+            s.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes());
+            Thread.sleep(500);
+            s.close();
+            Assert.assertEquals(1L, server.getMetrics().snapshot().get("stalls"));
+            String stall = server.getLoopWatch().getLastStall();
+            Assert.assertTrue(stall, stall.startsWith("server-loop stalled"));
+            Assert.assertTrue(stall, stall.contains(":" + server.getPort()));
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.httpkit.metrics;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.httpkit.server.HttpServer;
+import org.httpkit.server.RingHandler;
+import org.junit.Assert;
+import org.junit.Test;
+
+import clojure.lang.AFn;
+
+public class MetricsTest {
+
+    @Test
+    public void testCounter() throws Exception {
+        final Counter c = new Counter();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        c.inc();
+                    }
+                    c.add(-50000);
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertEquals(8 * 50000, c.get());
+    }
+
+    @Test
+    public void testBuckets() {
+        long last = -1;
+        for (int b = 0; b < Histogram.BUCKETS; b++) {
+            long upper = Histogram.upper(b);
+            Assert.assertTrue(upper > last);
+            Assert.assertEquals(b, Histogram.bucket(upper));
+            Assert.assertEquals(b, Histogram.bucket(last + 1)); // the lower bound
+            Assert.assertTrue(upper <= (last + 1) * 1.25 + 1); // within 25%
+            last = upper;
+        }
+        Assert.assertEquals(Histogram.BUCKETS - 1, Histogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram h = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i * 1000L); // 1us - 1ms
+        }
+        Map<String, Object> s = h.snapshot();
+        Assert.assertEquals(1000L, s.get("count"));
+        Assert.assertEquals(500.5, (Double) s.get("mean"), 0.01);
+        Assert.assertEquals(1000.0, (Double) s.get("max"), 0.01);
+        double p50 = (Double) s.get("p50"), p99 = (Double) s.get("p99");
+        Assert.assertTrue(s.toString(), p50 >= 500 && p50 <= 500 * 1.25);
+        Assert.assertTrue(s.toString(), p99 >= 990 && p99 <= 990 * 1.25);
+    }
+
+    @Test
+    public void testCost() {
+        Counter c = new Counter();
+        Histogram h = new Histogram();
+        int n = 10000000;
+        for (int round = 0; round < 2; round++) { // warm up
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                c.inc();
+            }
+            long counter = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                h.since(start);
+            }
+            long histogram = System.nanoTime() - start;
+            System.out.printf("counter %.1fns, histogram with nanoTime %.1fns\n", counter
+                    / (double) n, histogram / (double) n);
+            if (round == 1) {
+                Assert.assertTrue(histogram / n < 1000); // sub-microsecond
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshotAndJmx() throws Exception {
+        Metrics m = new Metrics();
+        m.counter("reads").add(3);
+        Assert.assertSame(m.counter("reads"), m.counter("reads"));
+        m.histogram("time").record(2000);
+        m.gauge("depth", new Gauge() {
+            public long get() {
+                return 7;
+            }
+        });
+        Map<String, Object> s = m.snapshot();
+        Assert.assertEquals(3L, s.get("reads"));
+        Assert.assertEquals(7L, s.get("depth"));
+        Assert.assertEquals(1L, ((Map<?, ?>) s.get("time")).get("count"));
+
+        String name = "org.httpkit:type=Test,name=metrics";
+        m.register(name);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName on = new ObjectName(name);
+        Assert.assertEquals(3L, server.getAttribute(on, "reads"));
+        Assert.assertEquals(1L, server.getAttribute(on, "time.count"));
+        Assert.assertEquals(2 + 6, server.getMBeanInfo(on).getAttributes().length);
+        m.unregister();
+        Assert.assertFalse(server.isRegistered(on));
+    }
+
+    @Test
+    public void testServer() throws Exception {
+        RingHandler handler = new RingHandler(2, new AFn() {
+            public Object invoke(Object req) {
+                return new HashMap<Object, Object>(); // empty: 200
+            }
+        }, "worker-", 16);
+        HttpServer server = new HttpServer("127.0.0.1", 0, handler, 1024, 64);
+        server.start();
+        try {
+            for (String path : new String[] { "/", "/" + new String(new char[100]) }) {
+                Socket s = new Socket("127.0.0.1", server.getPort());
+                s.getOutputStream().write(
+                        ("GET " + path.replace('\0', 'a') + " HTTP/1.1\r\n\r\n").getBytes());
+                InputStream is = s.getInputStream();
+                is.read(new byte[1024]);
+                s.close();
+            }
+            Thread.sleep(100);
+            Map<String, Object> m = server.getMetrics().snapshot();
+            Assert.assertEquals(2L, m.get("accepts"));
+            Assert.assertEquals(0L, m.get("connections"));
+            Assert.assertEquals(1L, m.get("line-too-large"));
+            Assert.assertTrue((Long) m.get("bytes-out") > 0);
+            m = handler.getMetrics().snapshot();
+            Assert.assertEquals(1L, ((Map<?, ?>) m.get("handler-time")).get("count"));
+            Assert.assertEquals(0L, m.get("rejected"));
+        } finally {
+            handler.close();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.httpkit.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.httpkit.HttpMethod;
+import org.httpkit.HttpVersion;
+import org.httpkit.ws.WSFrame;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AccessLogTest {
+
+    File file;
+
+    @Before
+    public void setup() throws IOException {
+        file = File.createTempFile("access", ".log");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private List<String> lines() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader r = new BufferedReader(new FileReader(file));
+        String l;
+        while ((l = r.readLine()) != null) {
+            lines.add(l);
+        }
+        r.close();
+        return lines;
+    }
+
+    private static HttpRequest request(String url) {
+        HttpRequest req = new HttpRequest(HttpMethod.POST, url, HttpVersion.HTTP_1_0);
+        req.remoteAddr = new InetSocketAddress("10.1.2.3", 4567);
+        return req;
+    }
+
+    @Test
+    public void testFormat() throws IOException {
+        AccessLog log = new AccessLog(file.getPath(), 16);
+        Assert.assertTrue(log.log(request("/a/b?c=1"), 201, 1234, System.nanoTime() - 1500000));
+        log.close();
+        Assert.assertEquals(1, log.getLogged());
+        List<String> lines = lines();
+        Assert.assertEquals(1, lines.size());
+        String l = lines.get(0);
+        Assert.assertTrue(l, l.startsWith("10.1.2.3 - - ["));
+        Assert.assertTrue(l, l.contains("] \"POST /a/b?c=1 HTTP/1.0\" 201 1234 1."));
+        Assert.assertFalse(log.log(request("/"), 200, 0, System.nanoTime())); // closed
+    }
+
+    @Test
+    public void testDropWhenFull() throws IOException {
+        AccessLog log = new AccessLog(file.getPath(), 4);
+        HttpRequest req = request("/");
+        int n = 10000, accepted = 0;
+        for (int i = 0; i < n; i++) {
+            if (log.log(req, 200, i, System.nanoTime())) {
+                accepted++;
+            }
+        }
+        log.close();
+        Assert.assertTrue(log.getDropped() > 0);
+        Assert.assertEquals(n, accepted + log.getDropped());
+        Assert.assertEquals(accepted, log.getLogged());
+        Assert.assertEquals(accepted, lines().size());
+    }
+
+    @Test
+    public void testCloseWhileLogging() throws Exception {
+        final AccessLog log = new AccessLog(file.getPath(), 1024);
+        final HttpRequest req = request("/");
+        final AtomicLong attempts = new AtomicLong(0);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        attempts.incrementAndGet();
+                        log.log(req, 200, i, System.nanoTime());
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        Thread.sleep(5);
+        log.close();
+        for (Thread t : threads) {
+            t.join();
+        }
+        // each is written or counted as dropped, none lost in between
+        Assert.assertEquals(attempts.get(), log.getLogged() + log.getDropped());
+        Assert.assertEquals(log.getLogged(), lines().size());
+    }
+
+    @Test
+    public void testServer() throws Exception {
+        IHandler handler = new IHandler() {
+            public void handle(HttpRequest request, ResponseCallback callback) {
+                if (request.uri.equals("/sync")) {
+                    callback.run(ClojureRing.encode(404, null, "no"));
+                } else {
+                    try {
+                        request.asycChannel.send("async", true);
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+
+            public void handle(AsyncChannel channel, WSFrame frame) {
+            }
+
+            public void clientClose(AsyncChannel channel, int status) {
+            }
+
+            public void close() {
+            }
+        };
+        HttpServer server = new HttpServer("127.0.0.1", 0, handler, 1024, 1024);
+        server.setAccessLog(new AccessLog(file.getPath(), 1024));
+        server.start();
+        try {
+            for (String path : new String[] { "/sync", "/async?x" }) {
+                Socket s = new Socket("127.0.0.1", server.getPort());
+                s.setSoTimeout(3000);
+                s.getOutputStream().write(
+                        ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes());
+                InputStream is = s.getInputStream();
+                Assert.assertTrue(is.read(new byte[4096]) > 0);
+                s.close();
+            }
+        } finally {
+            server.stop();
+        }
+        List<String> lines = lines();
+        Assert.assertEquals(2, lines.size());
+        Assert.assertTrue(lines.get(0), lines.get(0).startsWith("127.0.0.1 - - ["));
+        Assert.assertTrue(lines.get(0), lines.get(0).contains("\"GET /sync HTTP/1.1\" 404 "));
+        Assert.assertTrue(lines.get(1), lines.get(1).contains("\"GET /async?x HTTP/1.1\" 200 "));
+        Assert.assertEquals(2L, server.getMetrics().snapshot().get("access-logged"));
+        Assert.assertEquals(0L, server.getMetrics().snapshot().get("access-dropped"));
+    }
+}
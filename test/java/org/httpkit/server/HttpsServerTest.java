@@ -0,0 +1,116 @@
+package org.httpkit.server;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.httpkit.codec.Utils;
+import org.httpkit.ws.WSFrame;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpsServerTest {
+
+    HttpServer server;
+    SSLContext ctx;
+    final byte[] big = new byte[1024 * 1024 * 4];
+    volatile HttpRequest last;
+
+    // /big for 4M, "hello" otherwise
+    @Before
+    public void setup() throws Exception {
+        new Random().nextBytes(big);
+        IHandler handler = new IHandler() {
+            public void handle(HttpRequest request, ResponseCallback callback) {
+                last = request;
+                byte[] body = request.uri.equals("/big") ? big : "hello".getBytes();
+                callback.run(ByteBuffer.wrap(("HTTP/1.1 200 OK\r\nContent-Length: "
+                        + body.length + "\r\n\r\n").getBytes()), ByteBuffer.wrap(body));
+            }
+
+            public void handle(AsyncChannel channel, WSFrame frame) {
+            }
+
+            public void clientClose(AsyncChannel channel, int status) {
+            }
+
+            public void close() {
+            }
+        };
+        ctx = Utils.sslContext();
+        server = new HttpServer("127.0.0.1", 0, handler, 1024, 1024);
+        server.setSslContext(ctx, null);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private static byte[] response(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        int length = -1;
+        String line;
+        while ((line = readLine(in)).length() > 0) {
+            if (line.startsWith("Content-Length: ")) {
+                length = Integer.parseInt(line.substring(16));
+            }
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return body;
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testKeepaliveAndBigBody() throws Exception {
+        SSLSocket s = (SSLSocket) ctx.getSocketFactory().createSocket("localhost",
+                server.getPort());
+        s.setSoTimeout(5000);
+        OutputStream os = s.getOutputStream();
+        for (int i = 0; i < 3; i++) {
+            os.write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+            Assert.assertArrayEquals("hello".getBytes(), response(s.getInputStream()));
+            os.write("GET /big HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+            Assert.assertArrayEquals(big, response(s.getInputStream()));
+        }
+        Assert.assertTrue(last.isSecure);
+        Assert.assertEquals(1, server.getSslHandshakes());
+        s.close();
+    }
+
+    @Test
+    public void testPlaintextClientRejected() throws Exception {
+        Socket s = new Socket("127.0.0.1", server.getPort());
+        s.setSoTimeout(5000);
+        s.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+        InputStream is = s.getInputStream();
+        try {
+            while (is.read() != -1) { // an alert maybe, then closed
+            }
+        } catch (IOException reset) {
+        }
+        Assert.assertNull(last);
+        s.close();
+    }
+}
@@ -0,0 +1,201 @@
+package org.httpkit.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.httpkit.ws.WSFrame;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import clojure.lang.AFn;
+
+public class LoopTimerTest {
+
+    HttpServer server;
+    int port;
+    // by the timers: the thread ran them, how late
+    final LinkedBlockingQueue<String> fired = new LinkedBlockingQueue<String>();
+    final LinkedBlockingQueue<LoopTimer> scheduled = new LinkedBlockingQueue<LoopTimer>();
+
+    // /N responds in N ms, by a timer. scheduled by the loop, or another thread
+    // with ?thread
+    @Before
+    public void setup() throws IOException {
+        IHandler handler = new IHandler() {
+            public void handle(final HttpRequest request, ResponseCallback callback) {
+                final AsyncChannel ch = request.asycChannel;
+                final int delay = Integer.parseInt(request.uri.substring(1));
+                final AFn respond = new AFn() {
+                    final long start = System.currentTimeMillis();
+
+                    public Object invoke() {
+                        long late = System.currentTimeMillis() - start - delay;
+                        fired.offer(Thread.currentThread().getName() + " " + late);
+                        try {
+                            ch.send("" + delay, true);
+                        } catch (IOException ignore) {
+                        }
+                        return null;
+                    }
+                };
+                if (request.queryString != null) {
+                    new Thread() {
+                        public void run() {
+                            scheduled.offer(ch.schedule(delay, respond));
+                        }
+                    }.start();
+                } else {
+                    scheduled.offer(ch.schedule(delay, respond));
+                }
+            }
+
+            public void handle(AsyncChannel channel, WSFrame frame) {
+            }
+
+            public void clientClose(AsyncChannel channel, int status) {
+            }
+
+            public void close() {
+            }
+        };
+        server = new HttpServer("127.0.0.1", 0, handler, 1024, 1024);
+        server.start();
+        port = server.getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private Socket get(String path) throws IOException {
+        Socket s = new Socket("127.0.0.1", port);
+        s.setSoTimeout(3000);
+        s.getOutputStream().write(
+                ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes());
+        return s;
+    }
+
+    private static String read(Socket s) throws IOException {
+        InputStream is = s.getInputStream();
+        byte[] buf = new byte[4096];
+        int n = is.read(buf);
+        return new String(buf, 0, n);
+    }
+
+    private void assertFired(int n) throws InterruptedException {
+        for (int i = 0; i < n; i++) {
+            String f = fired.poll(3, TimeUnit.SECONDS);
+            Assert.assertNotNull(f);
+            String[] parts = f.split(" ");
+            Assert.assertEquals(HttpServer.THREAD_NAME, parts[0]);
+            long late = Long.parseLong(parts[1]);
+            Assert.assertTrue(f, late >= 0 && late < 100);
+        }
+    }
+
+    @Test
+    public void testRunByLoop() throws Exception {
+        // the first response loads classes on the loop, not timer lateness
+        Socket warm = get("/0");
+        read(warm);
+        warm.close();
+        fired.clear();
+        long warmFired = server.getTimersFired();
+        Socket s1 = get("/200"), s2 = get("/100?thread"), s3 = get("/0");
+        assertFired(3);
+        Assert.assertTrue(read(s1).endsWith("\r\n\r\n200"));
+        Assert.assertTrue(read(s2).endsWith("\r\n\r\n100"));
+        Assert.assertTrue(read(s3).endsWith("\r\n\r\n0"));
+        Assert.assertEquals(warmFired + 3, server.getTimersFired());
+        s1.close();
+        s2.close();
+        s3.close();
+    }
+
+    @Test
+    public void testCancelledOnClose() throws Exception {
+        Socket s = get("/300");
+        LoopTimer timer = scheduled.poll(3, TimeUnit.SECONDS);
+        s.close(); // client closed
+        Thread.sleep(500);
+        Assert.assertTrue(timer.isDone());
+        Assert.assertFalse(timer.cancel()); // cancelled on close
+        Assert.assertEquals(0, server.getTimersFired());
+        Assert.assertNull(fired.poll());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        Socket s = get("/200");
+        LoopTimer timer = scheduled.poll(3, TimeUnit.SECONDS);
+        Assert.assertTrue(timer.cancel());
+        Thread.sleep(400);
+        Assert.assertNull(fired.poll());
+        s.close();
+    }
+
+    private long loopIterations() {
+        return (Long) server.getMetrics().histogram("loop-time").snapshot().get("count");
+    }
+
+    @Test
+    public void testNoPolling() throws Exception {
+        AFn never = new AFn() {
+            public Object invoke() {
+                return null;
+            }
+        };
+        LoopTimer live = server.schedule(30000, never);
+        LoopTimer cancelled = server.schedule(20000, never);
+        Thread.sleep(100);
+        Assert.assertTrue(cancelled.cancel());
+        Thread.sleep(100);
+        long before = loopIterations();
+        Thread.sleep(500);
+        // select waits till the 30s one, not woken every tick
+        Assert.assertTrue(loopIterations() - before <= 2);
+        live.cancel();
+    }
+
+    @Test
+    public void testCancelledRemoved() throws Exception {
+        AFn never = new AFn() {
+            public Object invoke() {
+                return null;
+            }
+        };
+        LoopTimer[] timers = new LoopTimer[100];
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = server.schedule(30000 + i, never);
+        }
+        server.schedule(0, never);
+        Thread.sleep(200);
+        Assert.assertEquals(timers.length, server.getTimersPending());
+        // all but the earliest, not at the head of the heap
+        for (int i = 1; i < timers.length; i++) {
+            Assert.assertTrue(timers[i].cancel());
+        }
+        server.schedule(0, never); // wake the loop
+        Thread.sleep(200);
+        Assert.assertEquals(1, server.getTimersPending()); // not left till 30s
+        timers[0].cancel();
+    }
+
+    @Test
+    public void testServerTimer() throws Exception {
+        final LinkedBlockingQueue<String> ran = new LinkedBlockingQueue<String>();
+        server.schedule(50, new AFn() {
+            public Object invoke() {
+                ran.offer(Thread.currentThread().getName());
+                return null;
+            }
+        });
+        Assert.assertEquals(HttpServer.THREAD_NAME, ran.poll(3, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,80 @@
+package org.httpkit.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+    static class Recorder implements TimingWheel.Handler<String> {
+        final List<String> expired = new ArrayList<String>();
+        final List<Long> times = new ArrayList<Long>();
+
+        public void expire(String item, long now) {
+            expired.add(item);
+            times.add(now);
+        }
+    }
+
+    @Test
+    public void testExpire() {
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 8, 0);
+        Recorder r = new Recorder();
+        wheel.add("a", 25);
+        wheel.add("b", 10);
+        wheel.add("c", 500); // more than a round
+        wheel.add("d", 0); // next tick
+        Assert.assertEquals(4, wheel.size());
+
+        wheel.advance(9, r);
+        Assert.assertTrue(r.expired.isEmpty());
+        wheel.advance(10, r);
+        Assert.assertEquals("[b, d]", r.expired.toString());
+        wheel.advance(29, r);
+        Assert.assertEquals("[b, d]", r.expired.toString());
+        wheel.advance(30, r);
+        Assert.assertEquals("[b, d, a]", r.expired.toString());
+        for (long t = 40; t < 500; t += 10) {
+            wheel.advance(t, r);
+        }
+        Assert.assertEquals(1, wheel.size());
+        wheel.advance(500, r);
+        Assert.assertEquals("[b, d, a, c]", r.expired.toString());
+        Assert.assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testLongPause() {
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 8, 0);
+        Recorder r = new Recorder();
+        wheel.add("a", 20);
+        wheel.add("b", 70);
+        wheel.advance(10000, r); // much more than a round
+        Assert.assertEquals(2, r.expired.size());
+        wheel.add("c", 10);
+        wheel.advance(10005, r);
+        Assert.assertEquals(2, r.expired.size());
+        wheel.advance(10010, r);
+        Assert.assertEquals("[a, b, c]", r.expired.toString());
+    }
+
+    @Test
+    public void testAddInHandler() {
+        final TimingWheel<String> wheel = new TimingWheel<String>(10, 4, 0);
+        final List<Long> times = new ArrayList<Long>();
+        wheel.add("x", 10);
+        TimingWheel.Handler<String> again = new TimingWheel.Handler<String>() {
+            public void expire(String item, long now) {
+                times.add(now);
+                wheel.add(item, 40); // a round exactly
+            }
+        };
+        for (long t = 0; t <= 100; t += 10) {
+            wheel.advance(t, again);
+        }
+        Assert.assertEquals("[10, 50, 90]", times.toString());
+        Assert.assertEquals(1, wheel.size());
+    }
+}
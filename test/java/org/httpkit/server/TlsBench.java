@@ -0,0 +1,136 @@
+package org.httpkit.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+
+import org.httpkit.codec.Utils;
+import org.httpkit.ws.WSFrame;
+
+/**
+ * HttpServer with and without TLS: new connection per request (handshakes per
+ * second), and download throughput of a keep-alive connection. Blocking
+ * sockets as client, 4 threads
+ */
+public class TlsBench {
+
+    static final int THREADS = 4;
+    static final byte[] BIG = new byte[1024 * 1024 * 4];
+
+    static HttpServer server(SSLContext ctx) throws IOException {
+        IHandler handler = new IHandler() {
+            public void handle(HttpRequest request, ResponseCallback callback) {
+                byte[] body = request.uri.equals("/big") ? BIG : "hello".getBytes();
+                callback.run(ByteBuffer.wrap(("HTTP/1.1 200 OK\r\nContent-Length: "
+                        + body.length + "\r\n\r\n").getBytes()), ByteBuffer.wrap(body));
+            }
+
+            public void handle(AsyncChannel channel, WSFrame frame) {
+            }
+
+            public void clientClose(AsyncChannel channel, int status) {
+            }
+
+            public void close() {
+            }
+        };
+        HttpServer server = new HttpServer("127.0.0.1", 0, handler, 1024, 1024);
+        if (ctx != null) {
+            server.setSslContext(ctx, null);
+        }
+        server.start();
+        return server;
+    }
+
+    // skip headers, read Content-Length body
+    static int response(DataInputStream in) throws IOException {
+        int length = 0, c, lineLength = 0;
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            c = in.read();
+            if (c == '\n') {
+                if (lineLength == 0) {
+                    break;
+                }
+                String l = line.toString();
+                if (l.startsWith("Content-Length: ")) {
+                    length = Integer.parseInt(l.substring(16));
+                }
+                line.setLength(0);
+                lineLength = 0;
+            } else if (c != '\r') {
+                line.append((char) c);
+                lineLength++;
+            }
+        }
+        in.readFully(new byte[length]);
+        return length;
+    }
+
+    static double run(final SocketFactory factory, final int port, final String path,
+            final boolean reconnect, final int times) throws Exception {
+        final AtomicLong bytes = new AtomicLong(0);
+        Thread[] threads = new Thread[THREADS];
+        long start = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        Socket s = null;
+                        for (int i = 0; i < times; i++) {
+                            if (s == null) {
+                                s = factory.createSocket("localhost", port);
+                                s.setTcpNoDelay(true); // like a browser
+                            }
+                            OutputStream os = s.getOutputStream();
+                            os.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                                    .getBytes());
+                            bytes.addAndGet(response(new DataInputStream(s.getInputStream())));
+                            if (reconnect) {
+                                s.close();
+                                s = null;
+                            }
+                        }
+                        if (s != null) {
+                            s.close();
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return reconnect ? THREADS * times / seconds : bytes.get() / seconds / 1024 / 1024;
+    }
+
+    public static void main(String[] args) throws Exception {
+        SSLContext ctx = Utils.sslContext();
+        HttpServer plain = server(null), tls = server(ctx);
+        SocketFactory plainFactory = SocketFactory.getDefault();
+        SocketFactory tlsFactory = ctx.getSocketFactory();
+        for (int round = 0; round < 3; round++) { // the first 2 are warm up
+            double c1 = run(plainFactory, plain.getPort(), "/", true, 500);
+            double c2 = run(tlsFactory, tls.getPort(), "/", true, 500);
+            double b1 = run(plainFactory, plain.getPort(), "/big", false, 50);
+            double b2 = run(tlsFactory, tls.getPort(), "/big", false, 50);
+            if (round == 2) {
+                System.out.printf("connections/s: plain %8.0f, TLS %8.0f (handshakes: %d)\n",
+                        c1, c2, tls.getSslHandshakes());
+                System.out.printf("download MB/s: plain %8.1f, TLS %8.1f\n", b1, b2);
+            }
+        }
+        plain.stop();
+        tls.stop();
+    }
+}
@@ -0,0 +1,226 @@
+package org.httpkit.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.httpkit.ws.WSDecoder;
+import org.httpkit.ws.WSEncoder;
+import org.httpkit.ws.WSFrame;
+import org.httpkit.ws.WsServerAtta;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+// just hold the attachment, never registered
+class FakeKey extends SelectionKey {
+    public SelectableChannel channel() {
+        return null;
+    }
+
+    public Selector selector() {
+        return null;
+    }
+
+    public boolean isValid() {
+        return true;
+    }
+
+    public void cancel() {
+    }
+
+    public int interestOps() {
+        return 0;
+    }
+
+    public SelectionKey interestOps(int ops) {
+        return this;
+    }
+
+    public int readyOps() {
+        return 0;
+    }
+}
+
+public class TopicHubTest {
+    static final int CHANNELS = 100000;
+
+    HttpServer server;
+
+    @Before
+    public void setup() throws IOException {
+        IHandler handler = new IHandler() {
+            public void handle(HttpRequest request, ResponseCallback callback) {
+            }
+
+            public void handle(AsyncChannel channel, WSFrame frame) {
+            }
+
+            public void clientClose(AsyncChannel channel, int status) {
+            }
+
+            public void close() {
+            }
+        };
+        // fake keys are not registered, queued buffers are left there
+        server = new HttpServer("127.0.0.1", 0, handler, 1024, 1024);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private AsyncChannel wsChannel() {
+        FakeKey key = new FakeKey();
+        AsyncChannel ch = new AsyncChannel(key, server);
+        key.attach(new WsServerAtta(ch));
+        return ch;
+    }
+
+    private static int queued(SelectionKey key) {
+        ServerAtta atta = (ServerAtta) key.attachment();
+        synchronized (atta.toWrites) {
+            return atta.toWrites.size();
+        }
+    }
+
+    @Test
+    public void testSubscribePublishClose() throws Exception {
+        final TopicHub hub = new TopicHub();
+        final List<AsyncChannel> channels = new ArrayList<AsyncChannel>(CHANNELS);
+        final List<SelectionKey> keys = new ArrayList<SelectionKey>(CHANNELS);
+        for (int i = 0; i < CHANNELS; i++) {
+            FakeKey key = new FakeKey();
+            AsyncChannel ch = new AsyncChannel(key, server);
+            key.attach(new WsServerAtta(ch));
+            channels.add(ch);
+            keys.add(key);
+        }
+
+        // concurrent subscribe
+        int threads = 4;
+        final CountDownLatch latch = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            new Thread() {
+                public void run() {
+                    for (int i = offset; i < CHANNELS; i += 4) {
+                        hub.subscribe("room", channels.get(i));
+                    }
+                    latch.countDown();
+                }
+            }.start();
+        }
+        latch.await();
+        Assert.assertEquals(CHANNELS, hub.subscriberCount("room"));
+        Assert.assertFalse(hub.subscribe("room", channels.get(0))); // already
+
+        long start = System.currentTimeMillis();
+        Assert.assertEquals(CHANNELS, hub.publish("room", "hello"));
+        long time = System.currentTimeMillis() - start;
+        System.out.println("publish to " + CHANNELS + " channels: " + time + "ms, " + hub);
+
+        // the encoded frame is shared
+        ServerAtta a0 = (ServerAtta) keys.get(0).attachment();
+        ServerAtta a1 = (ServerAtta) keys.get(1).attachment();
+        ByteBuffer b0 = a0.toWrites.getFirst(), b1 = a1.toWrites.getFirst();
+        Assert.assertTrue(b0 != b1);
+        Assert.assertTrue(b0.array() == b1.array());
+        Assert.assertEquals(1, queued(keys.get(0)));
+
+        // half closed => auto unsubscribed
+        for (int i = 0; i < CHANNELS; i += 2) {
+            channels.get(i).onClose(1000);
+        }
+        Assert.assertEquals(CHANNELS / 2, hub.subscriberCount("room"));
+        Assert.assertEquals(CHANNELS / 2, hub.publish("room", "world"));
+        Assert.assertEquals(1, queued(keys.get(0)));
+        Assert.assertEquals(2, queued(keys.get(1)));
+
+        for (int i = 1; i < CHANNELS; i += 2) {
+            Assert.assertTrue(hub.unsubscribe("room", channels.get(i)));
+        }
+        Assert.assertEquals(0, hub.subscriberCount());
+        Assert.assertEquals(0, hub.topics().size()); // empty topic is removed
+        Assert.assertEquals(0, hub.publish("room", "nobody"));
+    }
+
+    @Test
+    public void testPublishStream() throws Exception {
+        TopicHub hub = new TopicHub(1);
+        FakeKey k1 = new FakeKey(), k2 = new FakeKey();
+        for (FakeKey k : new FakeKey[] { k1, k2 }) {
+            AsyncChannel ch = new AsyncChannel(k, server);
+            k.attach(new WsServerAtta(ch));
+            hub.subscribe("t", ch);
+        }
+        byte[] bytes = new byte[300];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        // read once, a binary frame of its length, shared
+        Assert.assertEquals(2, hub.publish("t", new ByteArrayInputStream(bytes)));
+        ByteBuffer expected = WSEncoder.encode(WSDecoder.OPCODE_BINARY, bytes);
+        Assert.assertEquals(expected, ((ServerAtta) k1.attachment()).toWrites.getFirst());
+        Assert.assertEquals(expected, ((ServerAtta) k2.attachment()).toWrites.getFirst());
+    }
+
+    @Test
+    public void testPublishNil() throws Exception {
+        TopicHub hub = new TopicHub(1);
+        FakeKey key = new FakeKey();
+        AsyncChannel ch = new AsyncChannel(key, server);
+        key.attach(new WsServerAtta(ch));
+        hub.subscribe("t", ch);
+        Assert.assertEquals(0, hub.publish("t", null)); // ignored, like send!
+        Assert.assertEquals(0, queued(key));
+        Assert.assertEquals(1, hub.publish("t", "x"));
+        Assert.assertEquals(1, queued(key));
+    }
+
+    @Test
+    public void testSubscribeClosedChannel() throws Exception {
+        TopicHub hub = new TopicHub(1);
+        AsyncChannel ch = wsChannel();
+        ch.onClose(1001);
+        Assert.assertTrue(hub.subscribe("t", ch));
+        Assert.assertEquals(0, hub.subscriberCount("t")); // hook run at once
+    }
+
+    @Test
+    public void testManyTopics() throws Exception {
+        TopicHub hub = new TopicHub(2);
+        AsyncChannel ch = wsChannel();
+        for (int i = 0; i < 100; i++) {
+            hub.subscribe("topic-" + i, ch);
+        }
+        Assert.assertEquals(100, hub.subscriberCount());
+        ch.serverClose(1000);
+        Assert.assertEquals(0, hub.subscriberCount());
+    }
+
+    @Test
+    public void testChurnLeavesNoHook() throws Exception {
+        TopicHub hub = new TopicHub(2), other = new TopicHub(2);
+        AsyncChannel ch = wsChannel();
+        other.subscribe("t", ch);
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(hub.subscribe("t", ch));
+            Assert.assertTrue(hub.unsubscribe("t", ch));
+        }
+        Assert.assertEquals(1, ch.closeHooks.size()); // of the other hub
+        hub.subscribe("t", ch);
+        ch.serverClose(1000);
+        Assert.assertEquals(0, hub.subscriberCount());
+        Assert.assertEquals(0, other.subscriberCount());
+    }
+}
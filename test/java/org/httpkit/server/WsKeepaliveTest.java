@@ -0,0 +1,96 @@
+package org.httpkit.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import org.httpkit.ws.WSDecoder;
+import org.httpkit.ws.WSEncoder;
+import org.httpkit.ws.WSFrame;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WsKeepaliveTest {
+
+    HttpServer server;
+    int port;
+    volatile int closeStatus = 0;
+
+    @Before
+    public void setup() throws IOException {
+        IHandler handler = new IHandler() {
+            public void handle(HttpRequest request, ResponseCallback callback) {
+            }
+
+            public void handle(AsyncChannel channel, WSFrame frame) {
+            }
+
+            public void clientClose(AsyncChannel channel, int status) {
+                closeStatus = status;
+            }
+
+            public void close() {
+            }
+        };
+        server = new HttpServer("127.0.0.1", 0, handler, 1024, 1024);
+        server.setWsKeepalive(100, 100);
+        server.start();
+        port = server.getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    // the server does not care the handshake response
+    private Socket connect() throws IOException {
+        Socket s = new Socket("127.0.0.1", port);
+        s.setSoTimeout(3000);
+        s.getOutputStream().write(("GET /ws HTTP/1.1\r\nHost: localhost\r\n"
+                + "Upgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                + "Sec-WebSocket-Version: 13\r\n\r\n").getBytes());
+        return s;
+    }
+
+    @Test
+    public void testReapDeadPeer() throws Exception {
+        Socket s = connect();
+        InputStream is = s.getInputStream();
+        Assert.assertEquals(0x80 | WSDecoder.OPCODE_PING, is.read());
+        Assert.assertEquals(0, is.read());
+        // do not answer
+        Assert.assertEquals(0x80 | WSDecoder.OPCODE_CLOSE, is.read());
+        Assert.assertEquals(2, is.read());
+        Assert.assertEquals(1001, ((is.read() << 8) | is.read()));
+        Assert.assertEquals(-1, is.read());
+        Assert.assertEquals(1, server.getWsReaped());
+        for (int i = 0; i < 100 && closeStatus == 0; i++) {
+            Thread.sleep(10); // the handler is told after the socket is closed
+        }
+        Assert.assertEquals(1001, closeStatus); // closed once the frame is written
+        s.close();
+    }
+
+    @Test
+    public void testAnswerPong() throws Exception {
+        Socket s = connect();
+        InputStream is = s.getInputStream();
+        OutputStream os = s.getOutputStream();
+        ByteBuffer pong = WSEncoder.encode(WSDecoder.OPCODE_PONG, new byte[0]);
+        byte[] masked = { pong.get(0), (byte) 0x80, 0, 0, 0, 0 }; // mask 0
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(0x80 | WSDecoder.OPCODE_PING, is.read());
+            Assert.assertEquals(0, is.read());
+            os.write(masked);
+        }
+        Assert.assertEquals(0, server.getWsReaped());
+        Assert.assertTrue(server.getWsPings() >= 5);
+        s.close();
+    }
+}
@@ -0,0 +1,151 @@
+package org.httpkit.timer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.httpkit.PriorityQueue;
+
+import clojure.lang.AFn;
+
+/**
+ * Schedule, cancel and fire of N timeouts: the old heap, one lock, against the
+ * timing wheel. Cancel half of them, like requests answered in time
+ */
+public class TimerServiceBench {
+
+    // the old TimerService: a heap under a lock, remove on cancel
+    static class OldTask implements Comparable<OldTask> {
+        final long timeoutTs;
+        final AFn task;
+        final PriorityQueue<OldTask> queue;
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        OldTask(int timeout, AFn task, PriorityQueue<OldTask> queue) {
+            this.timeoutTs = System.currentTimeMillis() + timeout;
+            this.task = task;
+            this.queue = queue;
+        }
+
+        public int compareTo(OldTask o) {
+            return (int) (timeoutTs - o.timeoutTs);
+        }
+
+        boolean cancel() {
+            if (done.compareAndSet(false, true)) {
+                synchronized (queue) {
+                    queue.remove(this);
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
+    static class OldTimer implements Runnable {
+        final PriorityQueue<OldTask> queue = new PriorityQueue<OldTask>();
+
+        OldTimer() {
+            Thread t = new Thread(this, "old-timer");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        OldTask schedule(int timeout, AFn task) {
+            OldTask t = new OldTask(timeout, task, queue);
+            synchronized (queue) {
+                queue.offer(t);
+                queue.notify();
+            }
+            return t;
+        }
+
+        public void run() {
+            while (true) {
+                OldTask task;
+                synchronized (queue) {
+                    task = queue.peek();
+                    long due = task == null ? 1000 : task.timeoutTs - System.currentTimeMillis();
+                    if (due > 0) {
+                        try {
+                            queue.wait(due);
+                        } catch (InterruptedException ignore) {
+                        }
+                        continue;
+                    }
+                    queue.poll();
+                }
+                if (task.done.compareAndSet(false, true)) {
+                    task.task.invoke();
+                }
+            }
+        }
+    }
+
+    static class Fire extends AFn {
+        final CountDownLatch latch;
+
+        Fire(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        public Object invoke() {
+            latch.countDown();
+            return null;
+        }
+    }
+
+    static final int TIMEOUT = 1000; // fire spread over 1000ms to 1999ms
+
+    static void old(int n) throws InterruptedException {
+        OldTimer timer = new OldTimer();
+        CountDownLatch latch = new CountDownLatch(n / 2);
+        Fire fire = new Fire(latch);
+        OldTask[] tasks = new OldTask[n];
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            tasks[i] = timer.schedule(TIMEOUT + i % 1000, fire);
+        }
+        long scheduled = System.nanoTime();
+        for (int i = 0; i < n; i += 2) {
+            tasks[i].cancel();
+        }
+        long cancelled = System.nanoTime();
+        latch.await();
+        print("heap ", n, start, scheduled, cancelled);
+    }
+
+    static void wheel(int n) throws InterruptedException {
+        TimerService timer = new TimerService(10);
+        CountDownLatch latch = new CountDownLatch(n / 2);
+        Fire fire = new Fire(latch);
+        CancelableFutureTask[] tasks = new CancelableFutureTask[n];
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            tasks[i] = timer.scheduleTask(TIMEOUT + i % 1000, fire);
+        }
+        long scheduled = System.nanoTime();
+        for (int i = 0; i < n; i += 2) {
+            tasks[i].cancel();
+        }
+        long cancelled = System.nanoTime();
+        latch.await();
+        print("wheel", n, start, scheduled, cancelled);
+    }
+
+    static void print(String name, int n, long start, long scheduled, long cancelled) {
+        System.out.printf("%s %8d: schedule %6.1fns/op, cancel %8.1fns/op, all fired in %5dms\n",
+                name, n, (scheduled - start) / (double) n, (cancelled - scheduled)
+                        / (n / 2.0), (System.nanoTime() - start) / 1000000);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        for (int n : new int[] { 10000, 100000, 1000000 }) {
+            wheel(n);
+            if (n <= 100000) {
+                old(n);
+            } else {
+                System.out.printf("heap  %8d: skipped, linear cancel\n", n);
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.httpkit.timer;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import clojure.lang.AFn;
+
+public class TimerServiceTest {
+
+    static class Record extends AFn {
+        final int timeout;
+        final long scheduled = System.currentTimeMillis();
+        final LinkedBlockingQueue<Long> late;
+
+        Record(int timeout, LinkedBlockingQueue<Long> late) {
+            this.timeout = timeout;
+            this.late = late;
+        }
+
+        public Object invoke() {
+            late.offer(System.currentTimeMillis() - scheduled - timeout);
+            return null;
+        }
+    }
+
+    @Test
+    public void testNeverEarly() throws Exception {
+        // 1ms tick: 400ms is on the second level, and the third
+        TimerService timer = new TimerService(1);
+        LinkedBlockingQueue<Long> late = new LinkedBlockingQueue<Long>();
+        int[] timeouts = { 0, 1, 5, 63, 64, 65, 100, 400, 4100 };
+        for (int t : timeouts) {
+            timer.scheduleTask(t, new Record(t, late));
+        }
+        for (int i = 0; i < timeouts.length; i++) {
+            Long l = late.poll(6, TimeUnit.SECONDS);
+            Assert.assertNotNull(l);
+            Assert.assertTrue("late " + l, l >= 0 && l < 50);
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        TimerService timer = new TimerService(10);
+        final AtomicInteger run = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(1);
+        CancelableFutureTask[] tasks = new CancelableFutureTask[10000];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = timer.scheduleTask(100 + i % 200, new AFn() {
+                public Object invoke() {
+                    run.incrementAndGet();
+                    return null;
+                }
+            });
+        }
+        for (int i = 0; i < tasks.length; i += 2) {
+            Assert.assertTrue(tasks[i].cancel());
+            Assert.assertFalse(tasks[i].cancel());
+        }
+        timer.scheduleTask(500, new AFn() {
+            public Object invoke() {
+                latch.countDown();
+                return null;
+            }
+        });
+        Assert.assertTrue(latch.await(2, TimeUnit.SECONDS));
+        Assert.assertEquals(5000, run.get());
+        Assert.assertFalse(tasks[1].cancel()); // already run
+        Assert.assertTrue(timer.toString(), timer.toString().startsWith("pending=0"));
+    }
+
+    @Test
+    public void testThrows() throws Exception {
+        TimerService timer = new TimerService(10);
+        LinkedBlockingQueue<Long> late = new LinkedBlockingQueue<Long>();
+        timer.scheduleTask(10, new AFn() {
+            public Object invoke() {
+                throw new RuntimeException("expected");
+            }
+        });
+        timer.scheduleTask(50, new Record(50, late));
+        Assert.assertNotNull(late.poll(2, TimeUnit.SECONDS)); // still running
+    }
+
+    @Test
+    public void testSlowTaskDelaysNoOther() throws Exception {
+        ExecutorService executor = TimerService.defaultExecutor();
+        TimerService timer = new TimerService(10, executor);
+        LinkedBlockingQueue<Long> late = new LinkedBlockingQueue<Long>();
+        timer.scheduleTask(10, new AFn() {
+            public Object invoke() {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ignore) {
+                }
+                return null;
+            }
+        });
+        for (int i = 1; i <= 5; i++) {
+            timer.scheduleTask(20 * i, new Record(20 * i, late));
+        }
+        for (int i = 0; i < 5; i++) {
+            Long l = late.poll(2, TimeUnit.SECONDS);
+            Assert.assertTrue("late " + l, l < 100);
+        }
+        Map<String, Object> stats = timer.getStats();
+        Assert.assertEquals(6L, stats.get("fired"));
+        Assert.assertTrue(stats.toString(), (Long) stats.get("lag-max") < 100);
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,105 @@
+package org.httpkit.ws;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.httpkit.ProtocolException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PerMessageDeflateTest {
+
+    private static String json(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append("{\"id\":").append(i).append(",\"name\":\"http-kit\"},");
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testNegotiate() {
+        PerMessageDeflate d = new PerMessageDeflate(0, -1, false);
+        Assert.assertNull(d.negotiate(null));
+        Assert.assertNull(d.negotiate("x-webkit-deflate-frame"));
+        Assert.assertEquals("permessage-deflate; server_no_context_takeover",
+                d.negotiate("permessage-deflate; client_max_window_bits"));
+        // can not honor a smaller window, the second offer is accepted
+        Assert.assertEquals("permessage-deflate; server_no_context_takeover",
+                d.negotiate("permessage-deflate; server_max_window_bits=10, permessage-deflate"));
+        Assert.assertNull(d.negotiate("permessage-deflate; unknown_param"));
+
+        d = new PerMessageDeflate(0, -1, true);
+        Assert.assertEquals(
+                "permessage-deflate; server_no_context_takeover; client_no_context_takeover",
+                d.negotiate("permessage-deflate"));
+    }
+
+    @Test
+    public void testRoundTrip() throws ProtocolException {
+        for (boolean noContext : new boolean[] { true, false }) {
+            PerMessageDeflate d = new PerMessageDeflate(64, 9, noContext);
+            WSDecoder decoder = new WSDecoder();
+            decoder.enableDeflate(d);
+            for (int n : new int[] { 1, 10, 1000, 50000 }) {
+                String text = json(n);
+                ByteBuffer frame = d.encode(WSDecoder.OPCODE_TEXT, text.getBytes(), text.length());
+                if (text.length() >= 64) {
+                    Assert.assertTrue((frame.get(0) & WSEncoder.RSV1) != 0);
+                    Assert.assertTrue(frame.remaining() < text.length() / 4);
+                } else {
+                    Assert.assertEquals(0, frame.get(0) & WSEncoder.RSV1);
+                }
+                WSFrame f = decoder.decode(WSDecoderTest.mask(frame, new Random().nextInt()));
+                Assert.assertEquals(text, ((TextFrame) f).getText());
+                decoder.reset();
+            }
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testRsvWithoutNegotiation() throws ProtocolException {
+        PerMessageDeflate d = new PerMessageDeflate(0, -1, false);
+        String text = json(10);
+        ByteBuffer frame = d.encode(WSDecoder.OPCODE_TEXT, text.getBytes(), text.length());
+        new WSDecoder().decode(WSDecoderTest.mask(frame, 0x12345678));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testZipBomb() throws ProtocolException {
+        PerMessageDeflate d = new PerMessageDeflate(0, 9, false);
+        byte[] zeros = new byte[8 * 1024 * 1024];
+        ByteBuffer frame = d.encode(WSDecoder.OPCODE_BINARY, zeros, zeros.length);
+        Assert.assertTrue(frame.remaining() < 64 * 1024);
+        WSDecoder decoder = new WSDecoder();
+        decoder.enableDeflate(d);
+        decoder.decode(WSDecoderTest.mask(frame, 0x12345678));
+    }
+
+    @Test
+    public void testStreamingInflate() throws ProtocolException {
+        PerMessageDeflate d = new PerMessageDeflate(0, 9, false);
+        byte[] data = json(20000).getBytes();
+        ByteBuffer frame = WSDecoderTest.mask(d.encode(WSDecoder.OPCODE_BINARY, data,
+                data.length), 0x12345678);
+        WSDecoder decoder = new WSDecoder();
+        decoder.enableDeflate(d);
+        decoder.setStreaming(true);
+        ByteBuffer received = ByteBuffer.allocate(data.length);
+        FragmentFrame f = null;
+        while (frame.hasRemaining()) {
+            ByteBuffer read = frame.duplicate();
+            read.limit(Math.min(frame.limit(), frame.position() + 1000));
+            while (read.hasRemaining()) {
+                WSFrame tmp = decoder.decode(read);
+                if (tmp != null) {
+                    f = (FragmentFrame) tmp;
+                    received.put(f.data);
+                }
+            }
+            frame.position(read.position());
+        }
+        Assert.assertTrue(f.last);
+        Assert.assertArrayEquals(data, received.array());
+    }
+}
@@ -0,0 +1,96 @@
+package org.httpkit.ws;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.httpkit.ProtocolException;
+
+/**
+ * WSDecoder unmask throughput, 1K, 64K, 4M frames, read by 64K like the server.
+ * Compare with the old byte by byte loop
+ */
+public class UnmaskBench {
+
+    // like the server's, shared
+    static final ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 64);
+
+    // the old way: allocate mask per read, xor byte by byte
+    static void byteByByte(ByteBuffer frame, byte[] content) {
+        frame.position(0);
+        int header = frame.limit() - content.length;
+        frame.position(header - 4);
+        int maskingKey = frame.getInt();
+        int idx = 0;
+        while (frame.hasRemaining()) {
+            buffer.clear();
+            int n = Math.min(buffer.remaining(), frame.remaining());
+            ByteBuffer slice = frame.duplicate();
+            slice.limit(slice.position() + n);
+            buffer.put(slice);
+            frame.position(frame.position() + n);
+            buffer.flip();
+
+            int read = buffer.remaining();
+            buffer.get(content, idx, read);
+            byte[] mask = ByteBuffer.allocate(4).putInt(maskingKey).array();
+            for (int i = 0; i < read; i++) {
+                content[i + idx] = (byte) (content[i + idx] ^ mask[i % 4]);
+            }
+            idx += read;
+        }
+    }
+
+    static void decoder(WSDecoder decoder, ByteBuffer frame) throws ProtocolException {
+        frame.position(0);
+        WSFrame f = null;
+        while (frame.hasRemaining()) {
+            buffer.clear();
+            int n = Math.min(buffer.remaining(), frame.remaining());
+            ByteBuffer slice = frame.duplicate();
+            slice.limit(slice.position() + n);
+            buffer.put(slice);
+            frame.position(frame.position() + n);
+            buffer.flip();
+            f = decoder.decode(buffer);
+        }
+        if (f == null) {
+            throw new RuntimeException("frame expected");
+        }
+        decoder.reset();
+    }
+
+    public static void main(String[] args) throws ProtocolException {
+        Random r = new Random();
+        int[] sizes = { 1024, 1024 * 64, 1024 * 1024 * 4 };
+        for (int round = 0; round < 3; round++) { // the first 2 are warm up
+            for (int size : sizes) {
+                byte[] data = new byte[size];
+                r.nextBytes(data);
+                ByteBuffer frame = WSDecoderTest.mask(
+                        WSEncoder.encode(WSDecoder.OPCODE_BINARY, data), r.nextInt());
+                int times = Math.max(20, 1024 * 1024 * 256 / size);
+
+                byte[] content = new byte[size];
+                long start = System.nanoTime();
+                for (int i = 0; i < times; i++) {
+                    byteByByte(frame, content);
+                }
+                long old = System.nanoTime() - start;
+
+                WSDecoder decoder = new WSDecoder();
+                start = System.nanoTime();
+                for (int i = 0; i < times; i++) {
+                    decoder(decoder, frame);
+                }
+                long now = System.nanoTime() - start;
+
+                if (round == 2) {
+                    double mb = (double) size * times / 1024 / 1024;
+                    System.out.printf("%8d bytes frame: byte by byte %8.1f MB/s, "
+                            + "8 bytes a time %8.1f MB/s\n", size, mb / old * 1e9, mb / now
+                            * 1e9);
+                }
+            }
+        }
+    }
+}
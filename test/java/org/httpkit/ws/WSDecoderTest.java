@@ -0,0 +1,195 @@
+package org.httpkit.ws;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.httpkit.HttpUtils;
+import org.httpkit.ProtocolException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WSDecoderTest {
+
+    // as a client sends: masked
+    static ByteBuffer mask(ByteBuffer frame, int maskingKey) {
+        byte b0 = frame.get();
+        byte b1 = frame.get();
+        int length = b1 & 0x7F;
+        ByteBuffer out = ByteBuffer.allocate(frame.remaining() + 16);
+        out.put(b0).put((byte) (b1 | 0x80));
+        if (length == 126) {
+            out.putShort(frame.getShort());
+        } else if (length == 127) {
+            out.putLong(frame.getLong());
+        }
+        out.putInt(maskingKey);
+        byte[] mask = ByteBuffer.allocate(4).putInt(maskingKey).array();
+        for (int i = 0; frame.hasRemaining(); i++) {
+            out.put((byte) (frame.get() ^ mask[i % 4]));
+        }
+        out.flip();
+        return out;
+    }
+
+    // a fragment of a message, masked
+    static ByteBuffer fragment(byte opcode, boolean fin, byte[] data, int maskingKey) {
+        ByteBuffer frame = WSEncoder.encode(opcode, data);
+        frame.put(0, (byte) ((fin ? 0x80 : 0) | opcode));
+        return mask(frame, maskingKey);
+    }
+
+    // all fragments in one buffer
+    static ByteBuffer fragments(byte opcode, byte[] data, int size, int maskingKey) {
+        ByteBuffer out = ByteBuffer.allocate(data.length * 2 + 16 * (data.length / size + 1));
+        int i = 0;
+        do {
+            int n = Math.min(size, data.length - i);
+            out.put(fragment(i == 0 ? opcode : WSDecoder.OPCODE_CONT, i + n == data.length,
+                    Arrays.copyOfRange(data, i, i + n), maskingKey));
+            i += n;
+        } while (i < data.length);
+        out.flip();
+        return out;
+    }
+
+    static byte[] random(Random r, int length) {
+        byte[] data = new byte[length];
+        r.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testUnmaskPartialReads() throws ProtocolException {
+        Random r = new Random();
+        WSDecoder decoder = new WSDecoder();
+        for (int length : new int[] { 0, 1, 7, 8, 9, 125, 126, 1023, 65536, 1024 * 1024 }) {
+            byte[] data = random(r, length);
+            ByteBuffer frame = mask(WSEncoder.encode(WSDecoder.OPCODE_BINARY, data),
+                    r.nextInt());
+            // header in one read, then payload split at random places
+            ByteBuffer buffer = ByteBuffer.allocateDirect(frame.remaining());
+            buffer.put(frame).flip();
+            int header = buffer.limit() - length;
+            WSFrame f = null;
+            int pos = 0;
+            while (pos < buffer.capacity()) {
+                int next = pos == 0 ? header : pos + 1 + r.nextInt(Math.max(1, length / 3));
+                buffer.limit(Math.min(next, buffer.capacity()));
+                buffer.position(pos);
+                f = decoder.decode(buffer);
+                pos = buffer.limit();
+            }
+            Assert.assertTrue(f instanceof BinaryFrame);
+            Assert.assertArrayEquals("length " + length, data, f.data);
+            decoder.reset();
+        }
+    }
+
+    @Test
+    public void testUnmaskText() throws ProtocolException {
+        String text = "http-kit, 高性能 HTTP Server";
+        for (int i = 0; i < 8; i++) { // every mask phase
+            String s = text.substring(i);
+            WSFrame f = new WSDecoder().decode(mask(
+                    WSEncoder.encode(WSDecoder.OPCODE_TEXT, s.getBytes(HttpUtils.UTF_8)),
+                    0xCAFEBABE));
+            Assert.assertEquals(s, ((TextFrame) f).getText());
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testUnmasked() throws ProtocolException {
+        new WSDecoder().decode(WSEncoder.encode(WSDecoder.OPCODE_TEXT, "hello".getBytes()));
+    }
+
+    @Test
+    public void testMaskedBytesUntouched() throws ProtocolException {
+        byte[] data = new byte[100];
+        Arrays.fill(data, (byte) 1);
+        ByteBuffer frame = mask(WSEncoder.encode(WSDecoder.OPCODE_BINARY, data), 0);
+        WSFrame f = new WSDecoder().decode(frame);
+        Assert.assertArrayEquals(data, f.data);
+    }
+
+    @Test
+    public void testManySmallFragments() throws ProtocolException {
+        byte[] data = random(new Random(), 100000);
+        long start = System.currentTimeMillis();
+        WSFrame f = new WSDecoder().decode(fragments(WSDecoder.OPCODE_BINARY, data, 1,
+                0x12345678));
+        System.out.println("100000 1 byte fragments: "
+                + (System.currentTimeMillis() - start) + "ms");
+        Assert.assertTrue(f instanceof BinaryFrame);
+        Assert.assertArrayEquals(data, f.data);
+
+        String text = "fragmented 分片 text";
+        f = new WSDecoder().decode(fragments(WSDecoder.OPCODE_TEXT,
+                text.getBytes(HttpUtils.UTF_8), 3, 0xCAFEBABE));
+        Assert.assertEquals(text, ((TextFrame) f).getText());
+    }
+
+    @Test
+    public void testHeaderSplitByReads() throws ProtocolException {
+        byte[] data = random(new Random(), 70000); // 8 bytes length
+        ByteBuffer frame = mask(WSEncoder.encode(WSDecoder.OPCODE_BINARY, data), 0x01020304);
+        WSDecoder decoder = new WSDecoder();
+        WSFrame f = null;
+        for (int i = 0; i < frame.capacity() && f == null; i++) { // byte by byte
+            ByteBuffer b = frame.duplicate();
+            b.position(i).limit(i + 1);
+            f = decoder.decode(b);
+        }
+        Assert.assertArrayEquals(data, f.data);
+    }
+
+    @Test
+    public void testMaxMessage() throws ProtocolException {
+        byte[] data = random(new Random(), 1000);
+        WSDecoder decoder = new WSDecoder(1000);
+        Assert.assertNotNull(decoder.decode(fragments(WSDecoder.OPCODE_BINARY, data, 100, 1)));
+        decoder.reset();
+        try {
+            decoder.decode(fragments(WSDecoder.OPCODE_BINARY, random(new Random(), 1001), 100,
+                    1));
+            Assert.fail("too large, should throw");
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testContinuationWithoutStart() throws ProtocolException {
+        new WSDecoder().decode(fragment(WSDecoder.OPCODE_CONT, true, new byte[10], 1));
+    }
+
+    @Test
+    public void testStreaming() throws ProtocolException {
+        Random r = new Random();
+        byte[] data = random(r, 300000);
+        ByteBuffer buffer = fragments(WSDecoder.OPCODE_BINARY, data, 50000, r.nextInt());
+        WSDecoder decoder = new WSDecoder(1024); // no limit when streaming
+        decoder.setStreaming(true);
+        ByteBuffer received = ByteBuffer.allocate(data.length);
+        boolean last = false;
+        while (buffer.hasRemaining()) { // read 4k a time
+            ByteBuffer read = buffer.duplicate();
+            read.limit(Math.min(buffer.limit(), buffer.position() + 4096));
+            while (read.hasRemaining()) {
+                WSFrame f = decoder.decode(read);
+                if (f != null) {
+                    Assert.assertFalse(last);
+                    received.put(f.data);
+                    last = ((FragmentFrame) f).last;
+                }
+            }
+            buffer.position(read.position());
+        }
+        Assert.assertTrue(last);
+        Assert.assertArrayEquals(data, received.array());
+
+        // text is still reassembled
+        decoder.reset();
+        WSFrame f = decoder.decode(fragments(WSDecoder.OPCODE_TEXT, "hello".getBytes(), 2, 7));
+        Assert.assertEquals("hello", ((TextFrame) f).getText());
+    }
+}
@@ -13,6 +13,7 @@
 
 (defroutes test-routes
   (GET "/get" [] "hello world")
+  (GET "/slow" [] (fn [req] (Thread/sleep 1000) "slow"))
   (POST "/post" [] "hello world")
   (PATCH "/patch" [] "hello world")
   (ANY "/method" [] (fn [req]
@@ -24,6 +25,7 @@
   (ANY "/ua" [] (fn [req] ((-> req :headers) "user-agent")))
   (GET "/keep-alive" [] (fn [req] (-> req :params :id)))
   (GET "/p" [] (fn [req] (pr-str (:params req))))
+  (GET "/cached" [] {:status 200 :headers {"cache-control" "max-age=60"} :body "cached"})
   (ANY "/params" [] (fn [req] (-> req :params :param1)))
   (PUT "/body" [] (fn [req] {:body (:body req)
                             :status 200
@@ -166,6 +168,43 @@
       (is (= length (count (:body @(http/put "http://127.0.0.1:4347/body"
                                              {:body body}))))))))
 
+(deftest test-as-stream
+  (let [length (* 1024 1024 3)
+        body (subs const-string 0 length)
+        resp @(http/put "http://127.0.0.1:4347/body" {:body body :as :stream
+                                                      :stream-buffer 65536})]
+    (is (instance? java.io.InputStream (:body resp)))
+    (is (= body (slurp (:body resp))))))
+
+(deftest test-hedged-request
+  (let [start (System/currentTimeMillis)
+        resp @(http/get "http://127.0.0.1:4347/slow"
+                        {:hedge-after-ms 50 :hedge-url "http://127.0.0.1:14347/get"})]
+    (is (= "hello world" (:body resp)))
+    (is (< (- (System/currentTimeMillis) start) 900))
+    (is (pos? (:hedge-wins (http/client-stats))))))
+
+(deftest test-response-cache
+  (let [client (http/init-client :cache-size (* 1024 1024))
+        get #(:body @(http/get "http://127.0.0.1:4347/cached" {:client client}))]
+    (is (= "cached" (get)))
+    (is (= "cached" (get)))
+    (let [{:keys [hits misses]} (:cache (http/client-stats client))]
+      (is (= 1 hits))
+      (is (= 1 misses)))
+    (.stop client)))
+
+(deftest test-client-stats
+  (let [client (http/init-client :cache-size (* 1024 1024) :single-flight ["Accept"])]
+    (is (= "hello world" (:body @(http/get "http://127.0.0.1:4347/get" {:client client}))))
+    (let [stats (http/client-stats client)]
+      (is (= 1 (:open stats)))
+      (is (= #{:open :idle :waiting} (-> stats :hosts vals first keys set)))
+      (is (contains? (:dns stats) :entries))
+      (is (= 1 (-> stats :cache :misses)))
+      (is (= 0 (-> stats :single-flight :coalesced))))
+    (.stop client)))
+
 (deftest test-params
   (let [url "http://a.com/biti?wvr=5&topnav=1&wvr=5&mod=logo#ccc"
         params (-> @(http/get "http://127.0.0.1:4347/p"